@@ -0,0 +1,68 @@
+package org.andlon.simpleweb;
+
+import org.openjdk.jmh.annotations.*;
+// Rather than the server's own Warmup class of this package
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks requests and connections against a client limiter from several threads at once, the way the
+ * event loops and the acceptor do. It lives in the server's package, as the limiter is not public.
+ *
+ * With one client every thread takes the same stripe lock, which is the worst case of contention; with
+ * a client per thread the threads mostly hit different stripes. The GC profiler should report no
+ * allocation for either.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ClientLimiterBenchmark {
+    public enum Clients { ONE, PER_THREAD }
+
+    @Param
+    public Clients clients;
+
+    private ClientLimiter limiter;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Client {
+        long key;
+        // Advanced on each call by far more than the interval of a request, so that the check never
+        // reads the clock nor refuses, and the time measured is that of the check itself
+        long now;
+
+        @Setup
+        public void setup(ClientLimiterBenchmark benchmark) {
+            int thread = benchmark.threads.getAndIncrement();
+            int address = benchmark.clients == Clients.ONE ? 0x0A000001 : 0x0A000001 + thread;
+            key = 1L << 32 | (address & 0xFFFFFFFFL);
+            now = System.nanoTime();
+        }
+    }
+
+    @Setup
+    public void setup() {
+        limiter = new ClientLimiter(0, 1000000000);
+    }
+
+    @Benchmark
+    public boolean tryRequest(Client client) {
+        client.now += 1000;
+        return limiter.tryRequest(client.key, client.now);
+    }
+
+    @Benchmark
+    public boolean connectAndDisconnect(Client client) {
+        client.now += 1000;
+        boolean connected = limiter.tryConnect(client.key, client.now);
+        limiter.disconnected(client.key);
+        return connected;
+    }
+}
@@ -0,0 +1,127 @@
+package org.andlon.simpleweb.benchmarks;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures how a freshly started server performs: the time from launching its process to the
+ * response to the first request, and the latencies of the first requests after that, when the JIT
+ * compiler has not yet caught up. Everything after -- is the command that starts the server, which
+ * must listen on the given port, such as
+ *
+ *   ColdStart --port 9123 -- java -XX:SharedArchiveFile=target/simpleweb.jsa
+ *                            -jar target/simpleweb-0.1.0.jar --port 9123 --root . --warmup 20000
+ *
+ * The requests are sent one at a time over a single keep-alive connection, and the server is
+ * stopped at the end. Before the server is launched, the client sends requests to a server in this
+ * process until its own code is compiled, as a cold client would otherwise dominate the latencies
+ * measured.
+ *
+ * Usage: ColdStart [--requests 10000] [--client-warmup 20000] [--path /README.md] [--host localhost]
+ *                  --port p -- command...
+ */
+public class ColdStart {
+    public static void main(String[] args) throws Exception {
+        int requests = 10000;
+        int clientWarmup = 20000;
+        String path = "/README.md";
+        String host = "localhost";
+        int port = -1;
+        List<String> command = new ArrayList<String>();
+
+        for (int i = 0; i < args.length; ++i) {
+            String option = args[i];
+            if (option.equals("--")) {
+                command.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                break;
+            }
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for option " + option);
+            String value = args[++i];
+
+            switch (option) {
+                case "--requests":
+                    requests = Integer.parseInt(value);
+                    break;
+                case "--client-warmup":
+                    clientWarmup = Integer.parseInt(value);
+                    break;
+                case "--path":
+                    path = value;
+                    break;
+                case "--host":
+                    host = value;
+                    break;
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        if (port < 0 || command.isEmpty())
+            throw new IllegalArgumentException("Both --port and a command after -- are required.");
+
+        warmUpClient(clientWarmup);
+        byte[] request = LoopbackClient.pipelined(host, path, 1);
+        LatencyHistogram latencies = new LatencyHistogram();
+        long launched = System.nanoTime();
+        Process server = new ProcessBuilder(command).inheritIO().start();
+        try (LoopbackClient client = connect(host, port, server)) {
+            long sent = System.nanoTime();
+            client.send(request);
+            client.receive();
+            long firstResponse = System.nanoTime();
+            latencies.record(firstResponse - sent);
+
+            for (int i = 1; i < requests; ++i) {
+                long start = System.nanoTime();
+                client.send(request);
+                client.receive();
+                latencies.record(System.nanoTime() - start);
+            }
+
+            System.out.printf("Time to first response: %.1f ms%n", (firstResponse - launched) / 1e6);
+            System.out.printf("First %d requests:      p50 %s  p90 %s  p99 %s  p99.9 %s  max %s%n", latencies.count(),
+                    micros(latencies.percentile(50)), micros(latencies.percentile(90)),
+                    micros(latencies.percentile(99)), micros(latencies.percentile(99.9)), micros(latencies.max()));
+        } finally {
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    private static void warmUpClient(int requests) throws IOException, InterruptedException {
+        LoopbackServer server = new LoopbackServer(1);
+        byte[] request = LoopbackClient.pipelined("localhost", LoopbackServer.SMALL_PATH, 1);
+        try (LoopbackClient client = new LoopbackClient("localhost", server.port())) {
+            for (int i = 0; i < requests; ++i) {
+                client.send(request);
+                client.receive();
+            }
+        }
+        server.stop();
+    }
+
+    /**
+     * Connects as soon as the server listens, trying again every millisecond.
+     */
+    private static LoopbackClient connect(String host, int port, Process server) throws IOException, InterruptedException {
+        while (true) {
+            try {
+                return new LoopbackClient(host, port);
+            } catch (ConnectException e) {
+                if (!server.isAlive())
+                    throw new IOException("The server exited with status " + server.exitValue());
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f us", nanos / 1000.0);
+    }
+}
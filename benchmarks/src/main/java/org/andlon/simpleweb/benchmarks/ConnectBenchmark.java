@@ -0,0 +1,42 @@
+package org.andlon.simpleweb.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A new loopback connection for every request, from several threads at once, as in a storm of clients
+ * that each fetch one page. The time covers the handshake, the handover of the connection from the
+ * acceptor to a pool, and the request, so it shows how quickly a pool gets to a fresh connection.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class ConnectBenchmark {
+    private static final byte[] REQUEST = LoopbackClient.pipelined("localhost", LoopbackServer.SMALL_PATH, 1);
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({ "2" })
+        public int workers;
+
+        LoopbackServer server;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            server = new LoopbackServer(workers);
+        }
+    }
+
+    @Benchmark
+    public int connectAndRequest(Server server) throws IOException {
+        try (LoopbackClient client = new LoopbackClient("localhost", server.server.port())) {
+            client.send(REQUEST);
+            return client.receive();
+        }
+    }
+}
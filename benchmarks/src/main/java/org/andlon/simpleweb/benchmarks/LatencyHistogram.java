@@ -0,0 +1,69 @@
+package org.andlon.simpleweb.benchmarks;
+
+/**
+ * Records latencies in buckets of bounded relative error, about 3 %, so that percentiles can be
+ * taken over millions of samples in constant memory. Not thread safe, each thread keeps its own and
+ * they are merged at the end.
+ */
+final class LatencyHistogram {
+    // Every power of two range is split into this many linear buckets
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] m_counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long m_total = 0;
+    private long m_max = 0;
+
+    void record(long nanos) {
+        ++m_counts[index(Math.max(nanos, 0))];
+        ++m_total;
+        m_max = Math.max(m_max, nanos);
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < m_counts.length; ++i)
+            m_counts[i] += other.m_counts[i];
+        m_total += other.m_total;
+        m_max = Math.max(m_max, other.m_max);
+    }
+
+    long count() {
+        return m_total;
+    }
+
+    long max() {
+        return m_max;
+    }
+
+    /**
+     * The upper bound of the bucket holding the given percentile, in nanoseconds.
+     */
+    long percentile(double percentile) {
+        if (m_total == 0)
+            return 0;
+        long rank = (long) Math.ceil(percentile / 100 * m_total);
+        long seen = 0;
+        for (int i = 0; i < m_counts.length; ++i) {
+            seen += m_counts[i];
+            if (seen >= Math.max(rank, 1))
+                return Math.min(upperBound(i), m_max);
+        }
+        return m_max;
+    }
+
+    private static int index(long value) {
+        int magnitude = 64 - Long.numberOfLeadingZeros(value);
+        if (magnitude <= SUB_BUCKET_BITS + 1)
+            return (int) value;
+        int shift = magnitude - SUB_BUCKET_BITS - 1;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long upperBound(int index) {
+        if (index < 2 * SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
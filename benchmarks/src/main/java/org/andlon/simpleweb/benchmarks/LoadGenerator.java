@@ -0,0 +1,167 @@
+package org.andlon.simpleweb.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a server over many keep-alive connections at once and reports throughput and latency
+ * percentiles. Without --port, a server is started in this process on a loopback port.
+ *
+ * Every connection has a thread of its own that sends a batch of pipelined requests, waits for all
+ * responses and starts over, so the load is closed-loop: the number of requests in flight is
+ * connections times pipeline depth.
+ *
+ * Usage: LoadGenerator [--connections 64] [--pipeline 1] [--warmup 5] [--duration 10]
+ *                      [--path /index.html] [--host localhost] [--port p] [--workers n]
+ */
+public class LoadGenerator {
+    private final String m_host;
+    private final int m_port;
+    private final byte[] m_batch;
+    private final int m_pipeline;
+    private final AtomicLong m_errors = new AtomicLong();
+    private volatile boolean m_recording = false;
+    private volatile boolean m_stopped = false;
+
+    LoadGenerator(String host, int port, String path, int pipeline) {
+        m_host = host;
+        m_port = port;
+        m_pipeline = pipeline;
+        m_batch = LoopbackClient.pipelined(host, path, pipeline);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = 64;
+        int pipeline = 1;
+        int warmup = 5;
+        int duration = 10;
+        int workers = Runtime.getRuntime().availableProcessors();
+        String path = LoopbackServer.SMALL_PATH;
+        String host = "localhost";
+        int port = -1;
+
+        for (int i = 0; i < args.length; ++i) {
+            String option = args[i];
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for option " + option);
+            String value = args[++i];
+
+            switch (option) {
+                case "--connections":
+                    connections = Integer.parseInt(value);
+                    break;
+                case "--pipeline":
+                    pipeline = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(value);
+                    break;
+                case "--duration":
+                    duration = Integer.parseInt(value);
+                    break;
+                case "--path":
+                    path = value;
+                    break;
+                case "--host":
+                    host = value;
+                    break;
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--workers":
+                    workers = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+
+        if (port < 0)
+            port = new LoopbackServer(workers).port();
+
+        System.out.println("Running " + connections + " connections with pipeline depth " + pipeline
+                + " against http://" + host + ":" + port + path);
+        LoadGenerator generator = new LoadGenerator(host, port, path, pipeline);
+        generator.report(generator.run(connections, warmup, duration), duration);
+    }
+
+    /**
+     * Runs the load, discarding everything measured during the warm-up.
+     * @return the latencies of the responses received in the measured period
+     */
+    LatencyHistogram run(int connections, int warmupSeconds, int durationSeconds) throws InterruptedException {
+        List<Worker> workers = new ArrayList<Worker>();
+        CountDownLatch done = new CountDownLatch(connections);
+        for (int i = 0; i < connections; ++i) {
+            Worker worker = new Worker(done);
+            Thread thread = new Thread(worker, "simpleweb-load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            workers.add(worker);
+        }
+
+        Thread.sleep(warmupSeconds * 1000L);
+        m_recording = true;
+        Thread.sleep(durationSeconds * 1000L);
+        m_recording = false;
+        m_stopped = true;
+        done.await();
+
+        LatencyHistogram total = new LatencyHistogram();
+        for (Worker worker : workers)
+            total.add(worker.latencies);
+        return total;
+    }
+
+    private void report(LatencyHistogram latencies, int durationSeconds) {
+        System.out.printf("Requests:   %d (%d errors)%n", latencies.count(), m_errors.get());
+        System.out.printf("Throughput: %.0f requests/s%n", (double) latencies.count() / durationSeconds);
+        System.out.printf("Latency:    p50 %s  p90 %s  p99 %s  p99.9 %s  max %s%n",
+                micros(latencies.percentile(50)), micros(latencies.percentile(90)),
+                micros(latencies.percentile(99)), micros(latencies.percentile(99.9)), micros(latencies.max()));
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f us", nanos / 1000.0);
+    }
+
+    private class Worker implements Runnable {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        private final CountDownLatch m_done;
+
+        Worker(CountDownLatch done) {
+            m_done = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!m_stopped) {
+                    try (LoopbackClient client = new LoopbackClient(m_host, m_port)) {
+                        while (!m_stopped)
+                            exchange(client);
+                    } catch (IOException e) {
+                        // Count it and reconnect, the server may have closed an idle connection
+                        m_errors.incrementAndGet();
+                    }
+                }
+            } finally {
+                m_done.countDown();
+            }
+        }
+
+        private void exchange(LoopbackClient client) throws IOException {
+            long start = System.nanoTime();
+            client.send(m_batch);
+            for (int i = 0; i < m_pipeline; ++i) {
+                if (client.receive() != 200)
+                    m_errors.incrementAndGet();
+                if (m_recording)
+                    latencies.record(System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.andlon.simpleweb.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests over keep-alive loopback connections, one per benchmark thread, against a server in the
+ * same process. Sample time mode reports latency percentiles, throughput follows from the thread
+ * count divided by the mean. Use LoadGenerator for more connections than there are threads.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class LoopbackBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({ "2" })
+        public int workers;
+
+        LoopbackServer server;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            server = new LoopbackServer(workers);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        @Param({ LoopbackServer.SMALL_PATH, LoopbackServer.LARGE_PATH })
+        public String path;
+
+        @Param({ "1", "8" })
+        public int pipeline;
+
+        LoopbackClient client;
+        byte[] batch;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws IOException {
+            client = new LoopbackClient("localhost", server.server.port());
+            batch = LoopbackClient.pipelined("localhost", path, pipeline);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            client.close();
+        }
+    }
+
+    /**
+     * One batch of pipelined requests, answered in full.
+     */
+    @Benchmark
+    public int requests(Client client) throws IOException {
+        client.client.send(client.batch);
+        int status = 0;
+        for (int i = 0; i < client.pipeline; ++i)
+            status = client.client.receive();
+        return status;
+    }
+}
@@ -0,0 +1,90 @@
+package org.andlon.simpleweb.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A keep-alive client connection that reads just enough of each response to find where it ends.
+ * Responses must carry a Content-Length.
+ */
+final class LoopbackClient implements AutoCloseable {
+    private final Socket m_socket;
+    private final InputStream m_input;
+    private final OutputStream m_output;
+    private final byte[] m_skip = new byte[16 * 1024];
+
+    LoopbackClient(String host, int port) throws IOException {
+        m_socket = new Socket(host, port);
+        m_socket.setTcpNoDelay(true);
+        m_socket.setSoTimeout(30000);
+        m_input = new BufferedInputStream(m_socket.getInputStream(), 16 * 1024);
+        m_output = m_socket.getOutputStream();
+    }
+
+    /**
+     * The given number of GET requests for the path, back to back, to be sent with one write.
+     */
+    static byte[] pipelined(String host, String path, int count) {
+        byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\nUser-Agent: simpleweb-bench\r\nAccept: */*\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        byte[] batch = new byte[request.length * count];
+        for (int i = 0; i < count; ++i)
+            System.arraycopy(request, 0, batch, i * request.length, request.length);
+        return batch;
+    }
+
+    void send(byte[] requests) throws IOException {
+        m_output.write(requests);
+        m_output.flush();
+    }
+
+    /**
+     * Reads the next response and discards its body.
+     * @return the status code
+     */
+    int receive() throws IOException {
+        String statusLine = readLine();
+        if (statusLine == null)
+            throw new IOException("Connection closed by the server.");
+        int status = Integer.parseInt(statusLine.substring(9, 12));
+
+        long contentLength = -1;
+        String line;
+        while ((line = readLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.regionMatches(true, 0, "Content-Length", 0, colon))
+                contentLength = Long.parseLong(line.substring(colon + 1).trim());
+        }
+        if (contentLength < 0)
+            throw new IOException("Response without Content-Length: " + statusLine);
+
+        while (contentLength > 0) {
+            int read = m_input.read(m_skip, 0, (int) Math.min(m_skip.length, contentLength));
+            if (read < 0)
+                throw new IOException("Connection closed in the middle of a response.");
+            contentLength -= read;
+        }
+        return status;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = m_input.read()) >= 0) {
+            if (c == '\n')
+                return line.toString();
+            if (c != '\r')
+                line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_socket.close();
+    }
+}
@@ -0,0 +1,55 @@
+package org.andlon.simpleweb.benchmarks;
+
+import org.andlon.simpleweb.ServerConfig;
+import org.andlon.simpleweb.SimpleWebServer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Random;
+
+/**
+ * A server on an ephemeral loopback port, serving a small page and a larger file from a temporary
+ * document root.
+ */
+final class LoopbackServer {
+    static final String SMALL_PATH = "/index.html";
+    static final String LARGE_PATH = "/large.bin";
+    static final int LARGE_SIZE = 64 * 1024;
+
+    private final SimpleWebServer m_server;
+
+    LoopbackServer(int workers) throws IOException {
+        Path root = Files.createTempDirectory("simpleweb-bench");
+        root.toFile().deleteOnExit();
+        Path small = Files.write(root.resolve("index.html"),
+                "<!DOCTYPE html><html><head><title>Hello</title></head><body><h1>Hello</h1></body></html>"
+                        .getBytes(StandardCharsets.UTF_8));
+        byte[] large = new byte[LARGE_SIZE];
+        new Random(1).nextBytes(large);
+        Path file = Files.write(root.resolve("large.bin"), large);
+        small.toFile().deleteOnExit();
+        file.toFile().deleteOnExit();
+
+        m_server = new SimpleWebServer(new ServerConfig().port(0).workers(workers).documentRoot(root));
+        Thread thread = new Thread(() -> {
+            try {
+                m_server.run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "simpleweb-bench-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int port() {
+        return m_server.port();
+    }
+
+    void stop() throws InterruptedException {
+        m_server.shutdown(Duration.ZERO);
+    }
+}
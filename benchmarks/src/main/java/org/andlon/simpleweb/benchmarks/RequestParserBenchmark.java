@@ -0,0 +1,89 @@
+package org.andlon.simpleweb.benchmarks;
+
+import org.andlon.simpleweb.HttpRequestBuilder;
+import org.andlon.simpleweb.MalformedRequestException;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses complete requests from a buffer, the way a connection does once a read has come in.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class RequestParserBenchmark {
+    static final String SMALL_GET = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n";
+
+    // What a desktop browser sends for a page on a site it has visited before
+    static final String BROWSER = "GET /articles/2014/05/simple-web-server.html?ref=front HTTP/1.1\r\n"
+            + "Host: www.example.com\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Cache-Control: max-age=0\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Accept-Language: en-US,en;q=0.9,nb;q=0.8\r\n"
+            + "Cookie: session=4f2a9c0e7b1d4e8a9f3c6b2d1e0a7f5c; theme=dark; consent=1; _ga=GA1.2.1234567890.1400000000\r\n"
+            + "If-None-Match: \"5d8c72a5-4a1\"\r\n"
+            + "If-Modified-Since: Thu, 29 May 2014 12:00:00 GMT\r\n"
+            + "\r\n";
+
+    public enum Kind { SMALL_GET, BROWSER, MANY_HEADERS, PIPELINED }
+
+    @Param
+    public Kind kind;
+
+    @Param({ "false", "true" })
+    public boolean direct;
+
+    private final HttpRequestBuilder builder = new HttpRequestBuilder();
+    private ByteBuffer input;
+
+    @Setup
+    public void setup() {
+        byte[] bytes = requests(kind).getBytes(StandardCharsets.ISO_8859_1);
+        input = direct ? ByteBuffer.allocateDirect(bytes.length) : ByteBuffer.allocate(bytes.length);
+        input.put(bytes).flip();
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) throws MalformedRequestException {
+        ByteBuffer buffer = input.duplicate();
+        while (buffer.hasRemaining()) {
+            builder.add(buffer);
+            blackhole.consume(builder.request().uri());
+            builder.reset();
+        }
+    }
+
+    static String requests(Kind kind) {
+        switch (kind) {
+            case SMALL_GET:
+                return SMALL_GET;
+            case BROWSER:
+                return BROWSER;
+            case MANY_HEADERS:
+                // Forty custom headers, as added by proxies and API clients
+                StringBuilder request = new StringBuilder("GET /api/v1/items?page=3 HTTP/1.1\r\nHost: api.example.com\r\n");
+                for (int i = 0; i < 40; ++i)
+                    request.append("X-Custom-Header-").append(i).append(": value-").append(i * 7919).append("\r\n");
+                return request.append("\r\n").toString();
+            case PIPELINED:
+                // A batch as a pipelining client would write it in one go
+                StringBuilder batch = new StringBuilder();
+                for (int i = 0; i < 16; ++i)
+                    batch.append("GET /static/image-").append(i).append(".png HTTP/1.1\r\nHost: www.example.com\r\nAccept: image/*\r\n\r\n");
+                return batch.toString();
+            default:
+                throw new IllegalArgumentException(kind.toString());
+        }
+    }
+}
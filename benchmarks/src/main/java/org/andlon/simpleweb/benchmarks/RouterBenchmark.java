@@ -0,0 +1,78 @@
+package org.andlon.simpleweb.benchmarks;
+
+import org.andlon.simpleweb.HttpRequest;
+import org.andlon.simpleweb.HttpRequestBuilder;
+import org.andlon.simpleweb.HttpResponse;
+import org.andlon.simpleweb.Router;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routes a parsed request through routers of growing size. The lookup walks the path, so the time per
+ * request should stay flat from ten routes to ten thousand, and the GC profiler should report no
+ * allocation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class RouterBenchmark {
+    // Shared by every route, so that the benchmark measures the lookup and not the handler
+    private static final HttpResponse RESPONSE = new HttpResponse(200);
+
+    public enum Kind { STATIC, PARAMETER, MISS }
+
+    @Param({ "10", "1000", "10000" })
+    public int routes;
+
+    @Param
+    public Kind kind;
+
+    private Router router;
+    private HttpRequest request;
+
+    @Setup
+    public void setup() throws Exception {
+        // Routes shaped like a versioned REST API, grouped into services of a hundred resources
+        Router.Builder builder = new Router.Builder().fallback(request -> RESPONSE);
+        for (int i = 0; i < routes; ++i) {
+            String resource = "/api/v" + (i % 4) + "/service" + (i / 100) + "/resource" + i;
+            builder.get(resource, (request, match) -> RESPONSE);
+            builder.get(resource + "/:id", (request, match) -> RESPONSE);
+            builder.put(resource + "/:id/attachments/*file", (request, match) -> RESPONSE);
+        }
+        router = builder.build();
+
+        int target = routes / 2;
+        String resource = "/api/v" + (target % 4) + "/service" + (target / 100) + "/resource" + target;
+        String path;
+        switch (kind) {
+            case STATIC:
+                path = resource;
+                break;
+            case PARAMETER:
+                path = resource + "/8f14e45f-ceea-467f-a0e6-1e3c3bb3a9d2";
+                break;
+            default:
+                // Shares a long prefix with the routes and fails at the very end
+                path = resource + "x";
+                break;
+        }
+
+        HttpRequestBuilder parser = new HttpRequestBuilder();
+        byte[] bytes = ("GET " + path + "?fields=name,size HTTP/1.1\r\nHost: api.example.com\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        parser.add(bytes, 0, bytes.length);
+        request = parser.request();
+    }
+
+    @Benchmark
+    public HttpResponse route() throws IOException {
+        return router.handle(request);
+    }
+}
@@ -0,0 +1,258 @@
+package org.andlon.simpleweb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A client connection served start to finish by a thread of its own with blocking I/O, used when
+ * the server runs a thread per connection. It speaks the same protocol as Connection, with keep-alive,
+ * pipelining and request bodies, but waits in read() and write() instead of on a selector. Timeouts
+ * are applied as socket read timeouts.
+ *
+ * When the server shuts down, a connection waiting for its next request is closed right away, and a
+ * busy one after answering the requests its client has sent.
+ */
+final class BlockingConnection implements Runnable {
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final SocketChannel m_channel;
+    private final RequestHandler m_handler;
+    private final ServerConfig m_config;
+    private final HandlerDispatcher m_dispatcher;
+    private final ServerMetrics m_metrics;
+    private final Compressor m_compressor;
+    // Limits the client this connection belongs to, or null
+    private final ClientLimiter m_limiter;
+    private final long m_client;
+    private final HttpRequestBuilder m_builder;
+    private final byte[] m_readBuffer = new byte[READ_BUFFER_SIZE];
+    private int m_start = 0;
+    private int m_end = 0;
+    private final Object m_resumeLock = new Object();
+    private boolean m_resumed = false;
+    // Set while waiting for the first bytes of a request, when closing loses nothing
+    private volatile boolean m_idle = false;
+    private volatile boolean m_draining = false;
+
+    /**
+     * @param limiter the limits of the client, which have already admitted the connection, or null
+     * @param client the key of the client, see ClientLimiter.key()
+     */
+    BlockingConnection(SocketChannel channel, RequestHandler handler, ServerConfig config, HandlerDispatcher dispatcher,
+                       ServerMetrics metrics, Compressor compressor, ClientLimiter limiter, long client) {
+        m_channel = channel;
+        m_handler = handler;
+        m_config = config;
+        m_dispatcher = dispatcher;
+        m_metrics = metrics;
+        m_compressor = compressor;
+        m_limiter = limiter;
+        m_client = client;
+        m_builder = ConnectionPool.newBuilder(config);
+    }
+
+    @Override
+    public void run() {
+        try {
+            m_channel.configureBlocking(true);
+            Socket socket = m_channel.socket();
+            // The head and body of a response are separate writes, and the body must not wait for
+            // the client to acknowledge the head
+            socket.setTcpNoDelay(true);
+            InputStream input = socket.getInputStream();
+            while (serve(socket, input)) { }
+        } catch (SocketTimeoutException e) {
+            // The client took too long, there is nobody left to answer
+            if (m_builder.isReadingBody())
+                m_metrics.timeout(ServerMetrics.Timeout.BODY);
+            else if (m_builder.isStarted())
+                m_metrics.timeout(ServerMetrics.Timeout.HEADERS);
+            else
+                m_metrics.timeout(ServerMetrics.Timeout.IDLE);
+        } catch (IOException | UncheckedIOException e) {
+            // Connection reset or body consumer failure
+        } catch (MalformedRequestException e) {
+            // The rest of the stream cannot be made sense of, so answer and close
+            m_metrics.malformedRequest(e);
+            try {
+                write(Payload.of(HttpResponse.rejection(e.reason().status())));
+            } catch (IOException ignored) { }
+        } finally {
+            if (m_builder.isReadingBody() && m_builder.bodyConsumer() != null)
+                m_builder.bodyConsumer().onAbort();
+            try {
+                m_channel.close();
+            } catch (IOException e) { }
+            if (m_limiter != null)
+                m_limiter.disconnected(m_client);
+            m_metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * Closes the connection if it is waiting for the next request, or makes it close after answering
+     * what is buffered otherwise. May be called from any thread.
+     */
+    void shutdown() {
+        m_draining = true;
+        if (m_idle) {
+            try {
+                m_channel.close();
+            } catch (IOException e) { }
+        }
+    }
+
+    /**
+     * Reads and answers one request.
+     * @return whether the connection stays open for another one.
+     */
+    private boolean serve(Socket socket, InputStream input) throws IOException, MalformedRequestException {
+        long headerDeadline = 0;
+        long requestStart = 0;
+        long parseTime = 0;
+        boolean admitted = false;
+
+        while (!m_builder.isComplete()) {
+            if (m_start == m_end) {
+                socket.setSoTimeout(readTimeout(headerDeadline));
+                // Either this thread sees the flag, or shutdown() sees the connection idle and closes it
+                m_idle = !m_builder.isStarted();
+                if (m_idle && m_draining)
+                    return false;
+                int read;
+                try {
+                    read = input.read(m_readBuffer);
+                } finally {
+                    m_idle = false;
+                }
+                if (read < 0)
+                    return false;
+                m_start = 0;
+                m_end = read;
+                m_metrics.bytesIn(read);
+            }
+
+            long start = System.nanoTime();
+            if (!m_builder.isStarted())
+                requestStart = start;
+            try {
+                m_start += m_builder.add(m_readBuffer, m_start, m_end - m_start);
+            } catch (UncheckedIOException e) {
+                // The body consumer failed, which closes the connection
+                m_metrics.handlerError();
+                throw e;
+            } finally {
+                parseTime += System.nanoTime() - start;
+            }
+            if (headerDeadline == 0 && m_builder.isStarted() && m_config.headerTimeout() > 0)
+                headerDeadline = System.nanoTime() / 1000000 + m_config.headerTimeout();
+
+            // Counted once the headers are in, so a client over its rate cannot send a body either
+            if (!admitted && (m_builder.needsBodyConsumer() || m_builder.isComplete())) {
+                admitted = true;
+                if (m_limiter != null && !m_limiter.tryRequest(m_client, System.nanoTime())) {
+                    m_metrics.requestLimited();
+                    write(Payload.of(HttpResponse.rejection(429)));
+                    return false;
+                }
+            }
+
+            if (m_builder.needsBodyConsumer())
+                startBody(m_builder.request());
+            if (m_builder.isPaused())
+                awaitResume();
+        }
+
+        m_metrics.parseTime().record(parseTime);
+        HttpRequest request = m_builder.request();
+        HttpResponse response = m_dispatcher.handle(m_handler, request, m_metrics);
+        if (m_compressor != null && m_compressor.prepare(request, response))
+            response = Connection.compress(m_compressor, request, response);
+        m_metrics.requestTime().record(System.nanoTime() - requestStart);
+        // Without chunked encoding, only closing the connection tells where a streamed body ends
+        boolean keepAlive = Connection.isKeepAlive(request) && (m_start < m_end || !m_draining)
+                && !(response.isStreamed() && !response.isChunked());
+        try {
+            write(Payload.of(response.encodeHead(keepAlive)));
+            if (response.entityHead() != null)
+                write(Payload.of(response.entityHead()));
+            if (request.type() == HttpRequest.Type.HEAD || !response.hasBody()) {
+                response.discardBody();
+            } else {
+                for (Payload payload : response.payloads())
+                    write(payload);
+            }
+        } finally {
+            response.discardBody();
+            if (request.content() != null)
+                request.content().discard();
+            m_builder.reset();
+        }
+        return keepAlive;
+    }
+
+    /**
+     * The read timeout for what the connection is waiting for, 0 meaning none.
+     */
+    private int readTimeout(long headerDeadline) throws SocketTimeoutException {
+        long timeout;
+        if (m_builder.isReadingBody()) {
+            timeout = m_config.bodyTimeout();
+        } else if (headerDeadline != 0) {
+            timeout = headerDeadline - System.nanoTime() / 1000000;
+            if (timeout <= 0)
+                throw new SocketTimeoutException("Request headers took too long.");
+        } else {
+            timeout = m_config.idleTimeout();
+        }
+        return (int) Math.min(timeout, Integer.MAX_VALUE);
+    }
+
+    private void startBody(HttpRequest request) throws IOException {
+        BodyConsumer consumer;
+        try {
+            consumer = m_handler.bodyConsumer(request, this::resume);
+        } catch (IOException | RuntimeException e) {
+            m_metrics.handlerError();
+            throw e;
+        }
+        m_builder.body(consumer != null ? consumer : new RequestBody(m_config.bodyMemoryThreshold(), m_config.bodySpillDirectory()));
+        if (Connection.expectsContinue(request))
+            write(Payload.of(Connection.CONTINUE.duplicate()));
+    }
+
+    private void resume() {
+        synchronized (m_resumeLock) {
+            m_resumed = true;
+            m_resumeLock.notifyAll();
+        }
+    }
+
+    private void awaitResume() throws IOException {
+        synchronized (m_resumeLock) {
+            try {
+                while (!m_resumed)
+                    m_resumeLock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the body consumer.");
+            }
+            m_resumed = false;
+        }
+        m_builder.resume();
+    }
+
+    private void write(Payload payload) throws IOException {
+        try {
+            // The channel is blocking, so a single call normally writes everything
+            while (!payload.writeTo(m_channel)) { }
+            m_metrics.bytesOut(payload.written());
+        } finally {
+            payload.release();
+        }
+    }
+}
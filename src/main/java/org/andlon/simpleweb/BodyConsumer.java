@@ -0,0 +1,28 @@
+package org.andlon.simpleweb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the body of a request piece by piece as it is parsed, with chunked transfer coding
+ * already removed. All methods are called on the event loop of the connection.
+ */
+public interface BodyConsumer {
+    /**
+     * Called with the next piece of the body. The buffer is only valid during the call, so data the
+     * consumer wants to keep must be copied or written out before returning.
+     * @return true to keep receiving data, false to stop reading from the connection until the
+     * resume callback handed out with the consumer is run.
+     */
+    public boolean onData(ByteBuffer data) throws IOException;
+
+    /**
+     * Called once the whole body has been received, right before the request is handled.
+     */
+    public void onEnd() throws IOException;
+
+    /**
+     * Called instead of onEnd() when the connection fails before the body is complete.
+     */
+    public default void onAbort() { }
+}
@@ -0,0 +1,238 @@
+package org.andlon.simpleweb;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct buffers for connection I/O, shared by all event loops.
+ *
+ * Buffers come in power of two size classes from 4 KiB to 64 KiB. Each class carves its buffers out
+ * of 1 MiB slabs of direct memory, so the number of direct allocations stays small and buffers of a
+ * class never fragment each other. Every thread keeps a small cache per class, which serves most
+ * requests without touching shared state. Buffers are only taken while a connection has data in
+ * flight, so idle connections hold none.
+ *
+ * With leak detection on, every buffer handed out is tracked. A buffer that becomes unreachable
+ * without having been released is reported together with the stack trace of its acquisition, and
+ * releasing a buffer twice throws. Tracking is costly and meant for debugging only.
+ */
+public final class BufferPool {
+    private static final int MIN_SHIFT = 12;
+    private static final int CLASS_COUNT = 5;
+    private static final int SLAB_SIZE = 1024 * 1024;
+    private static final int THREAD_CACHE_SIZE = 32;
+
+    private final SizeClass[] m_classes = new SizeClass[CLASS_COUNT];
+    private final ThreadLocal<ThreadCache> m_caches = ThreadLocal.withInitial(ThreadCache::new);
+    private final boolean m_leakDetection;
+    private final ConcurrentHashMap<Allocation, Allocation> m_allocations;
+    private final ReferenceQueue<ByteBuffer> m_unreachable;
+
+    private final AtomicLong m_reservedBytes = new AtomicLong();
+    private final AtomicLong m_inUse = new AtomicLong();
+    private final LongAdder m_acquires = new LongAdder();
+    private final LongAdder m_cacheHits = new LongAdder();
+    private final LongAdder m_leaks = new LongAdder();
+
+    public BufferPool(boolean leakDetection) {
+        for (int i = 0; i < CLASS_COUNT; ++i)
+            m_classes[i] = new SizeClass(1 << (MIN_SHIFT + i));
+        m_leakDetection = leakDetection;
+        m_allocations = leakDetection ? new ConcurrentHashMap<Allocation, Allocation>() : null;
+        m_unreachable = leakDetection ? new ReferenceQueue<ByteBuffer>() : null;
+    }
+
+    /**
+     * Direct memory set aside for pooled buffers, whether in use or not.
+     */
+    public long reservedBytes() { return m_reservedBytes.get(); }
+
+    /**
+     * Number of buffers currently acquired and not yet released.
+     */
+    public long inUse() { return m_inUse.get(); }
+
+    public long acquires() { return m_acquires.sum(); }
+
+    /**
+     * Number of acquisitions served from the calling thread's cache.
+     */
+    public long cacheHits() { return m_cacheHits.sum(); }
+
+    /**
+     * Number of buffers found unreachable without having been released. Only counted with leak detection.
+     */
+    public long leaks() {
+        if (m_leakDetection)
+            pollLeaks();
+        return m_leaks.sum();
+    }
+
+    public static int maxBufferSize() {
+        return 1 << (MIN_SHIFT + CLASS_COUNT - 1);
+    }
+
+    /**
+     * Returns a cleared buffer with a capacity of at least size bytes, which must be given back with
+     * release(). Sizes above maxBufferSize() get a plain direct buffer that is not pooled.
+     */
+    ByteBuffer acquire(int size) {
+        m_acquires.increment();
+        m_inUse.incrementAndGet();
+
+        int index = classIndex(size);
+        ByteBuffer buffer;
+        if (index < 0) {
+            buffer = ByteBuffer.allocateDirect(size);
+        } else {
+            buffer = m_caches.get().poll(index);
+            if (buffer != null) {
+                m_cacheHits.increment();
+            } else {
+                buffer = m_classes[index].take();
+            }
+            buffer.clear();
+        }
+
+        if (m_leakDetection)
+            track(buffer);
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        if (m_leakDetection)
+            untrack(buffer);
+        m_inUse.decrementAndGet();
+
+        int index = classIndex(buffer.capacity());
+        if (index < 0 || buffer.capacity() != m_classes[index].size)
+            return;
+
+        if (!m_caches.get().offer(index, buffer))
+            m_classes[index].free.add(buffer);
+    }
+
+    private static int classIndex(int size) {
+        if (size > maxBufferSize())
+            return -1;
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1 << MIN_SHIFT) - 1);
+        return shift - MIN_SHIFT;
+    }
+
+    private void track(ByteBuffer buffer) {
+        pollLeaks();
+        Allocation allocation = new Allocation(buffer, m_unreachable, new Throwable("Buffer acquired here"));
+        m_allocations.put(allocation, allocation);
+    }
+
+    private void untrack(ByteBuffer buffer) {
+        if (m_allocations.remove(new Allocation(buffer, null, null)) == null)
+            throw new IllegalStateException("Buffer released twice or not acquired from this pool.");
+    }
+
+    private void pollLeaks() {
+        Allocation leaked;
+        while ((leaked = (Allocation) m_unreachable.poll()) != null) {
+            if (m_allocations.remove(leaked) != null) {
+                m_leaks.increment();
+                m_inUse.decrementAndGet();
+                new IllegalStateException("Buffer was never released", leaked.trace).printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Free buffers of one size, cut from slabs that are never given back.
+     */
+    private final class SizeClass {
+        final int size;
+        final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+
+        ByteBuffer take() {
+            ByteBuffer buffer = free.poll();
+            if (buffer != null)
+                return buffer;
+
+            synchronized (this) {
+                // Another thread may have filled the class while this one waited
+                buffer = free.poll();
+                if (buffer != null)
+                    return buffer;
+
+                ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+                m_reservedBytes.addAndGet(SLAB_SIZE);
+                for (int offset = size; offset < SLAB_SIZE; offset += size)
+                    free.add(slice(slab, offset));
+                return slice(slab, 0);
+            }
+        }
+
+        private ByteBuffer slice(ByteBuffer slab, int offset) {
+            ByteBuffer view = slab.duplicate();
+            view.position(offset);
+            view.limit(offset + size);
+            return view.slice();
+        }
+    }
+
+    /**
+     * Free buffers kept by one thread, a small stack per size class.
+     */
+    private static final class ThreadCache {
+        private final ByteBuffer[][] buffers = new ByteBuffer[CLASS_COUNT][THREAD_CACHE_SIZE];
+        private final int[] counts = new int[CLASS_COUNT];
+
+        ByteBuffer poll(int index) {
+            if (counts[index] == 0)
+                return null;
+            ByteBuffer buffer = buffers[index][--counts[index]];
+            buffers[index][counts[index]] = null;
+            return buffer;
+        }
+
+        boolean offer(int index, ByteBuffer buffer) {
+            if (counts[index] == THREAD_CACHE_SIZE)
+                return false;
+            buffers[index][counts[index]++] = buffer;
+            return true;
+        }
+    }
+
+    /**
+     * A tracked buffer. Equality is identity of the buffer, so a fresh Allocation finds the tracked one.
+     */
+    private static final class Allocation extends WeakReference<ByteBuffer> {
+        private final int hash;
+        final Throwable trace;
+
+        Allocation(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue, Throwable trace) {
+            super(buffer, queue);
+            this.hash = System.identityHashCode(buffer);
+            this.trace = trace;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other)
+                return true;
+            if (!(other instanceof Allocation))
+                return false;
+            ByteBuffer buffer = get();
+            return buffer != null && buffer == ((Allocation) other).get();
+        }
+    }
+}
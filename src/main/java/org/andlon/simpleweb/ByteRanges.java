@@ -0,0 +1,121 @@
+package org.andlon.simpleweb;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Byte range requests. A single range is answered with the slice of the file alone, several with a
+ * multipart/byteranges body in which the parts are slices as well, so the file contents are never
+ * copied on the way.
+ */
+final class ByteRanges {
+    // More ranges than this are more likely an attack than a download manager
+    private static final int MAX_RANGES = 16;
+
+    private ByteRanges() { }
+
+    /**
+     * Where the parts of a ranged response come from.
+     */
+    interface Source {
+        /**
+         * A payload of count bytes starting at position. The last slice of a response is taken last.
+         */
+        Payload slice(long position, long count, boolean last) throws IOException;
+    }
+
+    /**
+     * Parses a Range header against a representation of the given size.
+     * @return the first and last byte of every satisfiable range, in pairs, which is empty if no range
+     * is satisfiable, or null if the header is to be ignored and the whole representation sent. That is
+     * the case for malformed headers, units other than bytes, and sets of ranges that are too many or
+     * add up to more than the representation itself.
+     */
+    static long[] parse(String header, long size) {
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6))
+            return null;
+
+        long[] ranges = new long[2 * MAX_RANGES];
+        int count = 0;
+        long total = 0;
+        for (String spec : header.substring(6).split(",")) {
+            spec = spec.trim();
+            if (spec.isEmpty())
+                continue;
+            int dash = spec.indexOf('-');
+            if (dash < 0)
+                return null;
+
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    // A suffix: the final bytes of the representation
+                    long length = Long.parseLong(spec.substring(1));
+                    if (length <= 0)
+                        continue;
+                    first = Math.max(0, size - length);
+                    last = size - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    String end = spec.substring(dash + 1);
+                    if (end.isEmpty()) {
+                        last = size - 1;
+                    } else {
+                        last = Long.parseLong(end);
+                        if (last < first)
+                            return null;
+                        last = Math.min(last, size - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (first >= size || first > last)
+                continue;
+            if (count == ranges.length)
+                return null;
+            ranges[count++] = first;
+            ranges[count++] = last;
+            total += last - first + 1;
+            if (total > size)
+                return null;
+        }
+
+        long[] result = new long[count];
+        System.arraycopy(ranges, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Answers with the ranges, 416 Range Not Satisfiable if there are none.
+     */
+    static HttpResponse response(long[] ranges, long size, String contentType, Source source) throws IOException {
+        if (ranges.length == 0)
+            return HttpResponse.error(416).header("Content-Range", "bytes */" + size);
+
+        HttpResponse response = new HttpResponse(206).compressible(false);
+        if (ranges.length == 2) {
+            return response.header("Content-Type", contentType)
+                    .header("Content-Range", contentRange(ranges[0], ranges[1], size))
+                    .append(source.slice(ranges[0], ranges[1] - ranges[0] + 1, true));
+        }
+
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+        response.header("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        for (int i = 0; i < ranges.length; i += 2) {
+            String part = (i == 0 ? "" : "\r\n") + "--" + boundary + "\r\nContent-Type: " + contentType
+                    + "\r\nContent-Range: " + contentRange(ranges[i], ranges[i + 1], size) + "\r\n\r\n";
+            response.body(part.getBytes(StandardCharsets.ISO_8859_1));
+            response.append(source.slice(ranges[i], ranges[i + 1] - ranges[i] + 1, i == ranges.length - 2));
+        }
+        return response.body(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String contentRange(long first, long last, long size) {
+        return "bytes " + first + "-" + last + "/" + size;
+    }
+}
@@ -0,0 +1,225 @@
+package org.andlon.simpleweb;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * Limits what a single client, told apart by its IP address, may take of the server: the number of
+ * connections it has open at once, and the rate of its requests.
+ *
+ * The request rate is a token bucket holding a second's worth of requests, kept as the time at which
+ * the bucket will be full again (the generic cell rate algorithm), so that a client costs one long and
+ * an int. Clients are stored in a hash table of primitive arrays with open addressing, keyed by the
+ * address as a long, and split into stripes that are locked separately. Nothing is allocated for a
+ * check, and clients on different stripes never contend. A client is forgotten once it has no
+ * connection open and a full bucket, when its stripe next runs out of room.
+ */
+final class ClientLimiter {
+    // Power of two, indexed by the top bits of a key's hash, while the bottom bits index the slots
+    private static final int STRIPES = 64;
+    private static final int STRIPE_SHIFT = 64 - Integer.numberOfTrailingZeros(STRIPES);
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int m_maxConnections;
+    // Time between requests at the limited rate, and how far ahead of it a client may get
+    private final long m_interval;
+    private final long m_tolerance;
+    private final Stripe[] m_stripes = new Stripe[STRIPES];
+
+    /**
+     * @param maxConnections connections a client may have open at once, 0 for no limit
+     * @param requestsPerSecond requests a client may make per second, also the largest burst, 0 for no limit
+     */
+    ClientLimiter(int maxConnections, int requestsPerSecond) {
+        m_maxConnections = maxConnections;
+        m_interval = requestsPerSecond > 0 ? 1000000000L / requestsPerSecond : 0;
+        m_tolerance = requestsPerSecond > 0 ? m_interval * (requestsPerSecond - 1) : 0;
+        for (int i = 0; i < STRIPES; ++i)
+            m_stripes[i] = new Stripe();
+    }
+
+    /**
+     * The key of a client. IPv4 addresses are kept whole, IPv6 addresses are folded to 63 bits, which
+     * leaves collisions unlikely enough not to matter. Keys are never 0, which marks a free slot.
+     */
+    static long key(SocketAddress remote) {
+        if (!(remote instanceof InetSocketAddress))
+            return 1;
+        InetAddress address = ((InetSocketAddress) remote).getAddress();
+        if (address instanceof Inet4Address) {
+            // Which is the address itself, and saves copying it
+            return (address.hashCode() & 0xFFFFFFFFL) | 1L << 32;
+        }
+        if (address == null)
+            return 1;
+
+        byte[] bytes = address.getAddress();
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; ++i) {
+            high = high << 8 | (bytes[i] & 0xFF);
+            low = low << 8 | (bytes[i + 8] & 0xFF);
+        }
+        return mix(high) ^ low | Long.MIN_VALUE;
+    }
+
+    /**
+     * Counts a new connection of the client, unless it already has as many as it may.
+     * @param now a reading of the clock that the connection's requests are checked against, taken no
+     * later than theirs, as a client first seen here is added with a bucket full at now
+     * @return whether the connection may be served
+     */
+    boolean tryConnect(long key, long now) {
+        long hash = mix(key);
+        Stripe stripe = m_stripes[(int) (hash >>> STRIPE_SHIFT)];
+        synchronized (stripe) {
+            int slot = stripe.slot(key, hash, now);
+            if (m_maxConnections > 0 && stripe.connections[slot] >= m_maxConnections)
+                return false;
+            ++stripe.connections[slot];
+            return true;
+        }
+    }
+
+    /**
+     * Counts a connection of the client as closed. Every successful tryConnect() needs exactly one.
+     */
+    void disconnected(long key) {
+        long hash = mix(key);
+        Stripe stripe = m_stripes[(int) (hash >>> STRIPE_SHIFT)];
+        synchronized (stripe) {
+            int slot = stripe.find(key, hash);
+            if (slot >= 0 && stripe.connections[slot] > 0)
+                --stripe.connections[slot];
+        }
+    }
+
+    /**
+     * Takes a token from the client's bucket.
+     * @param now the System.nanoTime(), or a recent reading of it, since reading the clock can cost more
+     * than the rest of the check
+     * @return whether the request may be served
+     */
+    boolean tryRequest(long key, long now) {
+        if (m_interval == 0)
+            return true;
+        long hash = mix(key);
+        Stripe stripe = m_stripes[(int) (hash >>> STRIPE_SHIFT)];
+        synchronized (stripe) {
+            int slot = stripe.slot(key, hash, now);
+            long full = stripe.full[slot];
+            // A bucket that has been full for a while is only as full as it can be
+            long from = full - now > 0 ? full : now;
+            if (from - now > m_tolerance)
+                return false;
+            stripe.full[slot] = from + m_interval;
+            return true;
+        }
+    }
+
+    /**
+     * Whether the client is in the table, which it stays in while it has a connection open or a bucket
+     * that is not full, and may leave once it has neither.
+     */
+    boolean isTracked(long key) {
+        long hash = mix(key);
+        Stripe stripe = m_stripes[(int) (hash >>> STRIPE_SHIFT)];
+        synchronized (stripe) {
+            return stripe.find(key, hash) >= 0;
+        }
+    }
+
+    /**
+     * The stripe that holds the client. Clients of the same stripe share its lock and its room.
+     */
+    static int stripeOf(long key) {
+        return (int) (mix(key) >>> STRIPE_SHIFT);
+    }
+
+    private static long mix(long key) {
+        // The finalizer of MurmurHash3, spreading every bit of the key over the whole hash
+        key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+        key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+
+    /**
+     * A part of the table, with linear probing and at most half of its slots taken. Guarded by itself.
+     */
+    private static final class Stripe {
+        long[] keys = new long[INITIAL_CAPACITY];
+        int[] connections = new int[INITIAL_CAPACITY];
+        // The System.nanoTime() at which the client's bucket is full
+        long[] full = new long[INITIAL_CAPACITY];
+        int size = 0;
+
+        int find(long key, long hash) {
+            int mask = keys.length - 1;
+            for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == key)
+                    return i;
+                if (keys[i] == 0)
+                    return -1;
+            }
+        }
+
+        /**
+         * The slot of the client, which is added with a bucket full at now if it is not in the table.
+         */
+        int slot(long key, long hash, long now) {
+            int slot = find(key, hash);
+            if (slot >= 0)
+                return slot;
+
+            if (2 * (size + 1) > keys.length)
+                rebuild(now);
+            ++size;
+            return insert(key, 0, now);
+        }
+
+        private int insert(long key, int connectionCount, long fullAt) {
+            int mask = keys.length - 1;
+            int i = (int) mix(key) & mask;
+            while (keys[i] != 0)
+                i = (i + 1) & mask;
+            keys[i] = key;
+            connections[i] = connectionCount;
+            full[i] = fullAt;
+            return i;
+        }
+
+        /**
+         * Drops the clients with neither connections nor an emptied bucket, and resizes the table to
+         * what is left, leaving room for as many clients again.
+         */
+        private void rebuild(long now) {
+            long[] oldKeys = keys;
+            int[] oldConnections = connections;
+            long[] oldFull = full;
+
+            int live = 0;
+            for (int i = 0; i < oldKeys.length; ++i) {
+                if (oldKeys[i] != 0 && !isIdle(oldConnections[i], oldFull[i], now))
+                    ++live;
+            }
+
+            int capacity = INITIAL_CAPACITY;
+            while (capacity < 4 * (live + 1))
+                capacity *= 2;
+            keys = new long[capacity];
+            connections = new int[capacity];
+            full = new long[capacity];
+            size = live;
+            for (int i = 0; i < oldKeys.length; ++i) {
+                if (oldKeys[i] != 0 && !isIdle(oldConnections[i], oldFull[i], now))
+                    insert(oldKeys[i], oldConnections[i], oldFull[i]);
+            }
+        }
+
+        private static boolean isIdle(int connectionCount, long fullAt, long now) {
+            return connectionCount == 0 && fullAt - now <= 0;
+        }
+    }
+}
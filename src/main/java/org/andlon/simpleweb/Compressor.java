@@ -0,0 +1,395 @@
+package org.andlon.simpleweb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compression of response bodies.
+ *
+ * Compression costs far more CPU than sending the bytes, so it never runs on an event loop: responses
+ * produced on a loop are compressed on the compressor's own threads and handed back, while handler and
+ * connection threads compress in place. Bodies up to maxSize are compressed whole, keeping a
+ * Content-Length. Larger ones become a stream, deflated on the compressor's threads 16 KiB at a time
+ * as the client takes them, so that they never sit on the heap in full. Any payload can be deflated,
+ * and Deflaters are pooled since each one holds a sizeable native buffer.
+ *
+ * Only responses of a compressible type and at least minSize bytes are compressed. Smaller ones gain
+ * too little to be worth the CPU, and most other types, such as images and archives, are compressed
+ * already. Brotli is negotiated as well, but there is no encoder for it in the JDK, so it is only ever
+ * served from precompressed files.
+ */
+final class Compressor {
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_IDLE_DEFLATERS = 64;
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    /**
+     * The content codings the server knows, in order of preference.
+     */
+    enum Encoding {
+        BROTLI("br", ".br"),
+        GZIP("gzip", ".gz");
+
+        final String token;
+        // File name suffix of precompressed variants
+        final String suffix;
+
+        Encoding(String token, String suffix) {
+            this.token = token;
+            this.suffix = suffix;
+        }
+    }
+
+    private final int m_level;
+    private final int m_minSize;
+    private final long m_maxSize;
+    private final ConcurrentLinkedQueue<Deflater> m_deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private final AtomicInteger m_idleDeflaters = new AtomicInteger();
+    private final ExecutorService m_executor;
+
+    /**
+     * @param level Deflater compression level
+     * @param minSize smallest body worth compressing
+     * @param maxSize largest dynamic body compressed whole, larger ones are compressed while they are sent
+     * @param threads number of threads compressing on behalf of the event loops
+     */
+    Compressor(int level, int minSize, long maxSize, int threads) {
+        m_level = level;
+        m_minSize = minSize;
+        m_maxSize = maxSize;
+        AtomicInteger count = new AtomicInteger();
+        m_executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "simpleweb-compress-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    int minSize() {
+        return m_minSize;
+    }
+
+    /**
+     * Runs compression work on the compressor's threads.
+     */
+    void execute(Runnable task) {
+        m_executor.execute(task);
+    }
+
+    void shutdown() {
+        m_executor.shutdownNow();
+    }
+
+    /**
+     * Whether bodies of the content type are worth compressing: text, and the structured formats that
+     * are text underneath.
+     */
+    static boolean isCompressible(String contentType) {
+        if (contentType == null)
+            return false;
+        String type = contentType.toLowerCase(Locale.ROOT);
+        int parameters = type.indexOf(';');
+        if (parameters >= 0)
+            type = type.substring(0, parameters).trim();
+
+        return type.startsWith("text/")
+                || type.equals("application/javascript")
+                || type.equals("application/json")
+                || type.equals("application/xml")
+                || type.equals("application/wasm")
+                || type.equals("image/svg+xml")
+                || type.endsWith("+json")
+                || type.endsWith("+xml");
+    }
+
+    /**
+     * Whether the request's Accept-Encoding allows the coding, honouring q=0 and the wildcard.
+     */
+    static boolean accepts(HttpRequest request, Encoding encoding) {
+        String accept = request.header(HttpHeader.ACCEPT_ENCODING);
+        if (accept == null)
+            return false;
+
+        boolean wildcard = false;
+        int start = 0;
+        while (start < accept.length()) {
+            int end = accept.indexOf(',', start);
+            if (end < 0)
+                end = accept.length();
+
+            int semicolon = accept.indexOf(';', start);
+            int tokenEnd = semicolon >= 0 && semicolon < end ? semicolon : end;
+            String token = accept.substring(start, tokenEnd).trim();
+            boolean allowed = tokenEnd == end || quality(accept.substring(tokenEnd + 1, end)) > 0;
+
+            if (token.equalsIgnoreCase(encoding.token))
+                return allowed;
+            if (token.equals("*"))
+                wildcard = allowed;
+            start = end + 1;
+        }
+        return wildcard;
+    }
+
+    /**
+     * The q parameter of an Accept-Encoding element, 1 if there is none or it cannot be parsed.
+     */
+    private static double quality(String parameters) {
+        for (String parameter : parameters.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.length() > 2 && (parameter.charAt(0) == 'q' || parameter.charAt(0) == 'Q')
+                    && parameter.charAt(1) == '=') {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 1;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Decides whether a handler's response is to be compressed. Responses that could be compressed get
+     * Vary: Accept-Encoding whether they are or not, so that caches keep the variants apart.
+     * @return true if the body should be passed to compress().
+     */
+    boolean prepare(HttpRequest request, HttpResponse response) {
+        if (!response.isCompressible() || response.status() != 200 || response.entityHead() != null)
+            return false;
+        if (response.contentLength() < m_minSize)
+            return false;
+        if (response.header("Content-Encoding") != null || !isCompressible(response.header("Content-Type")))
+            return false;
+
+        response.header("Vary", "Accept-Encoding");
+        return request.type() != HttpRequest.Type.HEAD && accepts(request, Encoding.GZIP);
+    }
+
+    /**
+     * Replaces the body of the response with its gzip encoding. Up to maxSize, the body is compressed
+     * right away. A larger one is replaced with a stream that compresses it while it is sent, chunked
+     * unless the client speaks HTTP/1.0.
+     */
+    void compress(HttpRequest request, HttpResponse response) throws IOException {
+        List<Payload> payloads = response.payloads();
+        if (response.contentLength() > m_maxSize) {
+            boolean chunked = "HTTP/1.1".equals(request.version());
+            GzipSource source = new GzipSource(new ArrayList<Payload>(payloads));
+            response.replaceBody("gzip", Payload.ofStream(source, m_executor, chunked), chunked);
+            return;
+        }
+
+        GzipChannel gzip = new GzipChannel();
+        try {
+            for (Payload payload : payloads) {
+                while (!payload.writeTo(gzip)) { }
+            }
+            gzip.finish();
+        } finally {
+            gzip.close();
+        }
+
+        List<Payload> compressed = new ArrayList<Payload>(gzip.output.size());
+        for (ByteBuffer buffer : gzip.output)
+            compressed.add(Payload.of(buffer));
+        response.replaceBody("gzip", compressed);
+    }
+
+    /**
+     * The gzip encoding of the remaining bytes of the buffer, as a single heap buffer. The source
+     * buffer's position is left untouched.
+     */
+    ByteBuffer compress(ByteBuffer source) throws IOException {
+        GzipChannel gzip = new GzipChannel();
+        try {
+            gzip.write(source.duplicate());
+            gzip.finish();
+        } finally {
+            gzip.close();
+        }
+
+        int size = 0;
+        for (ByteBuffer buffer : gzip.output)
+            size += buffer.remaining();
+        ByteBuffer result = ByteBuffer.allocate(size);
+        for (ByteBuffer buffer : gzip.output)
+            result.put(buffer);
+        result.flip();
+        return result;
+    }
+
+    private Deflater acquireDeflater() {
+        Deflater deflater = m_deflaters.poll();
+        if (deflater == null)
+            return new Deflater(m_level, true);
+        m_idleDeflaters.decrementAndGet();
+        return deflater;
+    }
+
+    private void releaseDeflater(Deflater deflater) {
+        deflater.reset();
+        if (m_idleDeflaters.incrementAndGet() <= MAX_IDLE_DEFLATERS) {
+            m_deflaters.add(deflater);
+        } else {
+            m_idleDeflaters.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    /**
+     * The gzip encoding of a body, produced piece by piece. Every call feeds the Deflater at most one
+     * chunk of input, so a piece costs a bounded amount of work and memory, however large the body.
+     * Payloads are released as soon as they have been deflated.
+     */
+    private final class GzipSource implements StreamPayload.Source {
+        private final List<Payload> m_payloads;
+        private final GzipChannel m_gzip = new GzipChannel();
+        private int m_next = 0;
+        private boolean m_finished = false;
+
+        GzipSource(List<Payload> payloads) {
+            m_payloads = payloads;
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            while (m_gzip.output.isEmpty()) {
+                if (m_finished)
+                    return null;
+                if (m_next < m_payloads.size()) {
+                    m_gzip.budget = CHUNK_SIZE;
+                    Payload payload = m_payloads.get(m_next);
+                    if (payload.writeTo(m_gzip)) {
+                        payload.release();
+                        ++m_next;
+                    }
+                } else {
+                    m_gzip.finish();
+                    m_finished = true;
+                }
+            }
+            return m_gzip.output.remove(0);
+        }
+
+        @Override
+        public void close() {
+            for (int i = m_next; i < m_payloads.size(); ++i)
+                m_payloads.get(i).release();
+            m_next = m_payloads.size();
+            m_gzip.close();
+        }
+    }
+
+    /**
+     * A channel deflating whatever is written to it into a list of output chunks, framed as gzip. Any
+     * payload can write itself into it, so file regions and mappings are compressed the same way as
+     * buffers. The Deflater is only given arrays, as the ByteBuffer variants need Java 11.
+     */
+    private final class GzipChannel implements GatheringByteChannel {
+        final ArrayList<ByteBuffer> output = new ArrayList<ByteBuffer>();
+        // Bytes the channel still accepts, after which writes take nothing until it is raised again
+        long budget = Long.MAX_VALUE;
+        private final byte[] input = new byte[CHUNK_SIZE];
+        private final CRC32 crc = new CRC32();
+        private Deflater deflater = acquireDeflater();
+        private byte[] chunk = new byte[CHUNK_SIZE];
+        private int chunkLength = 0;
+        private long size = 0;
+
+        GzipChannel() {
+            System.arraycopy(GZIP_HEADER, 0, chunk, 0, GZIP_HEADER.length);
+            chunkLength = GZIP_HEADER.length;
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            int written = 0;
+            while (source.hasRemaining() && budget > 0) {
+                int length = (int) Math.min(Math.min(source.remaining(), input.length), budget);
+                budget -= length;
+                written += length;
+                source.get(input, 0, length);
+                crc.update(input, 0, length);
+                size += length;
+
+                deflater.setInput(input, 0, length);
+                while (!deflater.needsInput())
+                    deflate();
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            long written = 0;
+            for (int i = offset; i < offset + length; ++i)
+                written += write(sources[i]);
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        void finish() {
+            deflater.finish();
+            while (!deflater.finished())
+                deflate();
+
+            byte[] trailer = new byte[8];
+            writeIntLE(trailer, 0, (int) crc.getValue());
+            writeIntLE(trailer, 4, (int) size);
+            for (byte b : trailer) {
+                if (chunkLength == chunk.length)
+                    nextChunk();
+                chunk[chunkLength++] = b;
+            }
+            output.add(ByteBuffer.wrap(chunk, 0, chunkLength));
+            chunk = null;
+        }
+
+        private void deflate() {
+            if (chunkLength == chunk.length)
+                nextChunk();
+            chunkLength += deflater.deflate(chunk, chunkLength, chunk.length - chunkLength);
+        }
+
+        private void nextChunk() {
+            output.add(ByteBuffer.wrap(chunk, 0, chunkLength));
+            chunk = new byte[CHUNK_SIZE];
+            chunkLength = 0;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return deflater != null;
+        }
+
+        @Override
+        public void close() {
+            if (deflater != null) {
+                releaseDeflater(deflater);
+                deflater = null;
+            }
+        }
+    }
+
+    private static void writeIntLE(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+}
@@ -0,0 +1,663 @@
+package org.andlon.simpleweb;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * A single client connection, driven by the selector of the ConnectionPool it is registered with.
+ * The connection is only touched when its channel is reported ready.
+ *
+ * The read buffer and request builder are borrowed from the pool while a request is in flight and
+ * given back as soon as the connection is idle again, so an idle keep-alive connection holds neither.
+ */
+class Connection {
+    private static final int READ_BUFFER_SIZE = 8192;
+    // Pipelined requests are not parsed further while this many payloads are waiting to be written
+    private static final int MAX_PENDING = 64;
+    static final ByteBuffer CONTINUE =
+            ByteBuffer.wrap("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)).asReadOnlyBuffer();
+
+    private final SocketChannel m_channel;
+    // Limits the client this connection belongs to, or null
+    private final ClientLimiter m_limiter;
+    private final long m_client;
+    // Whether the current request has been counted against the client's rate
+    private boolean m_admitted = false;
+    private ByteBuffer m_readBuffer;
+    private final ArrayDeque<Payload> m_pending = new ArrayDeque<Payload>();
+    private ConnectionPool m_pool;
+    private RequestHandler m_handler;
+    private SelectionKey m_key;
+    private final TimerWheel.Timer m_timer = new TimerWheel.Timer(this::onTimeout);
+    private Phase m_phase;
+    private boolean m_closeAfterWrite = false;
+    // Set while a request is with a handler on another thread
+    private boolean m_handling = false;
+    private HttpRequestBuilder m_builder;
+    // When the current request started arriving, and the time spent parsing it so far
+    private long m_requestStart;
+    private long m_parseTime;
+    // Handed to body consumers, may be run from any thread
+    private final Runnable m_resume = () -> m_pool.execute(this::resumeBody);
+    // Handed to streamed payloads waiting for data, run from the thread producing it
+    private final Runnable m_dataReady = () -> m_pool.execute(this::onDataReady);
+
+    /**
+     * What the connection is waiting for, which decides the timeout that applies.
+     */
+    private enum Phase {
+        // The next request to begin, the deadline is set once on entering the phase
+        IDLE(ServerMetrics.Timeout.IDLE),
+        // The rest of the request line and headers, also set once so that trickling bytes do not extend it
+        HEADERS(ServerMetrics.Timeout.HEADERS),
+        // More of the request body, extended whenever some of it arrives
+        BODY(ServerMetrics.Timeout.BODY),
+        // The body consumer to ask for more, which is not up to the client, so there is no deadline
+        PAUSED(null),
+        // A handler running on another thread, which is not up to the client either
+        HANDLING(null),
+        // The client to accept more of the response, extended whenever a write makes progress
+        WRITING(ServerMetrics.Timeout.WRITE);
+
+        // How a timeout in this phase is counted
+        final ServerMetrics.Timeout timeout;
+
+        Phase(ServerMetrics.Timeout timeout) {
+            this.timeout = timeout;
+        }
+    }
+
+    private Connection(SocketChannel channel, ClientLimiter limiter, long client) {
+        m_channel = channel;
+        m_limiter = limiter;
+        m_client = client;
+    }
+
+    static public Connection fromChannel(SocketChannel channel) {
+        return new Connection(channel, null, 0);
+    }
+
+    /**
+     * A connection counted against its client's limits, which have already admitted it.
+     * @param client the key of the client, see ClientLimiter.key()
+     */
+    static Connection fromChannel(SocketChannel channel, ClientLimiter limiter, long client) {
+        return new Connection(channel, limiter, client);
+    }
+
+    public void register(ConnectionPool pool, Selector selector) throws IOException {
+        m_pool = pool;
+        m_handler = pool.handler();
+        m_channel.configureBlocking(false);
+        m_key = m_channel.register(selector, SelectionKey.OP_READ, this);
+        updateTimeout();
+    }
+
+    public boolean isOpen() {
+        return m_channel.isOpen();
+    }
+
+    public void disconnect() {
+        if (!m_channel.isOpen())
+            return;
+
+        if (m_key != null)
+            m_key.cancel();
+        if (m_pool != null)
+            m_pool.timers().cancel(m_timer);
+
+        try {
+            m_channel.close();
+        } catch (IOException e) { }
+
+        for (Payload payload : m_pending)
+            payload.release();
+        m_pending.clear();
+
+        if (m_builder != null && m_builder.isReadingBody() && m_builder.bodyConsumer() != null)
+            m_builder.bodyConsumer().onAbort();
+        // A handler thread may still be looking at the request, so its builder is left alone
+        if (!m_handling)
+            releaseBuilder();
+        releaseReadBuffer();
+
+        if (m_limiter != null)
+            m_limiter.disconnected(m_client);
+        if (m_pool != null) {
+            m_pool.metrics().connectionClosed();
+            m_pool.onDisconnected(this);
+        }
+    }
+
+    /**
+     * Closes the connection if it is between requests, for a pool that is shutting down. A busy
+     * connection closes after answering the requests its client has sent, see keepAlive().
+     */
+    void closeIfIdle() {
+        if (m_pending.isEmpty() && !m_handling && (m_builder == null || !m_builder.isStarted())
+                && (m_readBuffer == null || m_readBuffer.position() == 0))
+            disconnect();
+    }
+
+    /**
+     * Gives the read buffer and builder back to the pool if they hold nothing of a request.
+     */
+    private void releaseIfIdle() {
+        if (m_readBuffer != null && m_readBuffer.position() == 0)
+            releaseReadBuffer();
+        if (m_builder != null && !m_builder.isStarted() && !m_handling)
+            releaseBuilder();
+    }
+
+    private void releaseReadBuffer() {
+        if (m_readBuffer != null) {
+            m_pool.buffers().release(m_readBuffer);
+            m_readBuffer = null;
+        }
+    }
+
+    private void releaseBuilder() {
+        if (m_builder != null) {
+            m_pool.releaseBuilder(m_builder);
+            m_builder = null;
+        }
+    }
+
+    private boolean isPaused() {
+        return m_builder != null && m_builder.isPaused();
+    }
+
+    private void onTimeout() {
+        if (m_phase != null && m_phase.timeout != null)
+            m_pool.metrics().timeout(m_phase.timeout);
+        disconnect();
+    }
+
+    /**
+     * Moves the connection's timer to the deadline of the phase it is in. Called after every event,
+     * it only touches the timer wheel when the phase changes or the phase is extended by activity.
+     */
+    private void updateTimeout() {
+        Phase phase;
+        long timeout;
+        if (!m_pending.isEmpty() || m_closeAfterWrite) {
+            phase = Phase.WRITING;
+            timeout = m_pool.idleTimeout();
+        } else if (m_handling) {
+            phase = Phase.HANDLING;
+            timeout = 0;
+        } else if (isPaused()) {
+            phase = Phase.PAUSED;
+            timeout = 0;
+        } else if (m_builder != null && m_builder.isReadingBody()) {
+            phase = Phase.BODY;
+            timeout = m_pool.bodyTimeout();
+        } else if (m_builder != null && m_builder.isStarted()) {
+            phase = Phase.HEADERS;
+            timeout = m_pool.headerTimeout();
+        } else {
+            phase = Phase.IDLE;
+            timeout = m_pool.idleTimeout();
+        }
+
+        if (phase == m_phase && (phase == Phase.IDLE || phase == Phase.HEADERS))
+            return;
+        m_phase = phase;
+
+        if (timeout > 0)
+            m_pool.timers().schedule(m_timer, m_pool.now() + timeout);
+        else
+            m_pool.timers().cancel(m_timer);
+    }
+
+    /**
+     * Called by the pool when the selector reports the channel as readable. Drains the socket and
+     * answers every complete request found in what was read, including pipelined ones. The responses
+     * are queued in order and flushed together once everything available has been parsed.
+     */
+    public void onReadable() {
+        try {
+            while (!m_closeAfterWrite) {
+                if (m_readBuffer == null)
+                    m_readBuffer = m_pool.buffers().acquire(READ_BUFFER_SIZE);
+                int read = m_channel.read(m_readBuffer);
+                if (read < 0) {
+                    // Orderly shutdown from the client, finish what it asked for and close
+                    m_closeAfterWrite = true;
+                    break;
+                }
+                if (read == 0)
+                    break;
+
+                m_pool.metrics().bytesIn(read);
+                if (!processRequests())
+                    break;
+            }
+
+            flush();
+            if (isOpen()) {
+                updateTimeout();
+                releaseIfIdle();
+            }
+        } catch (IOException e) {
+            disconnect();
+        } catch (MalformedRequestException e) {
+            reject(e);
+            onWritable();
+        }
+    }
+
+    /**
+     * Called by the pool when the selector reports the channel as writable again after a write
+     * could not be completed.
+     */
+    public void onWritable() {
+        try {
+            flush();
+            if (isOpen()) {
+                updateTimeout();
+                releaseIfIdle();
+            }
+        } catch (IOException e) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Continues writing a stream that has more data, on the loop thread.
+     */
+    private void onDataReady() {
+        if (isOpen())
+            onWritable();
+    }
+
+    /**
+     * Continues reading a body after its consumer paused, on the loop thread.
+     */
+    private void resumeBody() {
+        if (isOpen() && isPaused()) {
+            m_builder.resume();
+            onReadable();
+        }
+    }
+
+    /**
+     * Parses the read buffer, queueing a response for every complete request.
+     * @return false if parsing stopped early because too much output is waiting to be written, the
+     * body consumer paused or the connection is about to close, true if the whole buffer was consumed.
+     */
+    private boolean processRequests() throws IOException, MalformedRequestException {
+        if (m_builder == null)
+            m_builder = m_pool.acquireBuilder();
+        m_readBuffer.flip();
+        try {
+            while (m_readBuffer.hasRemaining() && !m_handling) {
+                if (m_closeAfterWrite) {
+                    m_readBuffer.position(m_readBuffer.limit());
+                    return false;
+                }
+                if (m_pending.size() >= MAX_PENDING)
+                    return false;
+
+                long start = System.nanoTime();
+                if (!m_builder.isStarted()) {
+                    m_requestStart = start;
+                    m_parseTime = 0;
+                }
+                try {
+                    m_builder.add(m_readBuffer);
+                } catch (UncheckedIOException e) {
+                    // The body consumer failed
+                    m_pool.metrics().handlerError();
+                    e.printStackTrace();
+                    fail(500);
+                    continue;
+                } finally {
+                    m_parseTime += System.nanoTime() - start;
+                }
+
+                // Counted once the headers are in, so a client over its rate cannot send a body either
+                if (!m_admitted && (m_builder.needsBodyConsumer() || m_builder.isComplete())) {
+                    m_admitted = true;
+                    // The loop's clock is a millisecond reading of System.nanoTime(), precise enough for a rate
+                    if (m_limiter != null && !m_limiter.tryRequest(m_client, m_pool.now() * 1000000)) {
+                        limit();
+                        return false;
+                    }
+                }
+
+                if (m_builder.needsBodyConsumer()) {
+                    startBody(m_builder.request());
+                    continue;
+                }
+                if (m_builder.isPaused())
+                    return false;
+                if (!m_builder.isComplete())
+                    return true;
+
+                m_pool.metrics().parseTime().record(m_parseTime);
+                HttpRequest request = m_builder.request();
+                if (m_pool.dispatcher() != null) {
+                    dispatch(request);
+                    return false;
+                }
+                HttpResponse response = invoke(m_handler, request, m_pool.metrics());
+                Compressor compressor = m_pool.compressor();
+                if (compressor != null && compressor.prepare(request, response)) {
+                    compress(request, response);
+                    return false;
+                }
+                send(request, response, keepAlive(request, m_readBuffer.hasRemaining()));
+                finishRequest(request);
+            }
+            return !m_handling;
+        } finally {
+            m_readBuffer.compact();
+        }
+    }
+
+    /**
+     * Sets up the consumer of a body whose headers have just been parsed. Unless the handler wants to
+     * stream the body, the server collects it.
+     */
+    private void startBody(HttpRequest request) {
+        BodyConsumer consumer;
+        try {
+            consumer = m_handler.bodyConsumer(request, m_resume);
+        } catch (IOException | RuntimeException e) {
+            m_pool.metrics().handlerError();
+            e.printStackTrace();
+            fail(500);
+            return;
+        }
+        m_builder.body(consumer != null ? consumer : m_pool.createRequestBody());
+
+        // Clients waiting for permission to send the body get it right away
+        if (expectsContinue(request))
+            m_pending.add(Payload.of(CONTINUE.duplicate()));
+    }
+
+    /**
+     * Answers a request that could not be parsed and closes the connection once the answer and any
+     * responses queued before it are written. The stream cannot be resynchronised after an error, so
+     * whatever else the client sent is dropped.
+     */
+    private void reject(MalformedRequestException e) {
+        m_pool.metrics().malformedRequest(e);
+        if (m_builder.isReadingBody() && m_builder.bodyConsumer() != null)
+            m_builder.bodyConsumer().onAbort();
+        m_builder.body(null);
+        m_pending.add(Payload.of(HttpResponse.rejection(e.reason().status())));
+        m_closeAfterWrite = true;
+        m_readBuffer.clear();
+    }
+
+    /**
+     * Answers a request of a client over its rate with 429 Too Many Requests, and closes the connection
+     * once the answer and any responses queued before it are written. Whatever else the client sent
+     * is dropped unread.
+     */
+    private void limit() {
+        m_pool.metrics().requestLimited();
+        m_pending.add(Payload.of(HttpResponse.rejection(429)));
+        m_closeAfterWrite = true;
+        m_readBuffer.position(m_readBuffer.limit());
+    }
+
+    static boolean expectsContinue(HttpRequest request) {
+        return "HTTP/1.1".equals(request.version()) && "100-continue".equalsIgnoreCase(request.header(HttpHeader.EXPECT));
+    }
+
+    /**
+     * Answers the current request with an error and closes the connection, since the rest of the
+     * request cannot be skipped reliably.
+     */
+    private void fail(int status) {
+        if (m_builder.isReadingBody() && m_builder.bodyConsumer() != null)
+            m_builder.bodyConsumer().onAbort();
+        m_builder.body(null);
+        send(m_builder.request(), HttpResponse.error(status), false);
+    }
+
+    private void finishRequest(HttpRequest request) {
+        if (request.content() != null)
+            request.content().discard();
+        m_pool.metrics().requestTime().record(System.nanoTime() - m_requestStart);
+        m_builder.reset();
+        m_admitted = false;
+        // The next request gets a header deadline of its own
+        m_phase = null;
+    }
+
+    /**
+     * Hands the request to a handler thread. The connection stops parsing until the response is back,
+     * which keeps the responses to pipelined requests in order.
+     */
+    private void dispatch(HttpRequest request) {
+        m_handling = true;
+        m_pool.dispatcher().execute(() -> {
+            HttpResponse response = invoke(m_handler, request, m_pool.metrics());
+            Compressor compressor = m_pool.compressor();
+            HttpResponse encoded = compressor != null && compressor.prepare(request, response)
+                    ? compress(compressor, request, response) : response;
+            m_pool.execute(() -> onHandled(request, encoded));
+        });
+    }
+
+    /**
+     * Has the compressor's threads encode the body of a response produced on the loop. Like a
+     * dispatched request, the connection stops parsing until the response is back.
+     */
+    private void compress(HttpRequest request, HttpResponse response) {
+        m_handling = true;
+        Compressor compressor = m_pool.compressor();
+        compressor.execute(() -> {
+            HttpResponse encoded = compress(compressor, request, response);
+            m_pool.execute(() -> onHandled(request, encoded));
+        });
+    }
+
+    /**
+     * Compresses the body of the response, turning failures into 500 Internal Server Error.
+     */
+    static HttpResponse compress(Compressor compressor, HttpRequest request, HttpResponse response) {
+        try {
+            compressor.compress(request, response);
+            return response;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            response.discardBody();
+            return HttpResponse.error(500);
+        }
+    }
+
+    /**
+     * Sends the response of a dispatched or compressed request, on the loop thread.
+     */
+    private void onHandled(HttpRequest request, HttpResponse response) {
+        if (!isOpen()) {
+            response.discardBody();
+            if (request.content() != null)
+                request.content().discard();
+            m_handling = false;
+            releaseBuilder();
+            return;
+        }
+
+        m_handling = false;
+        send(request, response, keepAlive(request, m_readBuffer != null && m_readBuffer.position() > 0));
+        finishRequest(request);
+        // Carry on with whatever arrived in the meantime
+        onReadable();
+    }
+
+    /**
+     * Calls the handler, turning failures into 500 Internal Server Error.
+     */
+    static HttpResponse invoke(RequestHandler handler, HttpRequest request, ServerMetrics metrics) {
+        long start = System.nanoTime();
+        try {
+            return handler.handle(request);
+        } catch (IOException | RuntimeException e) {
+            metrics.handlerError();
+            e.printStackTrace();
+            return HttpResponse.error(500);
+        } finally {
+            metrics.handlerTime().record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Whether the connection stays open after answering the request. While the pool shuts down, only
+     * what the client has already sent is answered, and the last response closes the connection.
+     * @param moreInput whether more of the client's input is buffered
+     */
+    private boolean keepAlive(HttpRequest request, boolean moreInput) {
+        return isKeepAlive(request) && (moreInput || !m_pool.isDraining());
+    }
+
+    /**
+     * HTTP/1.1 connections persist unless either side asks to close them, HTTP/1.0 connections
+     * only persist when the client asks for it.
+     */
+    static boolean isKeepAlive(HttpRequest request) {
+        String connection = request.header(HttpHeader.CONNECTION);
+        if ("HTTP/1.1".equals(request.version()))
+            return connection == null || !containsToken(connection, "close");
+        return connection != null && containsToken(connection, "keep-alive");
+    }
+
+    /**
+     * Whether one of the elements of the comma-separated list is the token, ignoring case and the
+     * whitespace around the elements. The list is scanned where it is, as it is on every request.
+     */
+    private static boolean containsToken(String list, String token) {
+        int length = list.length();
+        for (int start = 0; start <= length; ) {
+            int end = list.indexOf(',', start);
+            if (end < 0)
+                end = length;
+            int first = start;
+            int last = end;
+            while (first < last && isOptionalWhitespace(list.charAt(first)))
+                ++first;
+            while (last > first && isOptionalWhitespace(list.charAt(last - 1)))
+                --last;
+            if (last - first == token.length() && list.regionMatches(true, first, token, 0, last - first))
+                return true;
+            start = end + 1;
+        }
+        return false;
+    }
+
+    private static boolean isOptionalWhitespace(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private void send(HttpRequest request, HttpResponse response, boolean keepAlive) {
+        // Without chunked encoding, only closing the connection tells where a streamed body ends
+        if (response.isStreamed() && !response.isChunked())
+            keepAlive = false;
+        m_pending.add(Payload.ofPooled(response.encodeHead(keepAlive, m_pool.buffers()), m_pool.buffers()));
+        if (response.entityHead() != null)
+            m_pending.add(Payload.of(response.entityHead()));
+        if (request.type() == HttpRequest.Type.HEAD || !response.hasBody())
+            response.discardBody();
+        else
+            m_pending.addAll(response.payloads());
+
+        if (!keepAlive)
+            m_closeAfterWrite = true;
+    }
+
+    /**
+     * Writes pending payloads until they are all sent or the socket buffer is full. Consecutive
+     * in-memory payloads, such as the header blocks and small bodies of pipelined responses, go out
+     * in a single gathering write.
+     *
+     * While output is backed up the connection stops reading, so a client that pipelines requests
+     * without reading the responses cannot make the server buffer without bound.
+     */
+    private void flush() throws IOException {
+        ByteBuffer[] gather = m_pool.gatherBuffers();
+        while (!m_pending.isEmpty()) {
+            int count = 0;
+            for (Payload payload : m_pending) {
+                ByteBuffer buffer = payload.buffer();
+                if (buffer == null || count == gather.length)
+                    break;
+                gather[count++] = buffer;
+            }
+
+            boolean complete;
+            if (count > 0) {
+                m_pool.metrics().bytesOut(m_channel.write(gather, 0, count));
+                for (int i = 0; i < count; ++i)
+                    gather[i] = null;
+                complete = releaseWritten();
+            } else {
+                Payload payload = m_pending.peek();
+                long written = payload.written();
+                complete = payload.writeTo(m_channel);
+                m_pool.metrics().bytesOut(payload.written() - written);
+                if (complete) {
+                    m_pending.poll().release();
+                } else if (payload.awaitData(m_dataReady)) {
+                    // A stream waiting for its source, which wakes the connection once it has more
+                    m_key.interestOps(0);
+                    return;
+                }
+            }
+
+            if (!complete) {
+                // Wait for the kernel to report the socket as writable before trying again
+                m_key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+
+        if (m_closeAfterWrite && !m_handling) {
+            disconnect();
+            return;
+        }
+
+        // Requests left in the read buffer while output was backed up can be served now
+        if (m_readBuffer != null && m_readBuffer.position() > 0 && !isPaused() && !m_handling) {
+            try {
+                processRequests();
+            } catch (MalformedRequestException e) {
+                reject(e);
+            }
+            if (!m_pending.isEmpty() || m_closeAfterWrite) {
+                flush();
+                return;
+            }
+        }
+
+        // A paused body is not read until its consumer asks for more, nor is the next request while
+        // a handler thread works on this one
+        m_key.interestOps(isPaused() || m_handling ? 0 : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Removes fully written in-memory payloads from the head of the queue.
+     * @return true if no partially written in-memory payload remains at the head.
+     */
+    private boolean releaseWritten() {
+        while (!m_pending.isEmpty()) {
+            Payload payload = m_pending.peek();
+            if (payload.buffer() == null)
+                return true;
+            if (payload.remaining() > 0)
+                return false;
+            m_pending.poll().release();
+        }
+        return true;
+    }
+}
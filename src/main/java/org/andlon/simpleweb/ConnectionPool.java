@@ -0,0 +1,343 @@
+package org.andlon.simpleweb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event loop servicing a set of connections. All connections are registered with a single
+ * Selector, and the loop blocks in select() until the kernel reports one of them as ready,
+ * so an idle pool costs no CPU.
+ *
+ * Other threads hand the loop new connections and tasks through lock-free queues. Waking the loop
+ * costs a system call, so producers only wake it when nobody has since it last went to sleep, and a
+ * storm of new connections costs one wakeup per round of the loop rather than one per connection.
+ *
+ * Timeouts are kept on a timer wheel owned by the loop. The loop reads the clock once per
+ * iteration, and connections use that cached time for their activity and deadlines.
+ *
+ * Shutting down drains the pool: idle connections are closed right away, busy ones once they have
+ * answered what their clients already sent, and the loop ends with the last connection.
+ */
+class ConnectionPool {
+    // Resolution of the timer wheel and, while timers are pending, the longest the loop sleeps
+    private static final long TICK_MILLISECONDS = 100;
+    // 512 ticks of 100 ms cover the default timeouts without timers wrapping around the wheel
+    private static final int WHEEL_SLOTS = 512;
+    // Upper bound on the number of buffers combined into one gathering write
+    private static final int MAX_GATHER = 64;
+    // Idle request builders kept for reuse, enough for the requests in flight at any one time
+    private static final int MAX_IDLE_BUILDERS = 256;
+
+    private final Selector m_selector;
+    private final RequestHandler m_handler;
+    private final HandlerDispatcher m_dispatcher;
+    private final BufferPool m_buffers;
+    private final ServerMetrics m_metrics;
+    private final Compressor m_compressor;
+    private final ArrayDeque<HttpRequestBuilder> m_builders = new ArrayDeque<HttpRequestBuilder>();
+    private final ByteBuffer[] m_gather = new ByteBuffer[MAX_GATHER];
+    private final long m_idleTimeout;
+    private final long m_headerTimeout;
+    private final long m_bodyTimeout;
+    private final int m_bodyMemoryThreshold;
+    private final Path m_bodySpillDirectory;
+    // Request limits for the builders this pool creates
+    private final ServerConfig m_config;
+    private final MpscQueue<Runnable> m_tasks = new MpscQueue<Runnable>();
+    private final MpscQueue<Connection> m_newConnections = new MpscQueue<Connection>();
+    // Set once the loop has been woken, or is about to look at the queues anyway, until it sleeps again
+    private final AtomicBoolean m_wakeupPending = new AtomicBoolean();
+    private final TimerWheel m_timers;
+    private volatile long m_now;
+    private final ExecutorService m_executor;
+    private final AtomicInteger m_connectionCount = new AtomicInteger();
+    // Loop thread only
+    private boolean m_draining = false;
+    private boolean m_stopped = false;
+    private final CountDownLatch m_terminated = new CountDownLatch(1);
+
+    /**
+     * @param dispatcher runs handlers off the loop, or null to call them on the loop thread
+     * @param buffers supplies the read buffers of the connections
+     * @param metrics records what the connections do
+     * @param compressor compresses response bodies, or null to send them as they are
+     */
+    public ConnectionPool(int index, RequestHandler handler, ServerConfig config, HandlerDispatcher dispatcher,
+                          BufferPool buffers, ServerMetrics metrics, Compressor compressor) throws IOException {
+        m_handler = handler;
+        m_dispatcher = dispatcher;
+        m_buffers = buffers;
+        m_metrics = metrics;
+        m_compressor = compressor;
+        m_idleTimeout = config.idleTimeout();
+        m_headerTimeout = config.headerTimeout();
+        m_bodyTimeout = config.bodyTimeout();
+        m_bodyMemoryThreshold = config.bodyMemoryThreshold();
+        m_bodySpillDirectory = config.bodySpillDirectory();
+        m_config = config;
+        m_now = clock();
+        m_timers = new TimerWheel(WHEEL_SLOTS, TICK_MILLISECONDS, m_now);
+        m_selector = Selector.open();
+        m_executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "simpleweb-worker-" + index);
+            thread.setDaemon(true);
+            return thread;
+        });
+        m_executor.execute(this::loop);
+    }
+
+    public RequestHandler handler() {
+        return m_handler;
+    }
+
+    HandlerDispatcher dispatcher() {
+        return m_dispatcher;
+    }
+
+    BufferPool buffers() {
+        return m_buffers;
+    }
+
+    ServerMetrics metrics() {
+        return m_metrics;
+    }
+
+    Compressor compressor() {
+        return m_compressor;
+    }
+
+    /**
+     * Scratch array for gathering writes. Only to be used on the loop thread, and cleared after use.
+     */
+    ByteBuffer[] gatherBuffers() {
+        return m_gather;
+    }
+
+    /**
+     * A request builder for a connection that has started receiving a request. Loop thread only.
+     */
+    HttpRequestBuilder acquireBuilder() {
+        HttpRequestBuilder builder = m_builders.poll();
+        return builder != null ? builder : newBuilder(m_config);
+    }
+
+    /**
+     * A request builder enforcing the configured limits, without the cost of stack traces for
+     * rejected requests.
+     */
+    static HttpRequestBuilder newBuilder(ServerConfig config) {
+        return new HttpRequestBuilder()
+                .limits(config.maxRequestLineLength(), config.maxHeaderCount(), config.maxHeaderBytes(), config.maxBodySize())
+                .stackTraces(false);
+    }
+
+    void releaseBuilder(HttpRequestBuilder builder) {
+        builder.reset();
+        if (m_builders.size() < MAX_IDLE_BUILDERS)
+            m_builders.push(builder);
+    }
+
+    public long idleTimeout() { return m_idleTimeout; }
+
+    public long headerTimeout() { return m_headerTimeout; }
+
+    public long bodyTimeout() { return m_bodyTimeout; }
+
+    /**
+     * A new, empty RequestBody for a handler that lets the server collect the body.
+     */
+    RequestBody createRequestBody() {
+        return new RequestBody(m_bodyMemoryThreshold, m_bodySpillDirectory);
+    }
+
+    /**
+     * Runs the task on the loop thread. May be called from any thread.
+     */
+    void execute(Runnable task) {
+        m_tasks.offer(task);
+        wakeup();
+    }
+
+    /**
+     * Wakes the loop unless it has been woken already. Must follow the offer to a queue, see iterate().
+     */
+    private void wakeup() {
+        if (!m_wakeupPending.getAndSet(true))
+            m_selector.wakeup();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = m_tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The loop's cached time in milliseconds, read once per iteration. Other threads see a reading no
+     * later than the one the loop works with.
+     */
+    long now() {
+        return m_now;
+    }
+
+    TimerWheel timers() {
+        return m_timers;
+    }
+
+    private static long clock() {
+        // Monotonic, so that changes to the wall clock neither fire nor postpone timeouts
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Number of connections handed to this pool that have not yet been closed.
+     */
+    public int connectionCount() {
+        return m_connectionCount.get();
+    }
+
+    void onDisconnected(Connection connection) {
+        if (m_connectionCount.decrementAndGet() == 0 && m_draining)
+            m_stopped = true;
+    }
+
+    /**
+     * Whether the pool is shutting down, in which case connections close as soon as they are idle.
+     * Loop thread only.
+     */
+    boolean isDraining() {
+        return m_draining;
+    }
+
+    /**
+     * Starts draining the pool. May be called from any thread, see awaitTermination().
+     */
+    void shutdown() {
+        execute(() -> {
+            m_draining = true;
+            for (Connection connection : connections())
+                connection.closeIfIdle();
+            if (m_connectionCount.get() == 0)
+                m_stopped = true;
+        });
+    }
+
+    /**
+     * Closes all connections, whatever they are doing, and ends the loop. May be called from any thread.
+     */
+    void close() {
+        execute(() -> {
+            for (Connection connection : connections())
+                connection.disconnect();
+            m_stopped = true;
+        });
+    }
+
+    /**
+     * Waits for the loop to end.
+     * @param deadline the System.nanoTime() up to which to wait
+     * @return whether the loop ended in time
+     */
+    boolean awaitTermination(long deadline) throws InterruptedException {
+        return m_terminated.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    private ArrayList<Connection> connections() {
+        registerNewConnections();
+        ArrayList<Connection> connections = new ArrayList<Connection>(m_selector.keys().size());
+        for (SelectionKey key : m_selector.keys()) {
+            if (key.isValid())
+                connections.add((Connection) key.attachment());
+        }
+        return connections;
+    }
+
+    /**
+     * Hands a connection to the loop. May be called from any thread.
+     */
+    public void add(Connection connection) {
+        m_connectionCount.incrementAndGet();
+        m_newConnections.offer(connection);
+        wakeup();
+    }
+
+    /**
+     * Registers the connections handed over since the last round, and reads from them right away,
+     * since a client usually sends its request together with the end of the handshake.
+     */
+    private void registerNewConnections() {
+        Connection connection;
+        while ((connection = m_newConnections.poll()) != null) {
+            try {
+                connection.register(this, m_selector);
+            } catch (IOException e) {
+                connection.disconnect();
+                continue;
+            }
+            connection.onReadable();
+        }
+    }
+
+    private void loop() {
+        try {
+            while (!m_stopped)
+                iterate();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                m_selector.close();
+            } catch (IOException e) { }
+            m_executor.shutdown();
+            m_terminated.countDown();
+        }
+    }
+
+    private void iterate() throws IOException {
+        // Cleared before the queues are checked, so that whatever is offered after the check wakes the
+        // loop, and whatever was offered before it is seen without sleeping
+        m_wakeupPending.set(false);
+        // Without pending timers there is nothing to wake up for
+        long timeout = m_timers.size() > 0 ? TICK_MILLISECONDS : 0;
+        if (!m_tasks.isEmpty() || !m_newConnections.isEmpty())
+            m_selector.selectNow();
+        else
+            m_selector.select(timeout);
+        m_wakeupPending.set(true);
+
+        m_now = clock();
+        registerNewConnections();
+        runTasks();
+
+        Iterator<SelectionKey> i = m_selector.selectedKeys().iterator();
+        while (i.hasNext()) {
+            SelectionKey key = i.next();
+            i.remove();
+
+            Connection connection = (Connection) key.attachment();
+            if (key.isValid() && key.isWritable())
+                connection.onWritable();
+            if (key.isValid() && key.isReadable())
+                connection.onReadable();
+        }
+
+        m_timers.advance(m_now);
+    }
+}
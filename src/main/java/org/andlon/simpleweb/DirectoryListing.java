@@ -0,0 +1,134 @@
+package org.andlon.simpleweb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * Renders the HTML index of a directory a piece at a time, reading the directory through a
+ * DirectoryStream as it goes, so even a directory of a hundred thousand files never has its whole
+ * listing in memory. Entries are listed in the order the file system returns them, since sorting would
+ * take all of them at once. Hidden entries, whose names start with a dot, are left out.
+ *
+ * A listing that turns out to be small enough is collected on the way and handed to a consumer once
+ * complete, for caching.
+ */
+final class DirectoryListing implements StreamPayload.Source {
+    // Rendered text handed out per piece
+    private static final int PIECE_SIZE = 16 * 1024;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final Path m_directory;
+    private final String m_uriPath;
+    private final int m_collectLimit;
+    private final Consumer<ByteBuffer> m_onComplete;
+    private final StringBuilder m_text = new StringBuilder(PIECE_SIZE + 1024);
+    private DirectoryStream<Path> m_stream;
+    private Iterator<Path> m_entries;
+    private ByteArrayOutputStream m_collected;
+    private boolean m_done = false;
+
+    /**
+     * @param uriPath the decoded path the directory was requested under, ending in a slash
+     * @param collectLimit largest listing to collect for the consumer, 0 for none
+     * @param onComplete gets the complete listing if it is no larger than the limit, or null
+     */
+    DirectoryListing(Path directory, String uriPath, int collectLimit, Consumer<ByteBuffer> onComplete) {
+        m_directory = directory;
+        m_uriPath = uriPath;
+        m_collectLimit = collectLimit;
+        m_onComplete = onComplete;
+        if (collectLimit > 0 && onComplete != null)
+            m_collected = new ByteArrayOutputStream();
+    }
+
+    @Override
+    public ByteBuffer next() throws IOException {
+        if (m_done)
+            return null;
+
+        m_text.setLength(0);
+        if (m_stream == null) {
+            m_stream = Files.newDirectoryStream(m_directory);
+            m_entries = m_stream.iterator();
+            String title = escape(m_uriPath);
+            m_text.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>Index of ").append(title)
+                    .append("</title></head>\n<body>\n<h1>Index of ").append(title).append("</h1>\n<ul>\n");
+            if (!m_uriPath.equals("/"))
+                m_text.append("<li><a href=\"../\">../</a></li>\n");
+        }
+
+        while (m_text.length() < PIECE_SIZE && m_entries.hasNext()) {
+            Path entry = m_entries.next();
+            String name = entry.getFileName().toString();
+            if (name.startsWith("."))
+                continue;
+            String suffix = Files.isDirectory(entry) ? "/" : "";
+            m_text.append("<li><a href=\"");
+            appendEncoded(m_text, name);
+            m_text.append(suffix).append("\">").append(escape(name)).append(suffix).append("</a></li>\n");
+        }
+
+        if (!m_entries.hasNext()) {
+            m_text.append("</ul>\n</body></html>\n");
+            m_done = true;
+        }
+
+        byte[] piece = m_text.toString().getBytes(StandardCharsets.UTF_8);
+        collect(piece);
+        return ByteBuffer.wrap(piece);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (m_stream != null)
+            m_stream.close();
+    }
+
+    private void collect(byte[] piece) {
+        if (m_collected == null)
+            return;
+        if (m_collected.size() + piece.length > m_collectLimit) {
+            m_collected = null;
+            return;
+        }
+        m_collected.write(piece, 0, piece.length);
+        if (m_done)
+            m_onComplete.accept(ByteBuffer.wrap(m_collected.toByteArray()));
+    }
+
+    /**
+     * Percent-encodes a file name for use as a relative link, as UTF-8.
+     */
+    private static void appendEncoded(StringBuilder text, String name) {
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xFF;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "-._~".indexOf(c) >= 0)
+                text.append((char) c);
+            else
+                text.append('%').append(HEX[c >> 4]).append(HEX[c & 0xF]);
+        }
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<': escaped.append("&lt;"); break;
+                case '>': escaped.append("&gt;"); break;
+                case '&': escaped.append("&amp;"); break;
+                case '"': escaped.append("&quot;"); break;
+                case '\'': escaped.append("&#39;"); break;
+                default: escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
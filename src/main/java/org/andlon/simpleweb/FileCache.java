@@ -0,0 +1,276 @@
+package org.andlon.simpleweb;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded cache of small, frequently requested files, shared by all event loops.
+ *
+ * Each entry holds the pre-encoded entity headers followed by the file contents in one direct
+ * buffer, so a hit is answered by writing duplicates of that buffer without any file I/O.
+ *
+ * Eviction follows W-TinyLFU: new entries enter a small LRU window, and an entry leaving the window
+ * only displaces an entry of the main segmented LRU if it has been requested more often, as
+ * estimated by a frequency sketch. A one-off scan over many files therefore cannot flush the
+ * popular ones out of the cache.
+ */
+public class FileCache {
+    // Share of the capacity given to the admission window and, of the rest, to the protected segment
+    private static final double WINDOW_SHARE = 0.01;
+    private static final double PROTECTED_SHARE = 0.8;
+    // Rough entry size, used to size the frequency sketch
+    private static final long TYPICAL_ENTRY_SIZE = 8 * 1024;
+
+    private final long m_capacity;
+    private final long m_maxEntrySize;
+    private final long m_windowCapacity;
+    private final long m_protectedCapacity;
+    private final HashMap<Object, Entry> m_entries = new HashMap<Object, Entry>();
+    private final FrequencySketch m_sketch;
+    private final Segment m_window = new Segment();
+    private final Segment m_probation = new Segment();
+    private final Segment m_protected = new Segment();
+
+    private final LongAdder m_hits = new LongAdder();
+    private final LongAdder m_misses = new LongAdder();
+    private final LongAdder m_evictions = new LongAdder();
+
+    /**
+     * @param capacity total number of bytes the cached entries may occupy
+     * @param maxEntrySize largest file that is considered for caching
+     */
+    public FileCache(long capacity, long maxEntrySize) {
+        m_capacity = capacity;
+        m_maxEntrySize = Math.min(maxEntrySize, capacity);
+        m_windowCapacity = Math.max(m_maxEntrySize, (long) (capacity * WINDOW_SHARE));
+        m_protectedCapacity = (long) ((capacity - m_windowCapacity) * PROTECTED_SHARE);
+        m_sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, capacity / TYPICAL_ENTRY_SIZE));
+    }
+
+    public long capacity() { return m_capacity; }
+
+    public long maxEntrySize() { return m_maxEntrySize; }
+
+    public long hits() { return m_hits.sum(); }
+
+    public long misses() { return m_misses.sum(); }
+
+    public long evictions() { return m_evictions.sum(); }
+
+    public synchronized long size() {
+        return m_window.bytes + m_probation.bytes + m_protected.bytes;
+    }
+
+    public synchronized int entryCount() {
+        return m_entries.size();
+    }
+
+    /**
+     * Looks up an entry, counting the access towards its popularity whether or not it is present.
+     * The caller is responsible for checking that the entry is still up to date.
+     */
+    synchronized Entry get(Object key) {
+        m_sketch.increment(key.hashCode());
+
+        Entry entry = m_entries.get(key);
+        if (entry == null) {
+            m_misses.increment();
+            return null;
+        }
+
+        m_hits.increment();
+        onAccess(entry);
+        return entry;
+    }
+
+    /**
+     * Offers an entry to the cache. Whether it stays depends on how popular it is compared to the
+     * entries it would displace.
+     */
+    synchronized void put(Entry entry) {
+        if (entry.weight() > m_maxEntrySize)
+            return;
+
+        Entry previous = m_entries.put(entry.key, entry);
+        if (previous != null)
+            unlink(previous);
+
+        m_window.addFirst(entry);
+        while (m_window.bytes > m_windowCapacity)
+            admit(m_window.removeLast());
+    }
+
+    /**
+     * Removes an entry, for instance because the file changed on disk.
+     */
+    synchronized void invalidate(Entry entry) {
+        if (m_entries.get(entry.key) == entry) {
+            m_entries.remove(entry.key);
+            unlink(entry);
+        }
+    }
+
+    private void onAccess(Entry entry) {
+        Segment segment = entry.segment;
+        if (segment == m_probation) {
+            // A second hit promotes the entry to the protected segment
+            m_probation.remove(entry);
+            m_protected.addFirst(entry);
+            while (m_protected.bytes > m_protectedCapacity)
+                m_probation.addFirst(m_protected.removeLast());
+        } else {
+            segment.moveToFront(entry);
+        }
+    }
+
+    /**
+     * Moves a candidate from the window into the main segments, evicting less popular entries to make room.
+     */
+    private void admit(Entry candidate) {
+        long mainCapacity = m_capacity - m_windowCapacity;
+        int candidateFrequency = m_sketch.frequency(candidate.key.hashCode());
+
+        while (m_probation.bytes + m_protected.bytes + candidate.weight() > mainCapacity) {
+            Entry victim = m_probation.last() != null ? m_probation.last() : m_protected.last();
+            if (victim == null || candidateFrequency <= m_sketch.frequency(victim.key.hashCode())) {
+                evict(candidate);
+                return;
+            }
+            victim.segment.remove(victim);
+            evict(victim);
+        }
+
+        m_probation.addFirst(candidate);
+    }
+
+    private void evict(Entry entry) {
+        m_entries.remove(entry.key);
+        m_evictions.increment();
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.segment != null)
+            entry.segment.remove(entry);
+    }
+
+    /**
+     * A cached file. The data buffer holds the encoded entity headers, including the empty line ending
+     * the header block, immediately followed by the file contents. It is never modified once created.
+     */
+    static final class Entry {
+        final Object key;
+        final Path path;
+        final ByteBuffer data;
+        final int headLength;
+        final long lastModified;
+        final long fileSize;
+        final String etag;
+        // The entity headers of a 304 Not Modified answer, encoded like those in data
+        private final ByteBuffer notModified;
+        // Time of the last check against the file system, see StaticFileHandler
+        volatile long validatedAt;
+
+        private Segment segment;
+        private Entry previous;
+        private Entry next;
+
+        Entry(Object key, Path path, ByteBuffer data, int headLength, long lastModified, long fileSize,
+              String etag, ByteBuffer notModified, long validatedAt) {
+            this.key = key;
+            this.path = path;
+            this.data = data;
+            this.headLength = headLength;
+            this.lastModified = lastModified;
+            this.fileSize = fileSize;
+            this.etag = etag;
+            this.notModified = notModified;
+            this.validatedAt = validatedAt;
+        }
+
+        long weight() {
+            return data.capacity();
+        }
+
+        /**
+         * A fresh view of the entity headers.
+         */
+        ByteBuffer head() {
+            ByteBuffer head = data.duplicate();
+            head.position(0).limit(headLength);
+            return head;
+        }
+
+        /**
+         * A fresh view of the entity headers for 304 Not Modified.
+         */
+        ByteBuffer notModifiedHead() {
+            return notModified.duplicate();
+        }
+
+        /**
+         * A fresh view of the file contents.
+         */
+        ByteBuffer body() {
+            ByteBuffer body = data.duplicate();
+            body.position(headLength);
+            return body;
+        }
+    }
+
+    /**
+     * Doubly linked LRU list of entries with the total weight of its members. The most recently used
+     * entry is first.
+     */
+    static private final class Segment {
+        private Entry first;
+        private Entry last;
+        private long bytes = 0;
+
+        Entry last() {
+            return last;
+        }
+
+        void addFirst(Entry entry) {
+            entry.segment = this;
+            entry.previous = null;
+            entry.next = first;
+            if (first != null)
+                first.previous = entry;
+            else
+                last = entry;
+            first = entry;
+            bytes += entry.weight();
+        }
+
+        void remove(Entry entry) {
+            if (entry.previous != null)
+                entry.previous.next = entry.next;
+            else
+                first = entry.next;
+            if (entry.next != null)
+                entry.next.previous = entry.previous;
+            else
+                last = entry.previous;
+
+            entry.segment = null;
+            entry.previous = null;
+            entry.next = null;
+            bytes -= entry.weight();
+        }
+
+        Entry removeLast() {
+            Entry entry = last;
+            remove(entry);
+            return entry;
+        }
+
+        void moveToFront(Entry entry) {
+            if (first != entry) {
+                remove(entry);
+                addFirst(entry);
+            }
+        }
+    }
+}
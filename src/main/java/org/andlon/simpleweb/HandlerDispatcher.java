@@ -0,0 +1,138 @@
+package org.andlon.simpleweb;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs blocking work off the event loops, bounded by a limit on how many handlers may run at once.
+ *
+ * On Java 21 and later every task gets a virtual thread of its own, and tasks over the limit wait for
+ * a permit, which costs a parked virtual thread and nothing more. The server is built for Java 8, so
+ * virtual threads are looked up by reflection. On older runtimes limited tasks queue for a pool of
+ * as many platform threads as the limit, so that a flood of requests cannot start a thread each, and
+ * only unlimited tasks get a thread of their own.
+ */
+final class HandlerDispatcher {
+    private static final Method NEW_VIRTUAL_EXECUTOR = findVirtualExecutor();
+
+    // Limited tasks, and on platform threads a separate pool for unlimited ones
+    private final ExecutorService m_executor;
+    private final ExecutorService m_unlimited;
+    private final Semaphore m_permits;
+
+    /**
+     * @param name prefix for the names of platform threads
+     * @param maxConcurrent largest number of tasks running at the same time, 0 for no limit
+     */
+    HandlerDispatcher(String name, int maxConcurrent) {
+        ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+        if (virtual != null) {
+            m_executor = virtual;
+            m_unlimited = virtual;
+        } else {
+            ThreadFactory threads = daemonThreads(name);
+            m_unlimited = Executors.newCachedThreadPool(threads);
+            if (maxConcurrent > 0) {
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), threads);
+                pool.allowCoreThreadTimeOut(true);
+                m_executor = pool;
+            } else {
+                m_executor = m_unlimited;
+            }
+        }
+        m_permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+    }
+
+    static boolean virtualThreadsAvailable() {
+        return NEW_VIRTUAL_EXECUTOR != null;
+    }
+
+    /**
+     * Runs the task on a thread once the limit allows it. The permit is still taken on platform
+     * threads, where the pool is as large as the limit, since handle() draws on the same permits.
+     */
+    void execute(Runnable task) {
+        m_executor.execute(() -> {
+            acquire();
+            try {
+                task.run();
+            } finally {
+                release();
+            }
+        });
+    }
+
+    /**
+     * Runs the task on a thread without applying the limit, for work that spends most of its time
+     * waiting, such as serving a whole connection.
+     */
+    void executeUnlimited(Runnable task) {
+        m_unlimited.execute(task);
+    }
+
+    /**
+     * Calls the handler on the current thread once the limit allows it.
+     */
+    HttpResponse handle(RequestHandler handler, HttpRequest request, ServerMetrics metrics) {
+        acquire();
+        try {
+            return Connection.invoke(handler, request, metrics);
+        } finally {
+            release();
+        }
+    }
+
+    void shutdown() {
+        m_executor.shutdownNow();
+        m_unlimited.shutdownNow();
+    }
+
+    private void acquire() {
+        // A task that was handed out must run, or its connection would wait for it forever
+        if (m_permits != null)
+            m_permits.acquireUninterruptibly();
+    }
+
+    private void release() {
+        if (m_permits != null)
+            m_permits.release();
+    }
+
+    /**
+     * An executor starting a virtual thread per task, or null if the runtime has no virtual threads.
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (NEW_VIRTUAL_EXECUTOR == null)
+            return null;
+        try {
+            return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static Method findVirtualExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
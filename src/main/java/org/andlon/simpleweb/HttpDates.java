@@ -0,0 +1,64 @@
+package org.andlon.simpleweb;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Dates in the format HTTP uses in headers, such as "Sun, 06 Nov 1994 08:49:37 GMT".
+ */
+final class HttpDates {
+    // RFC_1123_DATE_TIME does not pad the day of the month, which HTTP requires
+    private static final DateTimeFormatter FORMAT =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    // The Date header line for the current second, shared by all threads
+    private static volatile DateLine currentDateLine = new DateLine(-1, null);
+
+    private HttpDates() { }
+
+    /**
+     * The encoded Date header line for the current time, including its line break. The line is only
+     * formatted when the second changes, all responses within a second share it. It must not be modified.
+     */
+    static byte[] dateHeader() {
+        long second = System.currentTimeMillis() / 1000;
+        DateLine line = currentDateLine;
+        if (line.second != second) {
+            // Threads racing here format the same text, whichever one wins does not matter
+            line = new DateLine(second, ("Date: " + format(second * 1000) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            currentDateLine = line;
+        }
+        return line.bytes;
+    }
+
+    static String format(long milliseconds) {
+        return FORMAT.format(Instant.ofEpochMilli(milliseconds));
+    }
+
+    /**
+     * @return the time in milliseconds, or -1 if the text is not a valid date. The obsolete formats
+     * of RFC 850 and asctime are not accepted, which makes conditional requests using them unconditional.
+     */
+    static long parse(String text) {
+        try {
+            return ZonedDateTime.parse(text.trim(), FORMAT).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static final class DateLine {
+        final long second;
+        final byte[] bytes;
+
+        DateLine(long second, byte[] bytes) {
+            this.second = second;
+            this.bytes = bytes;
+        }
+    }
+}
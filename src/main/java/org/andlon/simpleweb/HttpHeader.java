@@ -0,0 +1,95 @@
+package org.andlon.simpleweb;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Well-known request headers. The parser recognises these straight from the byte stream and
+ * stores them in a slot per header on the request, see HttpRequest.header(HttpHeader).
+ */
+public enum HttpHeader {
+    HOST("host"),
+    CONNECTION("connection"),
+    CONTENT_LENGTH("content-length"),
+    CONTENT_TYPE("content-type"),
+    TRANSFER_ENCODING("transfer-encoding"),
+    EXPECT("expect"),
+    ACCEPT("accept"),
+    ACCEPT_ENCODING("accept-encoding"),
+    ACCEPT_LANGUAGE("accept-language"),
+    IF_NONE_MATCH("if-none-match"),
+    IF_MODIFIED_SINCE("if-modified-since"),
+    IF_RANGE("if-range"),
+    RANGE("range"),
+    USER_AGENT("user-agent"),
+    REFERER("referer"),
+    COOKIE("cookie"),
+    AUTHORIZATION("authorization"),
+    CACHE_CONTROL("cache-control"),
+    UPGRADE("upgrade");
+
+    private static final HttpHeader[] HEADERS = values();
+    private static final HttpHeader[][] BY_LENGTH;
+    private static final byte[] LOWER_CASE = new byte[256];
+
+    static {
+        int longest = 0;
+        for (HttpHeader header : HEADERS)
+            longest = Math.max(longest, header.token.length);
+
+        int[] counts = new int[longest + 1];
+        for (HttpHeader header : HEADERS)
+            ++counts[header.token.length];
+
+        BY_LENGTH = new HttpHeader[longest + 1][];
+        for (int i = 0; i <= longest; ++i)
+            BY_LENGTH[i] = new HttpHeader[counts[i]];
+        for (HttpHeader header : HEADERS) {
+            int length = header.token.length;
+            BY_LENGTH[length][BY_LENGTH[length].length - counts[length]--] = header;
+        }
+
+        for (int i = 0; i < 256; ++i)
+            LOWER_CASE[i] = (byte) (i >= 'A' && i <= 'Z' ? i | 0x20 : i);
+    }
+
+    private final String name;
+    private final byte[] token;
+
+    HttpHeader(String name) {
+        this.name = name;
+        this.token = name.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * The lower-case field name, as used for the keys of HttpRequest.headers().
+     */
+    public String fieldName() {
+        return name;
+    }
+
+    /**
+     * Case-insensitively matches the field name in bytes[from, to) against the well-known headers.
+     * Candidates are narrowed down by length and first byte before any full comparison.
+     * @return the matching header, or null if the name is not a well-known header.
+     */
+    static HttpHeader match(byte[] bytes, int from, int to) {
+        int length = to - from;
+        if (length >= BY_LENGTH.length)
+            return null;
+
+        byte first = LOWER_CASE[bytes[from] & 0xFF];
+        for (HttpHeader candidate : BY_LENGTH[length]) {
+            if (candidate.token[0] == first && candidate.matches(bytes, from))
+                return candidate;
+        }
+        return null;
+    }
+
+    private boolean matches(byte[] bytes, int from) {
+        for (int i = 1; i < token.length; ++i) {
+            if (LOWER_CASE[bytes[from + i] & 0xFF] != token[i])
+                return false;
+        }
+        return true;
+    }
+}
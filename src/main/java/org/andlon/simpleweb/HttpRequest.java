@@ -24,6 +24,23 @@ public interface HttpRequest {
 
     public String host();
 
+    /**
+     * Returns the value of a well-known header, or null if the request does not contain it.
+     * Unlike headers(), this does not need to build a map of every header.
+     */
+    public String header(HttpHeader header);
+
     public Map<String, String> headers();
+
+    /**
+     * The body decoded as UTF-8, or an empty string if the request has none or its body was consumed
+     * as a stream.
+     */
     public String body();
+
+    /**
+     * The body as collected by the server, or null if the request has none or the handler consumed it
+     * as a stream. See RequestHandler.bodyConsumer().
+     */
+    public RequestBody content();
 }
@@ -1,95 +1,633 @@
 package org.andlon.simpleweb;
 
-import java.util.Queue;
-import java.util.ArrayDeque;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.andlon.simpleweb.MalformedRequestException.Reason;
+
 /**
  * Created by Andreas on 31.05.2014.
  *
  * Incremental HTTP Request parser
+ *
+ * The bytes of the request line and headers are copied into a buffer owned by the builder, and every
+ * token is recorded as a range of offsets into that buffer. Strings are only created when the request
+ * is asked for them, so parsing a request does not allocate once the buffers have grown to fit.
+ * A builder can be reused for any number of requests by calling reset() in between.
+ *
+ * Bodies, framed by Content-Length or chunked transfer coding, are not stored. Their bytes are passed
+ * straight from the input to a BodyConsumer, which has to be set with body() once the headers are
+ * complete. Until then, parsing stops right after the headers.
+ *
+ * Limits set with limits() are checked as the bytes come in, so an oversized request is rejected as
+ * soon as it crosses a limit rather than after it has been buffered.
  */
 public class HttpRequestBuilder {
+    // Character classes used when scanning for delimiters
+    private static final int SP = 1;
+    private static final int CR = 2;
+    private static final int LF = 4;
+    private static final int COLON = 8;
+    private static final byte[] CHARACTER_CLASS = new byte[256];
+
+    static {
+        CHARACTER_CLASS[' '] = SP;
+        CHARACTER_CLASS['\r'] = CR;
+        CHARACTER_CLASS['\n'] = LF;
+        CHARACTER_CLASS[':'] = COLON;
+    }
+
+    private static final HttpRequest.Type[] TYPES = HttpRequest.Type.values();
+    private static final byte[][] TYPE_NAMES = new byte[TYPES.length][];
+    private static final HttpHeader[] KNOWN_HEADERS = HttpHeader.values();
+    private static final byte[] HTTP_1_1 = "HTTP/1.1".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] HTTP_1_0 = "HTTP/1.0".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CHUNKED = "chunked".getBytes(StandardCharsets.ISO_8859_1);
+
+    static {
+        for (HttpRequest.Type type : TYPES)
+            TYPE_NAMES[type.ordinal()] = type.name().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // Every header occupies five slots in the ranges array: name start, name end, value start, value end
+    // and the ordinal of the well-known header it matched, or -1 for any other header
+    private static final int HEADER_SLOTS = 5;
+    // Longest chunk extension, which is skipped and so would otherwise cost the client nothing
+    private static final int MAX_CHUNK_EXTENSION = 1024;
+    // Direct buffers are parsed through a copy on the heap. One array per thread is enough, since
+    // nothing is kept in it between calls
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[4096]);
+
     private State state = States.BEGIN;
-    private IncrementalHttpRequest request;
-    private StringBuilder builder = new StringBuilder();
-    private String currentHeader = new String();
-    private HashMap<String, String> headers = new HashMap<String, String>();
+    private final IncrementalHttpRequest request = new IncrementalHttpRequest(this);
+    private byte[] data = new byte[1024];
+    private int length = 0;
+    private int tokenStart = 0;
+    private int[] headerRanges = new int[16 * HEADER_SLOTS];
+    private int headerCount = 0;
+    private final int[] knownHeaders = new int[KNOWN_HEADERS.length];
+    private int currentHeaderStart = 0;
+    private int currentHeaderEnd = 0;
+    private int currentHeaderKnown = -1;
+    private final byte[] single = new byte[1];
+
+    // Body framing, known once the headers are complete. A content length of -1 means chunked
+    private long contentLength = 0;
+    private long bodyRemaining = 0;
+    private int chunkSizeDigits = 0;
+    private int chunkExtensionBytes = 0;
+    // The trailer section so far, held to the header limits on top of the header section
+    private long trailerBytes = 0;
+    private int trailerCount = 0;
+    private boolean inBody = false;
+    private boolean paused = false;
+    private BodyConsumer consumer;
+    private ByteBuffer bodyView;
+    // Body bytes announced so far, for checking chunked bodies against the limit
+    private long bodyTotal = 0;
+
+    // Where the header section starts in the data array, once the request line has been parsed
+    private int headersStart = 0;
+    private int maxRequestLineLength = Integer.MAX_VALUE;
+    private int maxHeaderCount = Integer.MAX_VALUE;
+    private int maxHeaderBytes = Integer.MAX_VALUE;
+    private long maxBodySize = Long.MAX_VALUE;
+    private boolean stackTraces = true;
+
+    public HttpRequestBuilder() {
+        Arrays.fill(knownHeaders, -1);
+    }
+
+    /**
+     * Sets the limits requests are held to. The request line and header limits count the bytes of the
+     * tokens, leaving out separators and line endings.
+     * @param maxRequestLineLength longest request line, answered with 414 URI Too Long when exceeded
+     * @param maxHeaderCount largest number of header fields, answered with 431
+     * @param maxHeaderBytes largest size of all header fields together, answered with 431
+     * @param maxBodySize largest body, answered with 413 Payload Too Large, or 0 for no limit
+     */
+    public HttpRequestBuilder limits(int maxRequestLineLength, int maxHeaderCount, int maxHeaderBytes, long maxBodySize) {
+        this.maxRequestLineLength = maxRequestLineLength;
+        this.maxHeaderCount = maxHeaderCount;
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.maxBodySize = maxBodySize > 0 ? maxBodySize : Long.MAX_VALUE;
+        return this;
+    }
+
+    /**
+     * Whether the MalformedRequestExceptions thrown by the builder capture a stack trace. On by default,
+     * servers turn it off since they never look at it.
+     */
+    public HttpRequestBuilder stackTraces(boolean enabled) {
+        this.stackTraces = enabled;
+        return this;
+    }
 
     public void add(char c) throws MalformedRequestException {
-        if (state.process(this, c)) {
-            builder.append(c);
+        single[0] = (byte) c;
+        add(single, 0, 1);
+    }
+
+    /**
+     * Parses bytes until the request is complete. Parsing stops right after the end of the request,
+     * so that bytes belonging to a following, pipelined request are left for after reset(). It also
+     * stops after the headers if no body consumer has been set, and whenever the consumer asks to
+     * pause. Exceptions thrown by the consumer are rethrown as UncheckedIOException.
+     * @return the number of bytes consumed.
+     */
+    public int add(byte[] bytes, int offset, int length) throws MalformedRequestException {
+        return parse(bytes, offset, offset + length) - offset;
+    }
+
+    /**
+     * Parses the remaining bytes of the buffer, advancing its position past everything that was consumed.
+     * As with add(byte[], int, int), the position is left at the start of any following request.
+     */
+    public void add(ByteBuffer buffer) throws MalformedRequestException {
+        if (buffer.hasArray()) {
+            int offset = buffer.arrayOffset();
+            int consumed = parse(buffer.array(), offset + buffer.position(), offset + buffer.limit());
+            buffer.position(consumed - offset);
+            return;
+        }
+
+        // Direct buffers are copied out in bulk, which is far cheaper than parsing them byte by byte
+        byte[] scratch = SCRATCH.get();
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            int length = Math.min(buffer.remaining(), scratch.length);
+            buffer.get(scratch, 0, length);
+            int consumed = parse(scratch, 0, length);
+            if (consumed < length) {
+                buffer.position(start + consumed);
+                return;
+            }
         }
     }
 
+    /**
+     * Returns the request being built, or null if the request line has not yet been parsed up to the
+     * request type. The returned object belongs to the builder and is recycled by reset().
+     */
     public HttpRequest request() {
-        return request;
+        return request.type() == null ? null : request;
     }
 
     public boolean isComplete() {
         return state == States.END;
     }
 
+    /**
+     * Whether the request line has begun, that is, anything other than empty lines has been parsed
+     * since the last reset().
+     */
+    public boolean isStarted() {
+        return state != States.BEGIN && state != States.BEGIN_CR;
+    }
+
+    /**
+     * Whether the headers are complete and the builder is waiting for the body.
+     */
+    public boolean isReadingBody() {
+        return inBody;
+    }
+
+    /**
+     * Whether parsing is held up until a consumer for the body has been set.
+     */
+    public boolean needsBodyConsumer() {
+        return inBody && consumer == null;
+    }
+
+    /**
+     * Sets the consumer receiving the body of the current request.
+     */
+    public void body(BodyConsumer consumer) {
+        this.consumer = consumer;
+    }
+
+    public BodyConsumer bodyConsumer() {
+        return consumer;
+    }
+
+    /**
+     * Whether the body consumer asked to stop receiving data. Parsing continues after resume().
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public void resume() {
+        paused = false;
+    }
+
+    /**
+     * Length of the body as announced in the headers, -1 for a chunked body and 0 without a body.
+     * Only meaningful once the headers are complete.
+     */
+    public long contentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Prepares the builder for parsing a new request, keeping the buffers it has already allocated.
+     */
+    public void reset() {
+        state = States.BEGIN;
+        length = 0;
+        tokenStart = 0;
+        headerCount = 0;
+        Arrays.fill(knownHeaders, -1);
+        contentLength = 0;
+        bodyRemaining = 0;
+        chunkSizeDigits = 0;
+        chunkExtensionBytes = 0;
+        trailerBytes = 0;
+        trailerCount = 0;
+        inBody = false;
+        paused = false;
+        consumer = null;
+        bodyTotal = 0;
+        headersStart = 0;
+        request.reset();
+    }
+
+    private int parse(byte[] bytes, int position, int end) throws MalformedRequestException {
+        while (position < end && state != States.END && !paused && !(inBody && consumer == null)) {
+            position = state.process(this, bytes, position, end);
+        }
+        return position;
+    }
+
+    /**
+     * Returns the index of the first byte in [position, end) belonging to one of the given
+     * character classes, or end if there is none.
+     */
+    private static int scan(byte[] bytes, int position, int end, int classes) {
+        while (position < end && (CHARACTER_CLASS[bytes[position] & 0xFF] & classes) == 0)
+            ++position;
+        return position;
+    }
+
     private void transition(State state) {
         this.state = state;
     }
 
-    private void initiateRequest(String requestType) throws MalformedRequestException {
-        request = IncrementalHttpRequest.fromRequestString(requestType);
+    private MalformedRequestException malformed(Reason reason, String message) {
+        return new MalformedRequestException(reason, message, stackTraces);
+    }
 
-        if (request == null) {
-            throw new MalformedRequestException("Invalid request type: ".concat(requestType));
+    private void checkRequestLineLength() throws MalformedRequestException {
+        if (length > maxRequestLineLength)
+            throw malformed(Reason.REQUEST_LINE_TOO_LONG, "Request line too long.");
+    }
+
+    private void checkHeaderBytes() throws MalformedRequestException {
+        if (length - headersStart > maxHeaderBytes)
+            throw malformed(Reason.HEADERS_TOO_LARGE, "Header fields too large.");
+    }
+
+    private void checkBodySize(long size) throws MalformedRequestException {
+        if (size > maxBodySize)
+            throw malformed(Reason.BODY_TOO_LARGE, "Body too large.");
+    }
+
+    /**
+     * Accepts HTTP/1.x, which the server speaks, and rejects other major versions as not supported.
+     */
+    private void checkVersion() throws MalformedRequestException {
+        int from = tokenStart;
+        if (length - from != 8 || data[from] != 'H' || data[from + 1] != 'T' || data[from + 2] != 'T'
+                || data[from + 3] != 'P' || data[from + 4] != '/' || !isDigit(data[from + 5])
+                || data[from + 6] != '.' || !isDigit(data[from + 7]))
+            throw malformed(Reason.REQUEST_LINE, "Invalid version: ".concat(text(from, length)));
+        if (data[from + 5] != '1')
+            throw malformed(Reason.VERSION_NOT_SUPPORTED, "Unsupported version: ".concat(text(from, length)));
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private void initiateRequest() throws MalformedRequestException {
+        HttpRequest.Type type = matchType();
+        if (type == null || !tokenEquals(TYPE_NAMES[type.ordinal()]))
+            throw malformed(Reason.METHOD, "Invalid request type: ".concat(text(tokenStart, length)));
+
+        request.setType(type);
+        nextToken();
+    }
+
+    /**
+     * Picks the only request type the current token can be, judging by its length and first byte.
+     * The caller still has to compare the full token.
+     */
+    private HttpRequest.Type matchType() {
+        byte first = data[tokenStart];
+        switch (length - tokenStart) {
+            case 3:
+                return first == 'G' ? HttpRequest.Type.GET : first == 'P' ? HttpRequest.Type.PUT : null;
+            case 4:
+                return first == 'H' ? HttpRequest.Type.HEAD : first == 'P' ? HttpRequest.Type.POST : null;
+            case 5:
+                return first == 'T' ? HttpRequest.Type.TRACE : first == 'P' ? HttpRequest.Type.PATCH : null;
+            case 6:
+                return first == 'D' ? HttpRequest.Type.DELETE : null;
+            case 7:
+                return first == 'O' ? HttpRequest.Type.OPTIONS : first == 'C' ? HttpRequest.Type.CONNECT : null;
+            default:
+                return null;
+        }
+    }
+
+    private void appendText(byte[] bytes, int from, int to) {
+        int count = to - from;
+        if (length + count > data.length)
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + count));
+        System.arraycopy(bytes, from, data, length, count);
+        length += count;
+    }
+
+    private boolean hasText() {
+        return length > tokenStart;
+    }
+
+    private void nextToken() {
+        tokenStart = length;
+    }
+
+    private boolean tokenEquals(byte[] expected) {
+        return rangeEquals(tokenStart, length, expected);
+    }
+
+    private boolean rangeEquals(int from, int to, byte[] expected) {
+        if (to - from != expected.length)
+            return false;
+        for (int i = 0; i < expected.length; ++i) {
+            if (data[from + i] != expected[i])
+                return false;
+        }
+        return true;
+    }
+
+    private String text(int from, int to) {
+        return new String(data, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private void setCurrentHeaderName() {
+        HttpHeader known = HttpHeader.match(data, tokenStart, length);
+        currentHeaderKnown = known == null ? -1 : known.ordinal();
+
+        if (known == null) {
+            // Since headers are case-insensitive, other names are lower-cased in place
+            for (int i = tokenStart; i < length; ++i) {
+                byte b = data[i];
+                if (b >= 'A' && b <= 'Z')
+                    data[i] = (byte) (b | 0x20);
+            }
         }
+
+        currentHeaderStart = tokenStart;
+        currentHeaderEnd = length;
+        nextToken();
     }
 
-    private String takeText() {
-        String text = builder.toString();
-        builder.setLength(0);
-        return text;
+    private void setHeader() throws MalformedRequestException {
+        // Per the HTTP specifications we trim the values
+        int from = tokenStart;
+        int to = length;
+        while (from < to && (data[from] & 0xFF) <= ' ')
+            ++from;
+        while (to > from && (data[to - 1] & 0xFF) <= ' ')
+            --to;
+
+        if (headerCount == maxHeaderCount)
+            throw malformed(Reason.TOO_MANY_HEADERS, "Too many header fields.");
+        int slot = headerCount * HEADER_SLOTS;
+        if (slot + HEADER_SLOTS > headerRanges.length)
+            headerRanges = Arrays.copyOf(headerRanges, headerRanges.length * 2);
+
+        headerRanges[slot] = currentHeaderStart;
+        headerRanges[slot + 1] = currentHeaderEnd;
+        headerRanges[slot + 2] = from;
+        headerRanges[slot + 3] = to;
+        headerRanges[slot + 4] = currentHeaderKnown;
+        if (currentHeaderKnown >= 0) {
+            int previous = knownHeaders[currentHeaderKnown];
+            // Intermediaries may frame the body by either of two lengths, so they have to agree
+            if (previous >= 0 && currentHeaderKnown == HttpHeader.CONTENT_LENGTH.ordinal()
+                    && !sameValue(previous, headerCount))
+                throw malformed(Reason.CONTENT_LENGTH, "Conflicting Content-Length headers.");
+            knownHeaders[currentHeaderKnown] = headerCount;
+        }
+        ++headerCount;
+        nextToken();
     }
 
-    private void setCurrentHeaderName(String header) {
-        currentHeader = header;
+    private boolean sameValue(int first, int second) {
+        int a = first * HEADER_SLOTS;
+        int b = second * HEADER_SLOTS;
+        int length = headerRanges[a + 3] - headerRanges[a + 2];
+        if (headerRanges[b + 3] - headerRanges[b + 2] != length)
+            return false;
+        for (int i = 0; i < length; ++i) {
+            if (data[headerRanges[a + 2] + i] != data[headerRanges[b + 2] + i])
+                return false;
+        }
+        return true;
     }
 
-    private String currentHeaderName() {
-        return currentHeader;
+    private String headerName(int index) {
+        int slot = index * HEADER_SLOTS;
+        int known = headerRanges[slot + 4];
+        return known >= 0 ? KNOWN_HEADERS[known].fieldName() : text(headerRanges[slot], headerRanges[slot + 1]);
     }
 
-    private void setHeader(String name, String value) {
-        // Since headers are case-insensitive, we only store lower-case names,
-        // and per the HTTP specifications we trim the values
-        headers.put(name.toLowerCase(), value.trim());
+    private String headerValue(int index) {
+        int slot = index * HEADER_SLOTS;
+        return text(headerRanges[slot + 2], headerRanges[slot + 3]);
     }
 
-    private void commitHeaders() {
-        assert(request != null);
+    /**
+     * Works out how the body is framed. A request carrying both Transfer-Encoding and Content-Length
+     * is rejected, since intermediaries could disagree on where it ends.
+     */
+    private void commitHeaders() throws MalformedRequestException {
+        assert(request.type() != null);
 
-        // Extract known headers
-        request.setHost(headers.remove("host"));
+        int transferEncoding = knownHeaders[HttpHeader.TRANSFER_ENCODING.ordinal()];
+        int length = knownHeaders[HttpHeader.CONTENT_LENGTH.ordinal()];
+        if (transferEncoding >= 0) {
+            if (length >= 0)
+                throw malformed(Reason.TRANSFER_ENCODING, "Both Transfer-Encoding and Content-Length are present.");
+            if (!isChunked(transferEncoding))
+                throw malformed(Reason.TRANSFER_ENCODING, "Unsupported transfer coding: ".concat(headerValue(transferEncoding)));
+            contentLength = -1;
+        } else if (length >= 0) {
+            contentLength = parseContentLength(length);
+            checkBodySize(contentLength);
+        } else {
+            contentLength = 0;
+        }
+
+        bodyRemaining = Math.max(contentLength, 0);
+        inBody = hasBody();
     }
 
     private boolean hasBody() {
-        return false;
+        return contentLength != 0;
+    }
+
+    /**
+     * Whether chunked is the last coding listed in the header, which is the only case where the
+     * body can be delimited.
+     */
+    private boolean isChunked(int index) {
+        int slot = index * HEADER_SLOTS;
+        int from = headerRanges[slot + 2];
+        int to = headerRanges[slot + 3];
+        int start = to - CHUNKED.length;
+        if (start < from)
+            return false;
+        for (int i = 0; i < CHUNKED.length; ++i) {
+            if ((data[start + i] | 0x20) != CHUNKED[i])
+                return false;
+        }
+        return start == from || data[start - 1] == ',' || data[start - 1] == ' ' || data[start - 1] == '\t';
+    }
+
+    private long parseContentLength(int index) throws MalformedRequestException {
+        int slot = index * HEADER_SLOTS;
+        int from = headerRanges[slot + 2];
+        int to = headerRanges[slot + 3];
+        // Eighteen digits cannot overflow a long
+        if (from == to || to - from > 18)
+            throw malformed(Reason.CONTENT_LENGTH, "Invalid Content-Length: ".concat(headerValue(index)));
+
+        long value = 0;
+        for (int i = from; i < to; ++i) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9)
+                throw malformed(Reason.CONTENT_LENGTH, "Invalid Content-Length: ".concat(headerValue(index)));
+            value = value * 10 + digit;
+        }
+        return value;
     }
 
-    private MutableHttpRequest mutableRequest() { return request; }
+    /**
+     * Hands count bytes of the body to the consumer, pausing if it asks to.
+     */
+    private void deliver(byte[] bytes, int position, int count) {
+        // The view is reused for as long as the input arrives in the same array
+        if (bodyView == null || bodyView.array() != bytes)
+            bodyView = ByteBuffer.wrap(bytes);
+        bodyView.limit(position + count);
+        bodyView.position(position);
 
-    static private interface MutableHttpRequest extends HttpRequest {
-        public void setVersion(String version);
-        public void setUri(String uri);
-        public void setHost(String host);
+        try {
+            if (!consumer.onData(bodyView))
+                paused = true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
-    static private class IncrementalHttpRequest implements MutableHttpRequest {
+    private void finishBody() {
+        // There is nothing left to pause for
+        inBody = false;
+        paused = false;
+        transition(States.END);
+        try {
+            consumer.onEnd();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void addChunkSizeDigit(int digit) throws MalformedRequestException {
+        // Fifteen hex digits keep the size positive
+        if (++chunkSizeDigits > 15)
+            throw malformed(Reason.CHUNK, "Chunk size too large.");
+        bodyRemaining = (bodyRemaining << 4) | digit;
+    }
+
+    private void addChunkExtensionBytes(int count) throws MalformedRequestException {
+        chunkExtensionBytes += count;
+        if (chunkExtensionBytes > MAX_CHUNK_EXTENSION)
+            throw malformed(Reason.CHUNK, "Chunk extension too long.");
+    }
+
+    /**
+     * Counts a trailer field against the header count limit, as trailers are header fields sent after
+     * the body.
+     */
+    private void addTrailerField() throws MalformedRequestException {
+        if (headerCount + trailerCount >= maxHeaderCount)
+            throw malformed(Reason.TOO_MANY_HEADERS, "Too many header fields.");
+        ++trailerCount;
+    }
+
+    /**
+     * Counts bytes of a trailer line, including its line ending, against the header size limit.
+     */
+    private void addTrailerBytes(int count) throws MalformedRequestException {
+        trailerBytes += count;
+        if (length - headersStart + trailerBytes > maxHeaderBytes)
+            throw malformed(Reason.HEADERS_TOO_LARGE, "Header fields too large.");
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9')
+            return b - '0';
+        int lower = b | 0x20;
+        if (lower >= 'a' && lower <= 'f')
+            return lower - 'a' + 10;
+        return -1;
+    }
+
+    /**
+     * Access to the bytes of a request's URI as they were received, for code that wants to look at the
+     * URI without building a String, such as the Router. The bytes are only valid until the next request
+     * is parsed.
+     */
+    interface RawUri {
+        byte[] uriBytes();
+        int uriStart();
+        int uriEnd();
+    }
+
+    /**
+     * View of the request held by a builder. Accessors create their Strings on first use and cache
+     * them until the builder is reset.
+     */
+    static private class IncrementalHttpRequest implements HttpRequest, RawUri {
+        private final HttpRequestBuilder builder;
         private Type type;
-        private String version = new String();
-        private String uri = new String();
-        private String host;
+        private int uriStart;
+        private int uriEnd;
+        private int versionStart;
+        private int versionEnd;
+        private String version;
+        private String uri;
+        private final String[] knownValues = new String[KNOWN_HEADERS.length];
+        private Map<String, String> headers;
 
-        public IncrementalHttpRequest(Type type) {
-            this.type = type;
+        public IncrementalHttpRequest(HttpRequestBuilder builder) {
+            this.builder = builder;
+        }
+
+        private void reset() {
+            type = null;
+            version = null;
+            uri = null;
+            Arrays.fill(knownValues, null);
+            headers = null;
         }
 
         @Override
@@ -97,35 +635,86 @@ public class HttpRequestBuilder {
 
         @Override
         public String uri() {
+            if (uri == null)
+                uri = builder.text(uriStart, uriEnd);
             return uri;
         }
 
+        @Override
+        public byte[] uriBytes() { return builder.data; }
+
+        @Override
+        public int uriStart() { return uriStart; }
+
+        @Override
+        public int uriEnd() { return uriEnd; }
+
         @Override
         public String version() {
+            if (version == null) {
+                if (builder.rangeEquals(versionStart, versionEnd, HTTP_1_1))
+                    version = "HTTP/1.1";
+                else if (builder.rangeEquals(versionStart, versionEnd, HTTP_1_0))
+                    version = "HTTP/1.0";
+                else
+                    version = builder.text(versionStart, versionEnd);
+            }
             return version;
         }
 
         @Override
-        public String host() { return host; }
+        public String host() { return header(HttpHeader.HOST); }
 
         @Override
-        public Map<String, String> headers() { return new HashMap <String, String>(); }
+        public String header(HttpHeader header) {
+            int ordinal = header.ordinal();
+            if (knownValues[ordinal] == null) {
+                int index = builder.knownHeaders[ordinal];
+                if (index >= 0)
+                    knownValues[ordinal] = builder.headerValue(index);
+            }
+            return knownValues[ordinal];
+        }
 
         @Override
-        public String body() { return new String(); }
+        public Map<String, String> headers() {
+            if (headers == null) {
+                HashMap<String, String> map = new HashMap<String, String>();
+                for (int i = 0; i < builder.headerCount; ++i)
+                    map.put(builder.headerName(i), builder.headerValue(i));
+                headers = Collections.unmodifiableMap(map);
+            }
+            return headers;
+        }
 
         @Override
-        public void setUri(String uri) {
-            this.uri = uri;
+        public String body() {
+            RequestBody content = content();
+            if (content == null)
+                return "";
+            try {
+                return content.text(StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
 
         @Override
-        public void setVersion(String version) {
-            this.version = version;
+        public RequestBody content() {
+            return builder.consumer instanceof RequestBody ? (RequestBody) builder.consumer : null;
         }
 
-        @Override
-        public void setHost(String host) { this.host = host; }
+        private void setType(Type type) { this.type = type; }
+
+        private void setUri(int start, int end) {
+            uriStart = start;
+            uriEnd = end;
+        }
+
+        private void setVersion(int start, int end) {
+            versionStart = start;
+            versionEnd = end;
+        }
 
         @Override
         public String toString() {
@@ -143,215 +732,349 @@ public class HttpRequestBuilder {
 
             return builder.toString();
         }
-
-        private static final HashMap<String, Type> TYPEMAP = new HashMap<String, Type>() {{
-            put("GET", Type.GET);
-            put("HEAD", Type.HEAD);
-            put("POST", Type.POST);
-            put("PUT", Type.PUT);
-            put("DELETE", Type.DELETE);
-            put("TRACE", Type.TRACE);
-            put("OPTIONS", Type.OPTIONS);
-            put("CONNECT", Type.CONNECT);
-            put("PATCH", Type.PATCH);
-        }};
-
-        static public IncrementalHttpRequest fromRequestString(String request) {
-            Type type = TYPEMAP.get(request);
-            return type == null ? null : new IncrementalHttpRequest(type);
-        }
     }
 
     private interface State {
         /**
-         * Processes a single character of a request, before appending the character to the line string.
-         * CR or LF characters are not added to the line string.
+         * Processes a span of a request. A state consumes bytes until it either reaches the end of the
+         * span or a delimiter that causes a transition. Token bytes are accumulated in the builder,
+         * CR and LF are never part of a token.
          * @param builder
-         * @param c The character to be processed
+         * @param bytes The buffer holding the span
+         * @param position Index of the first unprocessed byte
+         * @param end Index one past the last byte of the span
          * @throws MalformedRequestException
-         * @return returns true if the character should be added to the current line, otherwise false.
+         * @return the index of the first byte that was not consumed.
          */
-        public boolean process(HttpRequestBuilder builder, char c) throws MalformedRequestException;
+        public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                throws MalformedRequestException;
     }
 
     private enum States implements State {
         BEGIN {
             @Override
-            public boolean process(HttpRequestBuilder builder, char c) throws MalformedRequestException {
-                switch (c) {
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                switch (bytes[position]) {
                     case '\r':
                         builder.transition(BEGIN_CR);
                     case '\n':
-                        return false;
+                        return position + 1;
                     default:
                         builder.transition(REQUESTLINE_TYPE);
-                        return true;
+                        return position;
                 }
             }
         },
         BEGIN_CR {
             @Override
-            public boolean process(HttpRequestBuilder builder, char c) throws MalformedRequestException {
-                switch (c) {
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                switch (bytes[position]) {
                     case '\r':
-                        throw(new MalformedRequestException("Invalid character sequence: \\r\\r."));
+                        throw builder.malformed(Reason.LINE_ENDING, "Invalid character sequence: \\r\\r.");
                     case '\n':
-                        return false;
+                        builder.transition(BEGIN);
+                        return position + 1;
                     default:
                         builder.transition(REQUESTLINE_TYPE);
-                        return true;
+                        return position;
                 }
             }
         },
         REQUESTLINE_TYPE {
             @Override
-            public boolean process(HttpRequestBuilder builder, char c) throws MalformedRequestException {
-                switch (c) {
-                    case ' ':
-                        String type = builder.takeText();
-                        builder.initiateRequest(type);
-                        builder.transition(REQUESTLINE_URI);
-                        return false;
-                    case '\r':
-                    case '\n':
-                        throw(new MalformedRequestException("Request line terminated prematurely."));
-                    default:
-                        return true;
-                }
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                int delimiter = scan(bytes, position, end, SP | CR | LF);
+                builder.appendText(bytes, position, delimiter);
+                builder.checkRequestLineLength();
+                if (delimiter == end)
+                    return end;
+
+                if (bytes[delimiter] != ' ')
+                    throw builder.malformed(Reason.REQUEST_LINE, "Request line terminated prematurely.");
+
+                builder.initiateRequest();
+                builder.transition(REQUESTLINE_URI);
+                return delimiter + 1;
             }
         },
         REQUESTLINE_URI {
             @Override
-            public boolean process(HttpRequestBuilder builder, char c) throws MalformedRequestException {
-                switch (c) {
-                    case ' ':
-                        String uri = builder.takeText();
-                        if (uri.isEmpty())
-                            throw(new MalformedRequestException("URI cannot be empty."));
-                        builder.mutableRequest().setUri(uri);
-                        builder.transition(REQUESTLINE_VERSION);
-                        return false;
-                    case '\r':
-                    case '\n':
-                        throw(new MalformedRequestException("Request line terminated prematurely."));
-                    default:
-                        return true;
-                }
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                int delimiter = scan(bytes, position, end, SP | CR | LF);
+                builder.appendText(bytes, position, delimiter);
+                builder.checkRequestLineLength();
+                if (delimiter == end)
+                    return end;
+
+                if (bytes[delimiter] != ' ')
+                    throw builder.malformed(Reason.REQUEST_LINE, "Request line terminated prematurely.");
+
+                if (!builder.hasText())
+                    throw builder.malformed(Reason.REQUEST_LINE, "URI cannot be empty.");
+                builder.request.setUri(builder.tokenStart, builder.length);
+                builder.nextToken();
+                builder.transition(REQUESTLINE_VERSION);
+                return delimiter + 1;
             }
         },
         REQUESTLINE_VERSION {
             @Override
-            public boolean process(HttpRequestBuilder builder, char c) throws MalformedRequestException {
-                switch (c) {
-                    case '\r':
-                        String version = builder.takeText();
-                        if (version.isEmpty())
-                            throw(new MalformedRequestException("Version string cannot be empty."));
-                        builder.mutableRequest().setVersion(version);
-                        builder.transition(REQUESTLINE_CR);
-                        return false;
-                    case '\n':
-                        throw(new MalformedRequestException("Newline without preceding carriage return."));
-                    default:
-                        return true;
-                }
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                int delimiter = scan(bytes, position, end, CR | LF);
+                builder.appendText(bytes, position, delimiter);
+                builder.checkRequestLineLength();
+                if (delimiter == end)
+                    return end;
+
+                if (bytes[delimiter] == '\n')
+                    throw builder.malformed(Reason.LINE_ENDING, "Newline without preceding carriage return.");
+
+                if (!builder.hasText())
+                    throw builder.malformed(Reason.REQUEST_LINE, "Version string cannot be empty.");
+                builder.checkVersion();
+                builder.request.setVersion(builder.tokenStart, builder.length);
+                builder.nextToken();
+                builder.headersStart = builder.length;
+                builder.transition(REQUESTLINE_CR);
+                return delimiter + 1;
             }
         },
         REQUESTLINE_CR {
             @Override
-            public boolean process(HttpRequestBuilder builder, char c) throws MalformedRequestException {
-                switch (c) {
-                    case '\n':
-                        builder.transition(HEADER_KEY);
-                        return false;
-                    default:
-                        throw(new MalformedRequestException("Expected newline, got " + c));
-                }
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                expectNewline(builder, bytes[position]);
+                builder.transition(HEADER_KEY);
+                return position + 1;
             }
         },
         HEADER_KEY {
             @Override
-            public boolean process(HttpRequestBuilder builder, char c) throws MalformedRequestException {
-                switch (c) {
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                int delimiter = scan(bytes, position, end, COLON | CR | LF);
+                builder.appendText(bytes, position, delimiter);
+                builder.checkHeaderBytes();
+                if (delimiter == end)
+                    return end;
+
+                switch (bytes[delimiter]) {
                     case ':':
-                        String header = builder.takeText();
-                        if (header.isEmpty())
-                            throw(new MalformedRequestException("Header value cannot be empty."));
+                        if (!builder.hasText())
+                            throw builder.malformed(Reason.HEADER, "Header value cannot be empty.");
 
-                        builder.setCurrentHeaderName(header);
+                        builder.setCurrentHeaderName();
                         builder.transition(HEADER_VALUE);
-                        return false;
+                        return delimiter + 1;
                     case '\r':
-                        String text = builder.takeText();
-                        if (text.isEmpty()) {
-                            // Signals headers are completely specified, move on to HEADER_KEY_CR,
+                        if (!builder.hasText()) {
+                            // Signals headers are completely specified, move on to BOUNDARY_CR,
                             // which checks whether '\n' is the next character
                             builder.transition(BOUNDARY_CR);
-                            return false;
+                            return delimiter + 1;
                         }
-                    case '\n':
-                        throw(new MalformedRequestException(
-                                "Unexpected carriage return or newline character in header name."));
                     default:
-                        return true;
+                        throw builder.malformed(Reason.HEADER,
+                                "Unexpected carriage return or newline character in header name.");
                 }
             }
         },
         HEADER_VALUE {
             @Override
-            public boolean process(HttpRequestBuilder builder, char c) throws MalformedRequestException {
-                switch (c) {
-                    case '\r':
-                        String value = builder.takeText();
-                        String header = builder.currentHeaderName();
-                        builder.setHeader(header, value);
-                        builder.transition(HEADER_CR);
-                        return false;
-                    case '\n':
-                        // Note: currently don't support multi-line header fields. My impression so far
-                        // is that this is a deprecated feature anyway - need to do more research
-                        throw(new MalformedRequestException("Unexpected newline in field value."));
-                    default:
-                        return true;
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                int delimiter = scan(bytes, position, end, CR | LF);
+                builder.appendText(bytes, position, delimiter);
+                builder.checkHeaderBytes();
+                if (delimiter == end)
+                    return end;
+
+                if (bytes[delimiter] == '\n') {
+                    // Note: currently don't support multi-line header fields. My impression so far
+                    // is that this is a deprecated feature anyway - need to do more research
+                    throw builder.malformed(Reason.HEADER, "Unexpected newline in field value.");
                 }
+
+                builder.setHeader();
+                builder.transition(HEADER_CR);
+                return delimiter + 1;
             }
         },
         HEADER_CR {
             @Override
-            public boolean process(HttpRequestBuilder builder, char c) throws MalformedRequestException {
-                switch (c) {
-                    case '\n':
-                        builder.transition(HEADER_KEY);
-                        return false;
-                    default:
-                        throw(new MalformedRequestException("Expected newline, got " + c));
-                }
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                expectNewline(builder, bytes[position]);
+                builder.transition(HEADER_KEY);
+                return position + 1;
             }
         },
         BOUNDARY_CR {
             @Override
-            public boolean process(HttpRequestBuilder builder, char c) throws MalformedRequestException {
-                switch (c) {
-                    case '\n':
-                        builder.commitHeaders();
-                        builder.transition(builder.hasBody() ? BODY : END);
-                        return false;
-                    default:
-                        throw(new MalformedRequestException("Expected newline. Got " + c));
-                }
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                expectNewline(builder, bytes[position]);
+                builder.commitHeaders();
+                if (!builder.hasBody())
+                    builder.transition(END);
+                else
+                    builder.transition(builder.contentLength < 0 ? CHUNK_SIZE : BODY);
+                return position + 1;
             }
         },
         BODY {
             @Override
-            public boolean process(HttpRequestBuilder builder, char c) throws MalformedRequestException {
-                return true;
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                int count = (int) Math.min(end - position, builder.bodyRemaining);
+                builder.deliver(bytes, position, count);
+                builder.bodyRemaining -= count;
+                if (builder.bodyRemaining == 0)
+                    builder.finishBody();
+                return position + count;
+            }
+        },
+        CHUNK_SIZE {
+            @Override
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                for (; position < end; ++position) {
+                    int digit = hexValue(bytes[position]);
+                    if (digit >= 0) {
+                        builder.addChunkSizeDigit(digit);
+                        continue;
+                    }
+
+                    if (builder.chunkSizeDigits == 0)
+                        throw builder.malformed(Reason.CHUNK, "Missing chunk size.");
+                    switch (bytes[position]) {
+                        case '\r':
+                            builder.transition(CHUNK_SIZE_LF);
+                            return position + 1;
+                        case ';':
+                        case ' ':
+                        case '\t':
+                            builder.transition(CHUNK_EXTENSION);
+                            return position;
+                        default:
+                            throw builder.malformed(Reason.CHUNK, "Invalid character in chunk size.");
+                    }
+                }
+                return end;
+            }
+        },
+        CHUNK_EXTENSION {
+            @Override
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                // Extensions carry nothing we use, so they are skipped, up to a limit
+                int delimiter = scan(bytes, position, end, CR | LF);
+                builder.addChunkExtensionBytes(delimiter - position);
+                if (delimiter == end)
+                    return end;
+                if (bytes[delimiter] == '\n')
+                    throw builder.malformed(Reason.CHUNK, "Unexpected newline in chunk extension.");
+                builder.transition(CHUNK_SIZE_LF);
+                return delimiter + 1;
+            }
+        },
+        CHUNK_SIZE_LF {
+            @Override
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                expectNewline(builder, bytes[position]);
+                builder.chunkSizeDigits = 0;
+                builder.chunkExtensionBytes = 0;
+                builder.bodyTotal += builder.bodyRemaining;
+                builder.checkBodySize(builder.bodyTotal);
+                // The last chunk has size zero and is followed by optional trailers
+                builder.transition(builder.bodyRemaining == 0 ? TRAILER : CHUNK_DATA);
+                return position + 1;
+            }
+        },
+        CHUNK_DATA {
+            @Override
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                int count = (int) Math.min(end - position, builder.bodyRemaining);
+                builder.deliver(bytes, position, count);
+                builder.bodyRemaining -= count;
+                if (builder.bodyRemaining == 0)
+                    builder.transition(CHUNK_DATA_CR);
+                return position + count;
+            }
+        },
+        CHUNK_DATA_CR {
+            @Override
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                if (bytes[position] != '\r')
+                    throw builder.malformed(Reason.CHUNK, "Chunk data longer than its size.");
+                builder.transition(CHUNK_DATA_LF);
+                return position + 1;
+            }
+        },
+        CHUNK_DATA_LF {
+            @Override
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                expectNewline(builder, bytes[position]);
+                builder.transition(CHUNK_SIZE);
+                return position + 1;
+            }
+        },
+        TRAILER {
+            @Override
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                if (bytes[position] == '\r') {
+                    builder.transition(TRAILER_END);
+                    return position + 1;
+                }
+                builder.addTrailerField();
+                builder.transition(TRAILER_LINE);
+                return position;
+            }
+        },
+        TRAILER_LINE {
+            @Override
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                // Trailer fields are ignored, but count towards the header limits
+                int delimiter = scan(bytes, position, end, LF);
+                builder.addTrailerBytes(delimiter - position);
+                if (delimiter == end)
+                    return end;
+                builder.transition(TRAILER);
+                return delimiter + 1;
+            }
+        },
+        TRAILER_END {
+            @Override
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                expectNewline(builder, bytes[position]);
+                builder.finishBody();
+                return position + 1;
             }
         },
         END {
             @Override
-            public boolean process(HttpRequestBuilder builder, char c) throws MalformedRequestException {
-                return false;
+            public int process(HttpRequestBuilder builder, byte[] bytes, int position, int end)
+                    throws MalformedRequestException {
+                // Anything after the end belongs to the next request
+                return position;
             }
+        };
+
+        private static void expectNewline(HttpRequestBuilder builder, byte b) throws MalformedRequestException {
+            if (b != '\n')
+                throw builder.malformed(Reason.LINE_ENDING, "Expected newline, got " + (char) (b & 0xFF));
         }
     }
 }
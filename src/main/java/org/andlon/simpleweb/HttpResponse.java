@@ -0,0 +1,341 @@
+package org.andlon.simpleweb;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A response produced by a RequestHandler. The body is a sequence of in-memory buffers and file
+ * regions, which the connection writes out without copying. Content-Length is derived from the body.
+ */
+public class HttpResponse {
+    // Pre-encoded pieces of response heads
+    private static final byte[][] STATUS_LINES = new byte[600][];
+    private static final byte[] SERVER = ascii("Server: SimpleWeb\r\n");
+    private static final byte[] KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    // Longest decimal number a Content-Length can have
+    private static final int MAX_DIGITS = 19;
+
+    // Statuses for requests the server refuses to parse any further, or to serve at all
+    private static final int[] REJECTION_STATUSES = { 400, 413, 414, 429, 431, 505 };
+    private static final ByteBuffer[] REJECTIONS = new ByteBuffer[REJECTION_STATUSES.length];
+
+    static {
+        for (int status = 100; status < STATUS_LINES.length; ++status)
+            STATUS_LINES[status] = ascii("HTTP/1.1 " + status + " " + reasonPhrase(status) + "\r\n");
+
+        for (int i = 0; i < REJECTION_STATUSES.length; ++i) {
+            HttpResponse response = error(REJECTION_STATUSES[i]);
+            // A client over its request rate has a full second's worth of requests again after a second
+            if (REJECTION_STATUSES[i] == 429)
+                response.header("Retry-After", "1");
+            // Without a Date, which would be stale by the time the response is sent
+            ByteBuffer head = response.encodeHead(false, null, null);
+            ByteBuffer body = response.payloads().get(0).buffer();
+            ByteBuffer encoded = ByteBuffer.allocate(head.remaining() + body.remaining());
+            encoded.put(head).put(body).flip();
+            REJECTIONS[i] = encoded.asReadOnlyBuffer();
+        }
+    }
+
+    private final int status;
+    private final ArrayList<String> headers = new ArrayList<String>();
+    private final ArrayList<Payload> body = new ArrayList<Payload>();
+    private long contentLength = 0;
+    private ByteBuffer entityHead;
+    private boolean compressible = true;
+    // A streamed body has no length up front, it is either sent chunked or ends with the connection
+    private boolean streamed = false;
+    private boolean chunked = false;
+
+    public HttpResponse(int status) {
+        this.status = status;
+    }
+
+    public int status() { return status; }
+
+    public long contentLength() { return contentLength; }
+
+    /**
+     * Adds a header to the response. Content-Length and Connection are managed by the server and
+     * must not be set here.
+     * @throws IllegalArgumentException if the name or value contains CR, LF or NUL
+     */
+    public HttpResponse header(String name, String value) {
+        headers.add(checkHeaderText(name));
+        headers.add(checkHeaderText(value));
+        return this;
+    }
+
+    /**
+     * Refuses line breaks, with which a value taken from a request could end the header early and
+     * add headers, or a whole response, of its own.
+     */
+    private static String checkHeaderText(String text) {
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0)
+                throw new IllegalArgumentException("Line break or NUL in header text: " + text);
+        }
+        return text;
+    }
+
+    /**
+     * Whether the server may compress the body for clients that accept it, true by default. Handlers
+     * that compress bodies themselves, or whose bodies do not compress, can turn it off.
+     */
+    public HttpResponse compressible(boolean compressible) {
+        this.compressible = compressible;
+        return this;
+    }
+
+    public boolean isCompressible() { return compressible; }
+
+    /**
+     * The value of the first header with the name, ignoring case, or null if there is none.
+     */
+    public String header(String name) {
+        for (int i = 0; i < headers.size(); i += 2) {
+            if (headers.get(i).equalsIgnoreCase(name))
+                return headers.get(i + 1);
+        }
+        return null;
+    }
+
+    /**
+     * Appends the remaining bytes of the buffer to the body. The buffer must not be modified afterwards.
+     */
+    public HttpResponse body(ByteBuffer buffer) {
+        return append(Payload.of(buffer));
+    }
+
+    public HttpResponse body(byte[] bytes) {
+        return body(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Appends count bytes of the file, starting at position, to the body. The response takes
+     * ownership of the channel and closes it once the body has been sent or discarded.
+     */
+    public HttpResponse file(FileChannel file, long position, long count) {
+        return append(Payload.ofFile(file, position, count));
+    }
+
+    /**
+     * Appends a body of unknown length, produced while it is sent. Without chunked encoding, which
+     * HTTP/1.0 clients do not understand, the connection is closed after the body.
+     */
+    HttpResponse stream(Payload payload, boolean chunked) {
+        this.streamed = true;
+        this.chunked = chunked;
+        this.compressible = false;
+        return append(payload);
+    }
+
+    boolean isStreamed() { return streamed; }
+
+    /**
+     * Whether the status allows a body. Informational responses, 204 No Content and 304 Not Modified
+     * never have one, and a body given to them is not sent.
+     */
+    boolean hasBody() {
+        return status >= 200 && status != 204 && status != 304;
+    }
+
+    boolean isChunked() { return chunked; }
+
+    /**
+     * A plain text response carrying the status line as its body.
+     */
+    static public HttpResponse error(int status) {
+        String text = status + " " + reasonPhrase(status) + "\n";
+        return new HttpResponse(status)
+                .header("Content-Type", "text/plain; charset=utf-8")
+                .body(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A complete error response with Connection: close, encoded once and shared, for requests that
+     * are rejected before they could be parsed. Every call returns a buffer of its own.
+     */
+    static ByteBuffer rejection(int status) {
+        for (int i = 0; i < REJECTION_STATUSES.length; ++i) {
+            if (REJECTION_STATUSES[i] == status)
+                return REJECTIONS[i].duplicate();
+        }
+        throw new IllegalArgumentException("No pre-encoded response for status " + status);
+    }
+
+    static public String reasonPhrase(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 206: return "Partial Content";
+            case 301: return "Moved Permanently";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 408: return "Request Timeout";
+            case 413: return "Payload Too Large";
+            case 414: return "URI Too Long";
+            case 416: return "Range Not Satisfiable";
+            case 429: return "Too Many Requests";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            case 505: return "HTTP Version Not Supported";
+            default: return "Unknown";
+        }
+    }
+
+    HttpResponse append(Payload payload) {
+        body.add(payload);
+        contentLength += payload.remaining();
+        return this;
+    }
+
+    /**
+     * Supplies the entity headers pre-encoded, as cached responses keep them. The buffer holds the
+     * header lines including Content-Length and the empty line that ends the header block.
+     */
+    HttpResponse entityHead(ByteBuffer head) {
+        entityHead = head;
+        return this;
+    }
+
+    ByteBuffer entityHead() {
+        return entityHead;
+    }
+
+    List<Payload> payloads() {
+        return body;
+    }
+
+    /**
+     * Replaces the body with an encoding of it, releasing the old payloads.
+     */
+    void replaceBody(String contentEncoding, List<Payload> encoded) {
+        discardBody();
+        contentLength = 0;
+        for (Payload payload : encoded)
+            append(payload);
+        header("Content-Encoding", contentEncoding);
+    }
+
+    /**
+     * Replaces the body with an encoding of it that is produced while it is sent. The stream takes
+     * over the old payloads and releases them itself.
+     */
+    void replaceBody(String contentEncoding, Payload stream, boolean chunked) {
+        body.clear();
+        contentLength = 0;
+        header("Content-Encoding", contentEncoding);
+        stream(stream, chunked);
+    }
+
+    /**
+     * Releases the body without sending it, for instance when answering a HEAD request.
+     */
+    void discardBody() {
+        for (Payload payload : body)
+            payload.release();
+        body.clear();
+    }
+
+    /**
+     * Encodes the status line and headers, including the terminating empty line, into a heap buffer.
+     * When the entity headers are pre-encoded, they and the empty line are left out and must be sent
+     * right after.
+     */
+    ByteBuffer encodeHead(boolean keepAlive) {
+        return encodeHead(keepAlive, null, HttpDates.dateHeader());
+    }
+
+    /**
+     * Like encodeHead(boolean), but into a buffer borrowed from the pool, which the caller gives back.
+     */
+    ByteBuffer encodeHead(boolean keepAlive, BufferPool pool) {
+        return encodeHead(keepAlive, pool, HttpDates.dateHeader());
+    }
+
+    /**
+     * Copies pre-encoded constants and writes header text and the length straight into the buffer,
+     * without building any intermediate strings.
+     * @param date the encoded Date header line, or null to leave it out
+     */
+    private ByteBuffer encodeHead(boolean keepAlive, BufferPool pool, byte[] date) {
+        byte[] statusLine = status >= 100 && status < STATUS_LINES.length
+                ? STATUS_LINES[status] : ascii("HTTP/1.1 " + status + " " + reasonPhrase(status) + "\r\n");
+        byte[] connection = keepAlive ? KEEP_ALIVE : CLOSE;
+        // Statuses without a body must not have a length, and a 304's would be that of the body it stands for
+        boolean length = entityHead == null && hasBody() && !streamed;
+
+        int size = statusLine.length + SERVER.length + connection.length + 2;
+        if (date != null)
+            size += date.length;
+        for (int i = 0; i < headers.size(); i += 2)
+            size += headers.get(i).length() + headers.get(i + 1).length() + 4;
+        if (length)
+            size += CONTENT_LENGTH.length + MAX_DIGITS + 2;
+        if (chunked)
+            size += CHUNKED.length;
+
+        ByteBuffer buffer = pool != null ? pool.acquire(size) : ByteBuffer.allocate(size);
+        buffer.put(statusLine);
+        if (date != null)
+            buffer.put(date);
+        buffer.put(SERVER);
+        for (int i = 0; i < headers.size(); i += 2) {
+            putText(buffer, headers.get(i));
+            buffer.put((byte) ':').put((byte) ' ');
+            putText(buffer, headers.get(i + 1));
+            buffer.put((byte) '\r').put((byte) '\n');
+        }
+        buffer.put(connection);
+        if (chunked)
+            buffer.put(CHUNKED);
+        if (length) {
+            buffer.put(CONTENT_LENGTH);
+            putDecimal(buffer, contentLength);
+            buffer.put((byte) '\r').put((byte) '\n');
+        }
+        if (entityHead == null)
+            buffer.put((byte) '\r').put((byte) '\n');
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Writes the text as ISO-8859-1, replacing characters outside it as String.getBytes would.
+     */
+    private static void putText(ByteBuffer buffer, String text) {
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            buffer.put(c <= 0xFF ? (byte) c : (byte) '?');
+        }
+    }
+
+    private static void putDecimal(ByteBuffer buffer, long value) {
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10)
+            ++digits;
+
+        int end = buffer.position() + digits;
+        for (int i = end - 1; i >= buffer.position(); --i) {
+            buffer.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(end);
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
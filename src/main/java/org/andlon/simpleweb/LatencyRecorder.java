@@ -0,0 +1,87 @@
+package org.andlon.simpleweb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations that any number of threads can record into without locking or allocating.
+ *
+ * As in HdrHistogram, every power of two range of values is split into 32 linear buckets, which bounds
+ * the error of a reported percentile to about 3 % across the whole range of a long. Recording a value
+ * costs one atomic increment of its bucket plus two striped counters.
+ */
+public final class LatencyRecorder {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray m_buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder m_count = new LongAdder();
+    private final LongAdder m_sum = new LongAdder();
+    private final AtomicLong m_max = new AtomicLong();
+
+    /**
+     * Records a duration in nanoseconds. Negative values count as zero.
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        m_buckets.incrementAndGet(bucket(nanos));
+        m_count.increment();
+        m_sum.add(nanos);
+
+        long max = m_max.get();
+        while (nanos > max && !m_max.compareAndSet(max, nanos))
+            max = m_max.get();
+    }
+
+    public long count() { return m_count.sum(); }
+
+    /**
+     * Sum of all recorded durations, in nanoseconds.
+     */
+    public long sum() { return m_sum.sum(); }
+
+    public long max() { return m_max.get(); }
+
+    /**
+     * The duration below which the given percentage of recorded durations fall, in nanoseconds.
+     * Values recorded while this runs may or may not be taken into account.
+     */
+    public long percentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = m_buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestInBucket(i), max());
+        }
+        return max();
+    }
+
+    private static int bucket(long value) {
+        int magnitude = 64 - Long.numberOfLeadingZeros(value);
+        if (magnitude <= SUB_BUCKET_BITS + 1)
+            return (int) value;
+        int shift = magnitude - SUB_BUCKET_BITS - 1;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long highestInBucket(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long value = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((value + 1) << shift) - 1;
+    }
+}
@@ -1,16 +1,123 @@
 package org.andlon.simpleweb;
 
-import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
 
 public class Main {
 
     public static void main(String[] args) {
         try {
-            System.out.println("Starting web server on port 9000...");
-            SimpleWebServer server = new SimpleWebServer(9000);
+            ServerConfig config = parseArguments(args);
+            System.out.println("Starting web server on port " + config.port() + "...");
+            if (config.warmupRequests() > 0)
+                System.out.println("Warming up with " + config.warmupRequests() + " requests...");
+            SimpleWebServer server = new SimpleWebServer(config);
+            if (Boolean.getBoolean("simpleweb.trainingRun")) {
+                // Only the warm-up was wanted, to record the classes it loads in an archive
+                server.shutdown(Duration.ZERO);
+                return;
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.shutdown(Duration.ofMillis(config.shutdownTimeout()));
+                } catch (InterruptedException e) { }
+            }, "simpleweb-shutdown"));
             server.run();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    private static ServerConfig parseArguments(String[] args) {
+        ServerConfig config = new ServerConfig();
+
+        for (int i = 0; i < args.length; ++i) {
+            String option = args[i];
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for option " + option);
+            String value = args[++i];
+
+            switch (option) {
+                case "--port":
+                    config.port(Integer.parseInt(value));
+                    break;
+                case "--workers":
+                    config.workers(Integer.parseInt(value));
+                    break;
+                case "--root":
+                    config.documentRoot(Paths.get(value));
+                    break;
+                case "--listings":
+                    config.directoryListings(Boolean.parseBoolean(value));
+                    break;
+                case "--mmap-min-size":
+                    config.mappedFileMinSize(Long.parseLong(value));
+                    break;
+                case "--acceptors":
+                    config.acceptors(Integer.parseInt(value));
+                    break;
+                case "--idle-timeout":
+                    config.idleTimeout(Long.parseLong(value));
+                    break;
+                case "--header-timeout":
+                    config.headerTimeout(Long.parseLong(value));
+                    break;
+                case "--body-timeout":
+                    config.bodyTimeout(Long.parseLong(value));
+                    break;
+                case "--shutdown-timeout":
+                    config.shutdownTimeout(Long.parseLong(value));
+                    break;
+                case "--blocking-handlers":
+                    config.blockingHandlers(Boolean.parseBoolean(value));
+                    break;
+                case "--thread-per-connection":
+                    config.threadPerConnection(Boolean.parseBoolean(value));
+                    break;
+                case "--max-handlers":
+                    config.maxConcurrentHandlers(Integer.parseInt(value));
+                    break;
+                case "--max-request-line":
+                    config.maxRequestLineLength(Integer.parseInt(value));
+                    break;
+                case "--max-headers":
+                    config.maxHeaderCount(Integer.parseInt(value));
+                    break;
+                case "--max-header-bytes":
+                    config.maxHeaderBytes(Integer.parseInt(value));
+                    break;
+                case "--max-body-size":
+                    config.maxBodySize(Long.parseLong(value));
+                    break;
+                case "--max-client-connections":
+                    config.maxClientConnections(Integer.parseInt(value));
+                    break;
+                case "--max-client-rate":
+                    config.maxClientRequestRate(Integer.parseInt(value));
+                    break;
+                case "--metrics-path":
+                    config.metricsPath(value);
+                    break;
+                case "--jmx":
+                    config.jmx(Boolean.parseBoolean(value));
+                    break;
+                case "--compression":
+                    config.compression(Boolean.parseBoolean(value));
+                    break;
+                case "--compression-level":
+                    config.compressionLevel(Integer.parseInt(value));
+                    break;
+                case "--compression-min-size":
+                    config.compressionMinSize(Integer.parseInt(value));
+                    break;
+                case "--warmup":
+                    config.warmupRequests(Integer.parseInt(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+
+        return config;
+    }
 }
@@ -4,8 +4,50 @@ package org.andlon.simpleweb;
  * Created by Andreas on 31.05.2014.
  */
 public class MalformedRequestException extends Exception {
-    public MalformedRequestException() { super(); }
-    public MalformedRequestException(String message) { super(message); }
-    public MalformedRequestException(String message, Throwable cause) { super(message, cause); }
-    public MalformedRequestException(Throwable cause) { super(cause); }
+    /**
+     * The part of the request that was found to be malformed, so that failures can be counted by cause,
+     * along with the status the request is answered with.
+     */
+    public enum Reason {
+        METHOD(400),
+        REQUEST_LINE(400),
+        REQUEST_LINE_TOO_LONG(414),
+        VERSION_NOT_SUPPORTED(505),
+        HEADER(400),
+        TOO_MANY_HEADERS(431),
+        HEADERS_TOO_LARGE(431),
+        LINE_ENDING(400),
+        CONTENT_LENGTH(400),
+        TRANSFER_ENCODING(400),
+        CHUNK(400),
+        BODY_TOO_LARGE(413),
+        OTHER(400);
+
+        private final int status;
+
+        Reason(int status) {
+            this.status = status;
+        }
+
+        public int status() { return status; }
+    }
+
+    private final Reason reason;
+
+    public MalformedRequestException() { this(Reason.OTHER, null); }
+    public MalformedRequestException(String message) { this(Reason.OTHER, message); }
+    public MalformedRequestException(String message, Throwable cause) { super(message, cause); this.reason = Reason.OTHER; }
+    public MalformedRequestException(Throwable cause) { super(cause); this.reason = Reason.OTHER; }
+    public MalformedRequestException(Reason reason, String message) { this(reason, message, true); }
+
+    /**
+     * @param stackTrace false to skip capturing the stack trace, which is most of the cost of throwing
+     *                   when a server is flooded with bad requests
+     */
+    public MalformedRequestException(Reason reason, String message, boolean stackTrace) {
+        super(message, null, false, stackTrace);
+        this.reason = reason;
+    }
+
+    public Reason reason() { return reason; }
 }
@@ -0,0 +1,252 @@
+package org.andlon.simpleweb;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Memory mappings of large, read-mostly files, shared by all connections and event loops.
+ *
+ * A file is mapped once and every response for it writes slices of the same mapping, so the pages
+ * live in the page cache only and are never copied onto the heap. Mappings are reference counted:
+ * the cache holds one reference and every response in flight holds another. A mapping that is
+ * evicted or belongs to a file that changed is unmapped once the last response using it is done.
+ */
+public class MappedFileCache {
+    private static final Unmapper UNMAPPER = Unmapper.create();
+
+    private final long m_capacity;
+    private final long m_minFileSize;
+    // Access ordered, so iteration starts with the least recently used mapping
+    private final LinkedHashMap<Path, Mapping> m_mappings = new LinkedHashMap<Path, Mapping>(16, 0.75f, true);
+    private long m_mappedBytes = 0;
+
+    /**
+     * @param capacity total size of the files that may be mapped at the same time
+     * @param minFileSize smallest file that is served from a mapping
+     */
+    public MappedFileCache(long capacity, long minFileSize) {
+        m_capacity = capacity;
+        m_minFileSize = minFileSize;
+    }
+
+    public long minFileSize() { return m_minFileSize; }
+
+    public synchronized long mappedBytes() { return m_mappedBytes; }
+
+    public synchronized int mappingCount() { return m_mappings.size(); }
+
+    /**
+     * Whether a file of the given size should be served from a mapping. A single mapping is
+     * limited to 2 GiB.
+     */
+    boolean accepts(long size) {
+        return size >= m_minFileSize && size <= Math.min(m_capacity, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns a mapping of the file with a reference held for the caller, mapping the file if it is
+     * not mapped yet or has changed since it was mapped. The caller must release the reference.
+     */
+    Mapping acquire(Path path, long lastModified, long size) throws IOException {
+        synchronized (this) {
+            Mapping mapping = m_mappings.get(path);
+            if (mapping != null) {
+                if (mapping.lastModified == lastModified && mapping.size == size && mapping.retain())
+                    return mapping;
+                remove(path, mapping);
+            }
+        }
+
+        // Map outside the lock, other threads may keep serving their files in the meantime
+        MappedByteBuffer buffer;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        Mapping mapping = new Mapping(buffer, lastModified, size);
+        mapping.retain();
+
+        synchronized (this) {
+            Mapping previous = m_mappings.put(path, mapping);
+            if (previous != null) {
+                m_mappedBytes -= previous.size;
+                previous.release();
+            }
+            m_mappedBytes += size;
+            evictOverflow(mapping);
+        }
+        return mapping;
+    }
+
+    /**
+     * Drops the cache's reference to every mapping.
+     */
+    public synchronized void clear() {
+        for (Mapping mapping : m_mappings.values())
+            mapping.release();
+        m_mappings.clear();
+        m_mappedBytes = 0;
+    }
+
+    private void remove(Path path, Mapping mapping) {
+        m_mappings.remove(path);
+        m_mappedBytes -= mapping.size;
+        mapping.release();
+    }
+
+    private void evictOverflow(Mapping keep) {
+        Iterator<Map.Entry<Path, Mapping>> i = m_mappings.entrySet().iterator();
+        while (m_mappedBytes > m_capacity && i.hasNext()) {
+            Mapping mapping = i.next().getValue();
+            if (mapping == keep)
+                continue;
+            i.remove();
+            m_mappedBytes -= mapping.size;
+            mapping.release();
+        }
+    }
+
+    /**
+     * A mapped file. Slices handed out as payloads keep the mapping alive until they are released.
+     */
+    static final class Mapping {
+        final long lastModified;
+        final long size;
+        private final MappedByteBuffer m_buffer;
+        private final AtomicInteger m_references = new AtomicInteger(1);
+
+        private Mapping(MappedByteBuffer buffer, long lastModified, long size) {
+            m_buffer = buffer;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        /**
+         * Takes a reference, unless the mapping has already been released for good.
+         */
+        boolean retain() {
+            while (true) {
+                int references = m_references.get();
+                if (references == 0)
+                    return false;
+                if (m_references.compareAndSet(references, references + 1))
+                    return true;
+            }
+        }
+
+        void release() {
+            if (m_references.decrementAndGet() == 0)
+                UNMAPPER.unmap(m_buffer);
+        }
+
+        /**
+         * A payload writing count bytes from position. The payload takes over one reference to the
+         * mapping, obtained from acquire() or retain(), and gives it back when it is released.
+         */
+        Payload slice(long position, long count) {
+            ByteBuffer slice = m_buffer.duplicate();
+            slice.position((int) position).limit((int) (position + count));
+            return new MappedPayload(this, slice);
+        }
+    }
+
+    static private class MappedPayload extends Payload {
+        private final Mapping m_mapping;
+        private final ByteBuffer m_slice;
+        private final int m_size;
+        private boolean m_released = false;
+
+        MappedPayload(Mapping mapping, ByteBuffer slice) {
+            m_mapping = mapping;
+            m_slice = slice;
+            m_size = slice.remaining();
+        }
+
+        @Override
+        public long remaining() {
+            return m_slice.remaining();
+        }
+
+        @Override
+        public long written() {
+            return m_size - m_slice.remaining();
+        }
+
+        @Override
+        public boolean writeTo(GatheringByteChannel channel) throws IOException {
+            channel.write(m_slice);
+            return !m_slice.hasRemaining();
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return m_slice;
+        }
+
+        @Override
+        public void release() {
+            if (!m_released) {
+                m_released = true;
+                m_mapping.release();
+            }
+        }
+    }
+
+    /**
+     * Releases the memory of a mapping right away instead of waiting for the garbage collector,
+     * which matters for large files. There is no public API for this, so it uses sun.misc.Unsafe
+     * on Java 9 and later and the buffer's cleaner on Java 8. If neither is available, mappings
+     * are left to the garbage collector.
+     */
+    static private abstract class Unmapper {
+        abstract void unmap(MappedByteBuffer buffer);
+
+        static Unmapper create() {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                Object unsafe = field.get(null);
+                return new Unmapper() {
+                    @Override
+                    void unmap(MappedByteBuffer buffer) {
+                        try {
+                            invokeCleaner.invoke(unsafe, buffer);
+                        } catch (ReflectiveOperationException e) { }
+                    }
+                };
+            } catch (ReflectiveOperationException | RuntimeException e) { }
+
+            try {
+                Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                return new Unmapper() {
+                    @Override
+                    void unmap(MappedByteBuffer buffer) {
+                        try {
+                            Object bufferCleaner = cleaner.invoke(buffer);
+                            if (bufferCleaner != null)
+                                clean.invoke(bufferCleaner);
+                        } catch (ReflectiveOperationException | RuntimeException e) { }
+                    }
+                };
+            } catch (ReflectiveOperationException | RuntimeException e) { }
+
+            return new Unmapper() {
+                @Override
+                void unmap(MappedByteBuffer buffer) { }
+            };
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.andlon.simpleweb;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Answers GET requests for one path with the server's metrics in the Prometheus text format and
+ * passes everything else on to the actual handler.
+ */
+final class MetricsHandler implements RequestHandler {
+    private final String m_path;
+    private final ServerMetrics m_metrics;
+    private final RequestHandler m_next;
+
+    MetricsHandler(String path, ServerMetrics metrics, RequestHandler next) {
+        m_path = path;
+        m_metrics = metrics;
+        m_next = next;
+    }
+
+    @Override
+    public HttpResponse handle(HttpRequest request) throws IOException {
+        if (!isMetricsRequest(request))
+            return m_next.handle(request);
+        return new HttpResponse(200)
+                .header("Content-Type", "text/plain; version=0.0.4; charset=utf-8")
+                .header("Cache-Control", "no-cache")
+                .body(m_metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public BodyConsumer bodyConsumer(HttpRequest request, Runnable resume) throws IOException {
+        return isMetricsRequest(request) ? null : m_next.bodyConsumer(request, resume);
+    }
+
+    private boolean isMetricsRequest(HttpRequest request) {
+        HttpRequest.Type type = request.type();
+        return (type == HttpRequest.Type.GET || type == HttpRequest.Type.HEAD) && m_path.equals(request.uri());
+    }
+}
@@ -0,0 +1,55 @@
+package org.andlon.simpleweb;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Maps file name extensions to Content-Type values.
+ */
+final class MimeTypes {
+    static final String DEFAULT = "application/octet-stream";
+
+    private static final HashMap<String, String> TYPES = new HashMap<String, String>() {{
+        put("html", "text/html; charset=utf-8");
+        put("htm", "text/html; charset=utf-8");
+        put("css", "text/css; charset=utf-8");
+        put("js", "application/javascript; charset=utf-8");
+        put("mjs", "application/javascript; charset=utf-8");
+        put("json", "application/json");
+        put("xml", "application/xml");
+        put("txt", "text/plain; charset=utf-8");
+        put("csv", "text/csv; charset=utf-8");
+        put("md", "text/markdown; charset=utf-8");
+        put("svg", "image/svg+xml");
+        put("png", "image/png");
+        put("jpg", "image/jpeg");
+        put("jpeg", "image/jpeg");
+        put("gif", "image/gif");
+        put("webp", "image/webp");
+        put("ico", "image/x-icon");
+        put("woff", "font/woff");
+        put("woff2", "font/woff2");
+        put("ttf", "font/ttf");
+        put("otf", "font/otf");
+        put("wasm", "application/wasm");
+        put("pdf", "application/pdf");
+        put("zip", "application/zip");
+        put("gz", "application/gzip");
+        put("mp3", "audio/mpeg");
+        put("ogg", "audio/ogg");
+        put("wav", "audio/wav");
+        put("mp4", "video/mp4");
+        put("webm", "video/webm");
+    }};
+
+    private MimeTypes() { }
+
+    static String forFileName(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0 || dot == fileName.length() - 1)
+            return DEFAULT;
+
+        String type = TYPES.get(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+        return type == null ? DEFAULT : type;
+    }
+}
@@ -0,0 +1,65 @@
+package org.andlon.simpleweb;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded queue with any number of producers and a single consumer, such as an event loop taking
+ * work from other threads. Offering swaps the tail with one atomic instruction and never retries or
+ * blocks, however many threads offer at once, and the consumer takes elements without any atomic
+ * instruction at all.
+ *
+ * An element is visible to the consumer once its producer has linked it to its predecessor, right
+ * after the swap. Until then, poll() may find the queue empty even though offer() has begun, so the
+ * producer has to wake the consumer after offering, not before.
+ */
+final class MpscQueue<E> {
+    private static final class Node<E> {
+        E value;
+        volatile Node<E> next;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    // The last node, the only field producers touch
+    private final AtomicReference<Node<E>> m_tail;
+    // The node before the first element, consumer only
+    private Node<E> m_head;
+
+    MpscQueue() {
+        Node<E> stub = new Node<E>(null);
+        m_head = stub;
+        m_tail = new AtomicReference<Node<E>>(stub);
+    }
+
+    /**
+     * Adds an element at the end. May be called from any thread.
+     */
+    void offer(E value) {
+        Node<E> node = new Node<E>(value);
+        m_tail.getAndSet(node).next = node;
+    }
+
+    /**
+     * Takes the first element. Consumer only.
+     * @return the element, or null if there is none
+     */
+    E poll() {
+        Node<E> next = m_head.next;
+        if (next == null)
+            return null;
+        E value = next.value;
+        // The node becomes the new stub and must not keep the element alive
+        next.value = null;
+        m_head = next;
+        return value;
+    }
+
+    /**
+     * Whether poll() would return null right now. Consumer only.
+     */
+    boolean isEmpty() {
+        return m_head.next == null;
+    }
+}
@@ -0,0 +1,185 @@
+package org.andlon.simpleweb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * A piece of a response waiting to be written to a connection. In-memory payloads expose their
+ * buffer so that consecutive ones can be combined into a single gathering write.
+ */
+abstract class Payload {
+    public abstract long remaining();
+
+    /**
+     * Bytes of the payload written so far. What a write sent is counted by this rather than by
+     * remaining(), which grows while a stream is still being produced.
+     */
+    public abstract long written();
+
+    /**
+     * Writes as much of the payload as the channel accepts.
+     * @return true if the payload has been written completely.
+     */
+    public abstract boolean writeTo(GatheringByteChannel channel) throws IOException;
+
+    /**
+     * For a payload that stopped writing because it has nothing to write yet, rather than because the
+     * channel was full, registers a listener to be run once it has more. The listener is run once, on
+     * whatever thread produces the data.
+     * @return true if the listener was registered, false if the payload can be written right away.
+     */
+    public boolean awaitData(Runnable listener) {
+        return false;
+    }
+
+    /**
+     * The in-memory buffer backing this payload, or null if it is not held in memory.
+     */
+    public ByteBuffer buffer() {
+        return null;
+    }
+
+    /**
+     * Frees resources held by the payload. Called once the payload has been written, or when the
+     * connection is closed before that.
+     */
+    public void release() { }
+
+    static public Payload of(ByteBuffer buffer) {
+        return new BufferPayload(buffer);
+    }
+
+    /**
+     * A buffer borrowed from the pool, which is given back once the payload has been written.
+     */
+    static Payload ofPooled(ByteBuffer buffer, BufferPool pool) {
+        return new PooledPayload(buffer, pool);
+    }
+
+    /**
+     * A body of unknown length, produced piece by piece on the executor while it is written.
+     * @param chunked whether to frame the pieces in the chunked transfer coding
+     */
+    static Payload ofStream(StreamPayload.Source source, Executor executor, boolean chunked) {
+        return new StreamPayload(source, executor, chunked);
+    }
+
+    static public Payload ofFile(FileChannel file, long position, long count) {
+        return new FilePayload(file, position, count, true);
+    }
+
+    /**
+     * A region of a file that stays open when the payload is released, for several regions of one file.
+     */
+    static Payload ofFileRegion(FileChannel file, long position, long count) {
+        return new FilePayload(file, position, count, false);
+    }
+
+    static private class BufferPayload extends Payload {
+        private final ByteBuffer m_buffer;
+        private final int m_size;
+
+        BufferPayload(ByteBuffer buffer) {
+            m_buffer = buffer;
+            m_size = buffer.remaining();
+        }
+
+        @Override
+        public long remaining() {
+            return m_buffer.remaining();
+        }
+
+        @Override
+        public long written() {
+            return m_size - m_buffer.remaining();
+        }
+
+        @Override
+        public boolean writeTo(GatheringByteChannel channel) throws IOException {
+            channel.write(m_buffer);
+            return !m_buffer.hasRemaining();
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return m_buffer;
+        }
+    }
+
+    static private class PooledPayload extends BufferPayload {
+        private final BufferPool m_pool;
+        private boolean m_released = false;
+
+        PooledPayload(ByteBuffer buffer, BufferPool pool) {
+            super(buffer);
+            m_pool = pool;
+        }
+
+        @Override
+        public void release() {
+            if (!m_released) {
+                m_released = true;
+                m_pool.release(buffer());
+            }
+        }
+    }
+
+    /**
+     * A region of a file, sent with FileChannel.transferTo so that the operating system can copy
+     * it to the socket without the bytes passing through the Java heap. The file is closed on release,
+     * unless the payload is one of several regions of it.
+     */
+    static private class FilePayload extends Payload {
+        private final FileChannel m_file;
+        private long m_position;
+        private long m_remaining;
+        private final long m_count;
+        private final boolean m_close;
+
+        FilePayload(FileChannel file, long position, long count, boolean close) {
+            m_file = file;
+            m_position = position;
+            m_remaining = count;
+            m_count = count;
+            m_close = close;
+        }
+
+        @Override
+        public long remaining() {
+            return m_remaining;
+        }
+
+        @Override
+        public long written() {
+            return m_count - m_remaining;
+        }
+
+        @Override
+        public boolean writeTo(GatheringByteChannel channel) throws IOException {
+            while (m_remaining > 0) {
+                long written = m_file.transferTo(m_position, m_remaining, channel);
+                if (written <= 0) {
+                    // A file shorter than announced would otherwise leave us spinning forever
+                    if (m_position >= m_file.size())
+                        throw new IOException("File truncated while being sent.");
+                    return false;
+                }
+                m_position += written;
+                m_remaining -= written;
+            }
+            return true;
+        }
+
+        @Override
+        public void release() {
+            if (!m_close)
+                return;
+            try {
+                m_file.close();
+            } catch (IOException e) { }
+        }
+    }
+}
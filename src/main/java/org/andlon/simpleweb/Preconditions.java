@@ -0,0 +1,77 @@
+package org.andlon.simpleweb;
+
+/**
+ * Validators of files and evaluation of the conditional request headers against them.
+ *
+ * Entity tags are derived from a file's modification time and size, so they can be computed from a
+ * file's attributes without reading it. Compressed variants get tags of their own, since they are
+ * different representations of the file.
+ */
+final class Preconditions {
+    private Preconditions() { }
+
+    /**
+     * The strong entity tag of a version of a file, including the quotes.
+     * @param encoding the content coding of the representation, or null for the file itself
+     */
+    static String etag(long lastModified, long size, Compressor.Encoding encoding) {
+        StringBuilder tag = new StringBuilder(32).append('"')
+                .append(Long.toHexString(lastModified)).append('-').append(Long.toHexString(size));
+        if (encoding != null)
+            tag.append('-').append(encoding.token);
+        return tag.append('"').toString();
+    }
+
+    /**
+     * Whether a GET or HEAD can be answered with 304 Not Modified. If-Modified-Since is only looked at
+     * without If-None-Match, which is the more precise of the two.
+     */
+    static boolean isNotModified(HttpRequest request, String etag, long lastModified) {
+        String noneMatch = request.header(HttpHeader.IF_NONE_MATCH);
+        if (noneMatch != null)
+            return matchesAny(noneMatch, etag);
+
+        String modifiedSince = request.header(HttpHeader.IF_MODIFIED_SINCE);
+        if (modifiedSince == null)
+            return false;
+        long since = HttpDates.parse(modifiedSince);
+        // Dates in headers only have whole seconds
+        return since >= 0 && lastModified / 1000 <= since / 1000;
+    }
+
+    /**
+     * Whether the Range header applies. With If-Range, it only does if the client's copy is the current
+     * version, as told by a strong entity tag or the exact modification time.
+     */
+    static boolean isRangeCurrent(HttpRequest request, String etag, long lastModified) {
+        String ifRange = request.header(HttpHeader.IF_RANGE);
+        if (ifRange == null)
+            return true;
+
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+            return ifRange.equals(etag);
+        long date = HttpDates.parse(ifRange);
+        return date >= 0 && date / 1000 == lastModified / 1000;
+    }
+
+    /**
+     * Weak comparison of an If-None-Match list against a strong tag.
+     */
+    private static boolean matchesAny(String list, String etag) {
+        int start = 0;
+        while (start < list.length()) {
+            int end = list.indexOf(',', start);
+            if (end < 0)
+                end = list.length();
+
+            String tag = list.substring(start, end).trim();
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag))
+                return true;
+            start = end + 1;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,132 @@
+package org.andlon.simpleweb;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A request body collected by the server for handlers that do not consume it as a stream.
+ *
+ * Small bodies are kept in memory. Once a body grows past the threshold, everything received so far
+ * is moved to a temporary file and the rest is appended there, so an upload never occupies more than
+ * the threshold on the heap. The body, including its file, is only valid while the request is handled.
+ */
+public final class RequestBody implements BodyConsumer {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int m_threshold;
+    private final Path m_directory;
+    private byte[] m_memory = EMPTY;
+    private long m_size = 0;
+    private Path m_file;
+    private FileChannel m_channel;
+
+    /**
+     * @param threshold largest body kept in memory
+     * @param directory where bodies above the threshold are spilled, or null for the system default
+     */
+    RequestBody(int threshold, Path directory) {
+        m_threshold = threshold;
+        m_directory = directory;
+    }
+
+    public long size() { return m_size; }
+
+    public boolean isInMemory() { return m_file == null; }
+
+    /**
+     * The file holding the body, or null if it is kept in memory. The file is deleted once the
+     * request has been handled.
+     */
+    public Path file() { return m_file; }
+
+    /**
+     * A read-only view of the body if it is kept in memory, null otherwise.
+     */
+    public ByteBuffer buffer() {
+        if (m_file != null)
+            return null;
+        return ByteBuffer.wrap(m_memory, 0, (int) m_size).asReadOnlyBuffer();
+    }
+
+    public InputStream stream() throws IOException {
+        if (m_file != null)
+            return Files.newInputStream(m_file);
+        return new ByteArrayInputStream(m_memory, 0, (int) m_size);
+    }
+
+    /**
+     * Decodes the whole body. For a spilled body this reads the file into memory.
+     */
+    public String text(Charset charset) throws IOException {
+        if (m_file != null)
+            return new String(Files.readAllBytes(m_file), charset);
+        return new String(m_memory, 0, (int) m_size, charset);
+    }
+
+    @Override
+    public boolean onData(ByteBuffer data) throws IOException {
+        int count = data.remaining();
+        if (m_file == null && m_size + count <= m_threshold) {
+            if (m_size + count > m_memory.length)
+                m_memory = Arrays.copyOf(m_memory, (int) Math.min(m_threshold, Math.max(m_memory.length * 2, m_size + count)));
+            data.get(m_memory, (int) m_size, count);
+        } else {
+            if (m_file == null)
+                spill();
+            while (data.hasRemaining())
+                m_channel.write(data);
+        }
+        m_size += count;
+        return true;
+    }
+
+    @Override
+    public void onEnd() throws IOException {
+        if (m_channel != null) {
+            m_channel.close();
+            m_channel = null;
+        }
+    }
+
+    @Override
+    public void onAbort() {
+        discard();
+    }
+
+    /**
+     * Releases the body, deleting its file if it has one.
+     */
+    void discard() {
+        try {
+            if (m_channel != null)
+                m_channel.close();
+            if (m_file != null)
+                Files.deleteIfExists(m_file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        m_channel = null;
+        m_file = null;
+        m_memory = EMPTY;
+        m_size = 0;
+    }
+
+    private void spill() throws IOException {
+        m_file = m_directory == null ? Files.createTempFile("simpleweb-body", ".tmp")
+                : Files.createTempFile(m_directory, "simpleweb-body", ".tmp");
+        m_channel = FileChannel.open(m_file, StandardOpenOption.WRITE);
+
+        ByteBuffer buffered = ByteBuffer.wrap(m_memory, 0, (int) m_size);
+        while (buffered.hasRemaining())
+            m_channel.write(buffered);
+        m_memory = EMPTY;
+    }
+}
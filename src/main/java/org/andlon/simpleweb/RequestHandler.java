@@ -0,0 +1,23 @@
+package org.andlon.simpleweb;
+
+import java.io.IOException;
+
+/**
+ * Produces the response to a complete request. Handlers are called from the event loop that owns
+ * the connection, so they should not block for long.
+ */
+public interface RequestHandler {
+    public HttpResponse handle(HttpRequest request) throws IOException;
+
+    /**
+     * Called when the headers of a request with a body are complete, before any of the body has been
+     * read. A handler that wants to process the body as it arrives, rather than have the server
+     * collect it into a RequestBody, returns a consumer for it. Returning false from
+     * BodyConsumer.onData() stops reading from the connection until resume is run, which may be
+     * done from any thread.
+     * @return the consumer, or null to let the server collect the body.
+     */
+    public default BodyConsumer bodyConsumer(HttpRequest request, Runnable resume) throws IOException {
+        return null;
+    }
+}
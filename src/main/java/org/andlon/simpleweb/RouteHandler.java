@@ -0,0 +1,11 @@
+package org.andlon.simpleweb;
+
+import java.io.IOException;
+
+/**
+ * Produces the response to a request matched by a Router. The match holds the values of the route's
+ * path parameters.
+ */
+public interface RouteHandler {
+    public HttpResponse handle(HttpRequest request, RouteMatch match) throws IOException;
+}
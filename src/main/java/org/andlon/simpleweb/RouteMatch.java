@@ -0,0 +1,119 @@
+package org.andlon.simpleweb;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The route a request matched and where its path parameters are in the URI. Values are only decoded
+ * when asked for, so a route that does not look at its parameters costs no Strings.
+ *
+ * A Router reuses one match per thread, so a match is only valid during the call to the route's
+ * handler and must not be kept or passed to other threads.
+ */
+public final class RouteMatch {
+    private String m_pattern;
+    private String[] m_names;
+    private byte[] m_path;
+    // Start and end of every parameter in the path, in pairs
+    private final int[] m_ranges;
+    private int m_count;
+
+    RouteMatch(int maxParameters) {
+        m_ranges = new int[2 * maxParameters];
+    }
+
+    /**
+     * The pattern of the route, such as "/users/:id".
+     */
+    public String pattern() {
+        return m_pattern;
+    }
+
+    public int parameterCount() {
+        return m_count;
+    }
+
+    /**
+     * The name of a parameter, as given in the pattern without its leading ':' or '*'.
+     */
+    public String name(int index) {
+        checkIndex(index);
+        return m_names[index];
+    }
+
+    /**
+     * The percent-decoded value of a parameter. A wildcard's value is the rest of the path without its
+     * leading slash, which can be empty.
+     */
+    public String parameter(int index) {
+        checkIndex(index);
+        return decode(m_path, m_ranges[2 * index], m_ranges[2 * index + 1]);
+    }
+
+    /**
+     * @return the percent-decoded value of the named parameter, or null if the route has none by that name.
+     */
+    public String parameter(String name) {
+        for (int i = 0; i < m_count; ++i) {
+            if (m_names[i].equals(name))
+                return parameter(i);
+        }
+        return null;
+    }
+
+    void start(byte[] path) {
+        m_path = path;
+        m_count = 0;
+    }
+
+    void set(int index, int start, int end) {
+        m_ranges[2 * index] = start;
+        m_ranges[2 * index + 1] = end;
+    }
+
+    void matched(int count) {
+        m_count = count;
+    }
+
+    void route(String pattern, String[] names) {
+        m_pattern = pattern;
+        m_names = names;
+    }
+
+    void clear() {
+        m_path = null;
+        m_pattern = null;
+        m_names = null;
+        m_count = 0;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= m_count)
+            throw new IndexOutOfBoundsException("No parameter " + index + " in " + m_pattern);
+    }
+
+    /**
+     * Percent-decodes a span of a URI as UTF-8. Malformed escapes are left as they are.
+     */
+    private static String decode(byte[] bytes, int from, int to) {
+        int percent = from;
+        while (percent < to && bytes[percent] != '%')
+            ++percent;
+        if (percent == to)
+            return new String(bytes, from, to - from, StandardCharsets.ISO_8859_1);
+
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(to - from);
+        decoded.write(bytes, from, percent - from);
+        for (int i = percent; i < to; ++i) {
+            int high = i + 2 < to && bytes[i] == '%' ? Character.digit(bytes[i + 1], 16) : -1;
+            int low = high < 0 ? -1 : Character.digit(bytes[i + 2], 16);
+            if (low < 0) {
+                decoded.write(bytes[i]);
+                continue;
+            }
+            decoded.write((high << 4) | low);
+            i += 2;
+        }
+        return new String(decoded.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,436 @@
+package org.andlon.simpleweb;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Dispatches requests to handlers by method and path. Patterns are paths in which whole segments can
+ * be parameters, written ":name", and whose last segment can be a wildcard, written "*name", which
+ * matches the rest of the path:
+ *
+ *     Router router = new Router.Builder()
+ *             .get("/users/:id", (request, match) -> user(match.parameter("id")))
+ *             .get("/assets/*file", (request, match) -> asset(match.parameter("file")))
+ *             .build();
+ *
+ * The routes are compiled into an immutable radix trie over the bytes of the path. A lookup walks the
+ * URI bytes the parser received without building a String, so its cost grows with the length of the
+ * path and not with the number of routes, and it allocates nothing. Where routes overlap, static
+ * segments take precedence over parameters and parameters over wildcards. Static segments are
+ * compared with the path as it was sent, without percent-decoding it.
+ *
+ * HEAD requests go to the GET route of a path unless it has a HEAD route of its own. A path that
+ * matches only routes for other methods is answered with 405 Method Not Allowed. Requests matching no
+ * route go to the fallback handler, or get 404 Not Found without one. A server with a document root
+ * gives a router without a fallback its static files as fallback.
+ */
+public final class Router implements RequestHandler {
+    private static final HttpRequest.Type[] TYPES = HttpRequest.Type.values();
+    // The path of absolute-form request targets without one
+    private static final byte[] ROOT = { '/' };
+    private static final byte[] HTTP = "http://".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] HTTPS = "https://".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final Node m_root;
+    private final int m_maxParameters;
+    private final RequestHandler m_fallback;
+    private final ThreadLocal<RouteMatch> m_matches;
+
+    private Router(Node root, int maxParameters, RequestHandler fallback) {
+        m_root = root;
+        m_maxParameters = maxParameters;
+        m_fallback = fallback;
+        m_matches = ThreadLocal.withInitial(() -> new RouteMatch(maxParameters));
+    }
+
+    public RequestHandler fallback() {
+        return m_fallback;
+    }
+
+    /**
+     * A router with the same routes and another fallback. The routes are shared, not compiled again.
+     */
+    public Router withFallback(RequestHandler fallback) {
+        return new Router(m_root, m_maxParameters, fallback);
+    }
+
+    @Override
+    public HttpResponse handle(HttpRequest request) throws IOException {
+        RouteMatch match = m_matches.get();
+        Endpoint endpoint = find(request, match);
+        if (endpoint == null) {
+            match.clear();
+            return m_fallback != null ? m_fallback.handle(request) : HttpResponse.error(404);
+        }
+
+        Route route = endpoint.route(request.type());
+        if (route == null) {
+            match.clear();
+            return HttpResponse.error(405).header("Allow", endpoint.allow);
+        }
+        try {
+            match.route(route.pattern, route.names);
+            return route.handler.handle(request, match);
+        } finally {
+            match.clear();
+        }
+    }
+
+    @Override
+    public BodyConsumer bodyConsumer(HttpRequest request, Runnable resume) throws IOException {
+        // Routes take their bodies collected, only the fallback gets to stream them
+        if (m_fallback == null)
+            return null;
+        RouteMatch match = m_matches.get();
+        Endpoint endpoint = find(request, match);
+        match.clear();
+        return endpoint == null ? m_fallback.bodyConsumer(request, resume) : null;
+    }
+
+    /**
+     * Looks up the endpoint for the request's path, leaving the parameters in the match.
+     */
+    private Endpoint find(HttpRequest request, RouteMatch match) {
+        byte[] bytes;
+        int start;
+        int end;
+        if (request instanceof HttpRequestBuilder.RawUri) {
+            HttpRequestBuilder.RawUri raw = (HttpRequestBuilder.RawUri) request;
+            bytes = raw.uriBytes();
+            start = raw.uriStart();
+            end = raw.uriEnd();
+        } else {
+            // Requests not produced by the parser are looked up through their String
+            bytes = request.uri().getBytes(StandardCharsets.ISO_8859_1);
+            start = 0;
+            end = bytes.length;
+        }
+
+        // Absolute-form request targets carry a scheme and authority before the path
+        int scheme = startsWith(bytes, start, end, HTTP) ? HTTP.length
+                : startsWith(bytes, start, end, HTTPS) ? HTTPS.length : 0;
+        if (scheme > 0) {
+            start = indexOf(bytes, start + scheme, end, (byte) '/');
+            if (start == end) {
+                bytes = ROOT;
+                start = 0;
+                end = 1;
+            }
+        }
+        for (int i = start; i < end; ++i) {
+            if (bytes[i] == '?' || bytes[i] == '#') {
+                end = i;
+                break;
+            }
+        }
+        if (start == end || bytes[start] != '/')
+            return null;
+
+        match.start(bytes);
+        Node node = m_root.find(bytes, start + 1, end, match, 0);
+        return node == null ? null : node.endpoint;
+    }
+
+    private static boolean startsWith(byte[] bytes, int start, int end, byte[] prefix) {
+        return end - start >= prefix.length && regionMatches(bytes, start, prefix);
+    }
+
+    private static boolean regionMatches(byte[] bytes, int start, byte[] expected) {
+        for (int i = 0; i < expected.length; ++i) {
+            if (bytes[start + i] != expected[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte b) {
+        while (from < to && bytes[from] != b)
+            ++from;
+        return from;
+    }
+
+    /**
+     * A node of the compiled trie. Entering a static child consumes its prefix, entering the parameter
+     * child consumes a non-empty segment and entering the wildcard child consumes the rest of the path.
+     */
+    private static final class Node {
+        private final byte[] prefix;
+        // The first byte of every static child's prefix, which tells the children apart
+        private final byte[] firsts;
+        private final Node[] children;
+        private final Node parameter;
+        private final Node wildcard;
+        private final Endpoint endpoint;
+
+        Node(byte[] prefix, byte[] firsts, Node[] children, Node parameter, Node wildcard, Endpoint endpoint) {
+            this.prefix = prefix;
+            this.firsts = firsts;
+            this.children = children;
+            this.parameter = parameter;
+            this.wildcard = wildcard;
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * Matches the path from position onwards, this node's own prefix having been matched already.
+         * When a static child leads nowhere, the parameter and then the wildcard are tried instead.
+         * @param count the number of parameters matched on the way here
+         * @return the node with the endpoint, or null
+         */
+        Node find(byte[] path, int position, int end, RouteMatch match, int count) {
+            if (position == end) {
+                if (endpoint != null) {
+                    match.matched(count);
+                    return this;
+                }
+                return matchWildcard(position, end, match, count);
+            }
+
+            byte next = path[position];
+            for (int i = 0; i < firsts.length; ++i) {
+                if (firsts[i] != next)
+                    continue;
+                Node child = children[i];
+                if (end - position >= child.prefix.length && regionMatches(path, position, child.prefix)) {
+                    Node found = child.find(path, position + child.prefix.length, end, match, count);
+                    if (found != null)
+                        return found;
+                }
+                break;
+            }
+
+            if (parameter != null && next != '/') {
+                int segmentEnd = indexOf(path, position, end, (byte) '/');
+                match.set(count, position, segmentEnd);
+                Node found = parameter.find(path, segmentEnd, end, match, count + 1);
+                if (found != null)
+                    return found;
+            }
+            return matchWildcard(position, end, match, count);
+        }
+
+        private Node matchWildcard(int position, int end, RouteMatch match, int count) {
+            if (wildcard == null)
+                return null;
+            match.set(count, position, end);
+            match.matched(count + 1);
+            return wildcard;
+        }
+    }
+
+    /**
+     * The routes of one path pattern, by method.
+     */
+    private static final class Endpoint {
+        private final Route[] routes;
+        private final Route any;
+        // The Allow header for 405 responses
+        private final String allow;
+
+        Endpoint(Route[] routes, Route any) {
+            this.routes = routes;
+            this.any = any;
+
+            StringBuilder allow = new StringBuilder();
+            for (HttpRequest.Type type : TYPES) {
+                if (any != null || routes[type.ordinal()] != null
+                        || (type == HttpRequest.Type.HEAD && routes[HttpRequest.Type.GET.ordinal()] != null))
+                    allow.append(allow.length() == 0 ? "" : ", ").append(type.name());
+            }
+            this.allow = allow.toString();
+        }
+
+        Route route(HttpRequest.Type type) {
+            Route route = routes[type.ordinal()];
+            if (route == null && type == HttpRequest.Type.HEAD)
+                route = routes[HttpRequest.Type.GET.ordinal()];
+            return route != null ? route : any;
+        }
+    }
+
+    private static final class Route {
+        private final String pattern;
+        private final String[] names;
+        private final RouteHandler handler;
+
+        Route(String pattern, String[] names, RouteHandler handler) {
+            this.pattern = pattern;
+            this.names = names;
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * Collects routes and compiles them into a Router. Invalid patterns and routes that clash with
+     * one added before are rejected with IllegalArgumentException as they are added.
+     */
+    public static final class Builder {
+        private final Draft m_root = new Draft();
+        private int m_maxParameters = 0;
+        private RequestHandler m_fallback;
+
+        public Builder get(String pattern, RouteHandler handler) {
+            return route(HttpRequest.Type.GET, pattern, handler);
+        }
+
+        public Builder post(String pattern, RouteHandler handler) {
+            return route(HttpRequest.Type.POST, pattern, handler);
+        }
+
+        public Builder put(String pattern, RouteHandler handler) {
+            return route(HttpRequest.Type.PUT, pattern, handler);
+        }
+
+        public Builder delete(String pattern, RouteHandler handler) {
+            return route(HttpRequest.Type.DELETE, pattern, handler);
+        }
+
+        /**
+         * Adds a route for every method the path does not have a route of its own for.
+         */
+        public Builder any(String pattern, RouteHandler handler) {
+            return route(null, pattern, handler);
+        }
+
+        /**
+         * @param type the method, or null for any method
+         */
+        public Builder route(HttpRequest.Type type, String pattern, RouteHandler handler) {
+            if (handler == null)
+                throw new IllegalArgumentException("Route " + pattern + " has no handler.");
+            List<String> names = new ArrayList<String>();
+            Draft draft = insert(pattern, names);
+
+            Route route = new Route(pattern, names.toArray(new String[0]), handler);
+            if (type == null) {
+                if (draft.any != null)
+                    throw new IllegalArgumentException("Route " + pattern + " clashes with " + draft.any.pattern);
+                draft.any = route;
+            } else {
+                Route existing = draft.routes[type.ordinal()];
+                if (existing != null)
+                    throw new IllegalArgumentException(type + " " + pattern + " clashes with " + existing.pattern);
+                draft.routes[type.ordinal()] = route;
+            }
+            m_maxParameters = Math.max(m_maxParameters, names.size());
+            return this;
+        }
+
+        /**
+         * Handler for requests matching no route.
+         */
+        public Builder fallback(RequestHandler handler) {
+            m_fallback = handler;
+            return this;
+        }
+
+        public Router build() {
+            return new Router(compile(m_root, new byte[0]), m_maxParameters, m_fallback);
+        }
+
+        private Draft insert(String pattern, List<String> names) {
+            if (!pattern.startsWith("/"))
+                throw new IllegalArgumentException("Route pattern must start with a slash: " + pattern);
+
+            Draft draft = m_root;
+            int position = 1;
+            while (position < pattern.length()) {
+                char c = pattern.charAt(position);
+                if (c > 0x7F || c <= ' ')
+                    throw new IllegalArgumentException("Route pattern must be printable ASCII, percent-encode "
+                            + "anything else: " + pattern);
+
+                boolean segmentStart = pattern.charAt(position - 1) == '/';
+                if (segmentStart && (c == ':' || c == '*')) {
+                    int end = pattern.indexOf('/', position);
+                    if (end < 0)
+                        end = pattern.length();
+                    String name = pattern.substring(position + 1, end);
+                    if (name.isEmpty())
+                        throw new IllegalArgumentException("Parameter without a name in " + pattern);
+                    if (names.contains(name))
+                        throw new IllegalArgumentException("Parameter " + name + " appears twice in " + pattern);
+                    names.add(name);
+
+                    if (c == '*') {
+                        if (end != pattern.length())
+                            throw new IllegalArgumentException("Wildcard must be the last segment of " + pattern);
+                        if (draft.wildcard == null)
+                            draft.wildcard = new Draft();
+                        return draft.wildcard;
+                    }
+                    if (draft.parameter == null)
+                        draft.parameter = new Draft();
+                    draft = draft.parameter;
+                    position = end;
+                    continue;
+                }
+
+                Draft child = draft.children.get((byte) c);
+                if (child == null) {
+                    child = new Draft();
+                    draft.children.put((byte) c, child);
+                }
+                draft = child;
+                ++position;
+            }
+            return draft;
+        }
+
+        /**
+         * Compiles a draft, merging chains of static nodes that have nothing else in them into the
+         * prefix of the node at the end of the chain.
+         */
+        private static Node compile(Draft draft, byte[] prefix) {
+            int count = draft.children.size();
+            byte[] firsts = new byte[count];
+            Node[] children = new Node[count];
+            int index = 0;
+            for (Map.Entry<Byte, Draft> entry : draft.children.entrySet()) {
+                StringBuilder chain = new StringBuilder().append((char) (entry.getKey() & 0xFF));
+                Draft child = entry.getValue();
+                while (child.children.size() == 1 && child.isPassThrough()) {
+                    Map.Entry<Byte, Draft> only = child.children.entrySet().iterator().next();
+                    chain.append((char) (only.getKey() & 0xFF));
+                    child = only.getValue();
+                }
+                firsts[index] = entry.getKey();
+                children[index++] = compile(child, chain.toString().getBytes(StandardCharsets.ISO_8859_1));
+            }
+
+            return new Node(prefix, firsts, children,
+                    draft.parameter == null ? null : compile(draft.parameter, new byte[0]),
+                    draft.wildcard == null ? null : compile(draft.wildcard, new byte[0]),
+                    draft.hasRoutes() ? new Endpoint(draft.routes.clone(), draft.any) : null);
+        }
+    }
+
+    /**
+     * A node of the trie while routes are being added, with one static child per byte.
+     */
+    private static final class Draft {
+        private final TreeMap<Byte, Draft> children = new TreeMap<Byte, Draft>();
+        private Draft parameter;
+        private Draft wildcard;
+        private final Route[] routes = new Route[TYPES.length];
+        private Route any;
+
+        boolean hasRoutes() {
+            if (any != null)
+                return true;
+            for (Route route : routes) {
+                if (route != null)
+                    return true;
+            }
+            return false;
+        }
+
+        boolean isPassThrough() {
+            return parameter == null && wildcard == null && !hasRoutes();
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package org.andlon.simpleweb;
+
+import java.nio.file.Path;
+
+/**
+ * Settings for a SimpleWebServer. Setters return the configuration itself so that
+ * options can be chained, e.g. new ServerConfig().port(8080).workers(4).
+ */
+public class ServerConfig implements Cloneable {
+    private int port = 9000;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int acceptors = 1;
+    private Path documentRoot;
+    private boolean directoryListings = false;
+    private long fileCacheSize = 64L * 1024 * 1024;
+    private long fileCacheMaxFileSize = 1024 * 1024;
+    private long mappedFileMinSize = 0;
+    private long mappedFileCacheSize = 1024L * 1024 * 1024;
+    private long idleTimeout = 5000;
+    private long headerTimeout = 10000;
+    private long bodyTimeout = 30000;
+    private long shutdownTimeout = 30000;
+    private int bodyMemoryThreshold = 64 * 1024;
+    private Path bodySpillDirectory;
+    private boolean blockingHandlers = false;
+    private boolean threadPerConnection = false;
+    private int maxConcurrentHandlers = 0;
+    private boolean bufferLeakDetection = Boolean.getBoolean("simpleweb.bufferLeakDetection");
+    private boolean jmx = true;
+    private int maxRequestLineLength = 8192;
+    private int maxHeaderCount = 100;
+    private int maxHeaderBytes = 32 * 1024;
+    private long maxBodySize = 0;
+    private int maxClientConnections = 0;
+    private int maxClientRequestRate = 0;
+    private String metricsPath;
+    private boolean compression = true;
+    private int compressionLevel = 6;
+    private int compressionMinSize = 1024;
+    private long compressionMaxSize = 1024 * 1024;
+    private int warmupRequests = 0;
+    private RequestHandler handler;
+
+    public int port() { return port; }
+
+    public ServerConfig port(int port) {
+        if (port < 0 || port > 0xFFFF)
+            throw new IllegalArgumentException("Invalid port: " + port);
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * Number of event loop threads servicing connections. Defaults to the number of available processors.
+     */
+    public int workers() { return workers; }
+
+    public ServerConfig workers(int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("At least one worker is required.");
+        this.workers = workers;
+        return this;
+    }
+
+    /**
+     * Number of listening sockets accepting connections. Values above 1 bind several sockets to the
+     * same port with SO_REUSEPORT, which lets the kernel spread incoming connections across them.
+     */
+    public int acceptors() { return acceptors; }
+
+    public ServerConfig acceptors(int acceptors) {
+        if (acceptors < 1)
+            throw new IllegalArgumentException("At least one acceptor is required.");
+        this.acceptors = acceptors;
+        return this;
+    }
+
+    /**
+     * Directory served by the default StaticFileHandler. Without a document root or a handler,
+     * every request is answered with 404 Not Found.
+     */
+    public Path documentRoot() { return documentRoot; }
+
+    public ServerConfig documentRoot(Path documentRoot) {
+        this.documentRoot = documentRoot;
+        return this;
+    }
+
+    /**
+     * Answers requests for a directory without an index.html below the document root with a listing
+     * of its files, off by default. Listings are produced by threads of their own and streamed, so a
+     * huge directory neither stalls an event loop nor has to fit in memory.
+     */
+    public boolean directoryListings() { return directoryListings; }
+
+    public ServerConfig directoryListings(boolean enabled) {
+        this.directoryListings = enabled;
+        return this;
+    }
+
+    /**
+     * Handler producing responses. Takes precedence over the document root when set, except that a
+     * Router without a fallback handler serves the document root for requests matching none of its routes.
+     */
+    public RequestHandler handler() { return handler; }
+
+    public ServerConfig handler(RequestHandler handler) {
+        this.handler = handler;
+        return this;
+    }
+
+    /**
+     * Number of bytes the in-memory cache of small static files may use. Zero disables the cache.
+     */
+    public long fileCacheSize() { return fileCacheSize; }
+
+    public ServerConfig fileCacheSize(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Cache size cannot be negative.");
+        this.fileCacheSize = bytes;
+        return this;
+    }
+
+    /**
+     * Largest file that is kept in the static file cache.
+     */
+    public long fileCacheMaxFileSize() { return fileCacheMaxFileSize; }
+
+    public ServerConfig fileCacheMaxFileSize(long bytes) {
+        if (bytes < 0 || bytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid maximum cached file size: " + bytes);
+        this.fileCacheMaxFileSize = bytes;
+        return this;
+    }
+
+    /**
+     * Files of at least this size are served from shared memory mappings. Zero, the default,
+     * disables memory mapping so that large files are sent with transferTo.
+     */
+    public long mappedFileMinSize() { return mappedFileMinSize; }
+
+    public ServerConfig mappedFileMinSize(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Minimum mapped file size cannot be negative.");
+        this.mappedFileMinSize = bytes;
+        return this;
+    }
+
+    /**
+     * Total size of the files that may be mapped at once.
+     */
+    public long mappedFileCacheSize() { return mappedFileCacheSize; }
+
+    public ServerConfig mappedFileCacheSize(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("Mapped file cache size must be positive.");
+        this.mappedFileCacheSize = bytes;
+        return this;
+    }
+
+    /**
+     * Milliseconds a connection may wait for the next request to begin, or for the client to
+     * accept more of a response, before it is closed. Zero disables the timeout.
+     */
+    public long idleTimeout() { return idleTimeout; }
+
+    public ServerConfig idleTimeout(long milliseconds) {
+        this.idleTimeout = checkTimeout(milliseconds);
+        return this;
+    }
+
+    /**
+     * Milliseconds a client may take to send the request line and headers of a request, counted
+     * from its first byte. Unlike the other timeouts, this one is not extended by activity, so a
+     * client trickling in headers a byte at a time is still disconnected. Zero disables the timeout.
+     */
+    public long headerTimeout() { return headerTimeout; }
+
+    public ServerConfig headerTimeout(long milliseconds) {
+        this.headerTimeout = checkTimeout(milliseconds);
+        return this;
+    }
+
+    /**
+     * Milliseconds a client may go without sending any part of a request body. Zero disables the timeout.
+     */
+    public long bodyTimeout() { return bodyTimeout; }
+
+    public ServerConfig bodyTimeout(long milliseconds) {
+        this.bodyTimeout = checkTimeout(milliseconds);
+        return this;
+    }
+
+    /**
+     * Milliseconds the server started from Main is given to finish its requests when the process is
+     * asked to stop, before remaining connections are closed.
+     */
+    public long shutdownTimeout() { return shutdownTimeout; }
+
+    public ServerConfig shutdownTimeout(long milliseconds) {
+        this.shutdownTimeout = checkTimeout(milliseconds);
+        return this;
+    }
+
+    /**
+     * Largest request body kept in memory when the handler lets the server collect it. Larger bodies
+     * are spilled to a temporary file.
+     */
+    public int bodyMemoryThreshold() { return bodyMemoryThreshold; }
+
+    public ServerConfig bodyMemoryThreshold(int bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Body memory threshold cannot be negative.");
+        this.bodyMemoryThreshold = bytes;
+        return this;
+    }
+
+    /**
+     * Directory for request bodies spilled to disk. Defaults to the system's temporary directory.
+     */
+    public Path bodySpillDirectory() { return bodySpillDirectory; }
+
+    public ServerConfig bodySpillDirectory(Path directory) {
+        this.bodySpillDirectory = directory;
+        return this;
+    }
+
+    /**
+     * Runs handlers on threads of their own rather than on the event loops, so that they may block.
+     * Virtual threads are used on Java 21 and later, platform threads otherwise. The event loops keep
+     * doing the I/O, and BodyConsumers are still called on them.
+     */
+    public boolean blockingHandlers() { return blockingHandlers; }
+
+    public ServerConfig blockingHandlers(boolean enabled) {
+        this.blockingHandlers = enabled;
+        return this;
+    }
+
+    /**
+     * Serves every connection on a thread of its own with blocking I/O instead of the event loops.
+     * Meant for virtual threads on Java 21 and later, with platform threads it only suits a modest
+     * number of connections.
+     */
+    public boolean threadPerConnection() { return threadPerConnection; }
+
+    public ServerConfig threadPerConnection(boolean enabled) {
+        this.threadPerConnection = enabled;
+        return this;
+    }
+
+    /**
+     * Largest number of handlers running at once with blocking handlers or a thread per connection.
+     * Requests over the limit wait for a running one to finish. Zero, the default, means no limit.
+     */
+    public int maxConcurrentHandlers() { return maxConcurrentHandlers; }
+
+    public ServerConfig maxConcurrentHandlers(int handlers) {
+        if (handlers < 0)
+            throw new IllegalArgumentException("Handler limit cannot be negative.");
+        this.maxConcurrentHandlers = handlers;
+        return this;
+    }
+
+    /**
+     * Tracks every pooled I/O buffer and reports those that are never given back, with the stack
+     * trace of where they were taken. Costly, for debugging only. Defaults to the value of the
+     * system property simpleweb.bufferLeakDetection.
+     */
+    public boolean bufferLeakDetection() { return bufferLeakDetection; }
+
+    public ServerConfig bufferLeakDetection(boolean enabled) {
+        this.bufferLeakDetection = enabled;
+        return this;
+    }
+
+    /**
+     * Longest request line accepted, not counting the spaces and line ending. Longer ones are
+     * answered with 414 URI Too Long.
+     */
+    public int maxRequestLineLength() { return maxRequestLineLength; }
+
+    public ServerConfig maxRequestLineLength(int bytes) {
+        this.maxRequestLineLength = checkLimit(bytes);
+        return this;
+    }
+
+    /**
+     * Largest number of header fields in a request. More are answered with 431 Request Header
+     * Fields Too Large.
+     */
+    public int maxHeaderCount() { return maxHeaderCount; }
+
+    public ServerConfig maxHeaderCount(int count) {
+        this.maxHeaderCount = checkLimit(count);
+        return this;
+    }
+
+    /**
+     * Largest total size of the header field names and values of a request. Larger header sections
+     * are answered with 431 Request Header Fields Too Large.
+     */
+    public int maxHeaderBytes() { return maxHeaderBytes; }
+
+    public ServerConfig maxHeaderBytes(int bytes) {
+        this.maxHeaderBytes = checkLimit(bytes);
+        return this;
+    }
+
+    /**
+     * Largest request body accepted, whether announced by Content-Length or sent in chunks. Larger
+     * bodies are answered with 413 Payload Too Large. Zero, the default, means no limit.
+     */
+    public long maxBodySize() { return maxBodySize; }
+
+    public ServerConfig maxBodySize(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Body size limit cannot be negative.");
+        this.maxBodySize = bytes;
+        return this;
+    }
+
+    /**
+     * Connections a single client IP address may have open at once. Further connections are closed as
+     * soon as they are accepted. Zero, the default, means no limit.
+     */
+    public int maxClientConnections() { return maxClientConnections; }
+
+    public ServerConfig maxClientConnections(int connections) {
+        if (connections < 0)
+            throw new IllegalArgumentException("Connection limit cannot be negative.");
+        this.maxClientConnections = connections;
+        return this;
+    }
+
+    /**
+     * Requests per second a single client IP address may make, in bursts of up to a second's worth.
+     * Requests over the rate are answered with 429 Too Many Requests and the connection is closed.
+     * Zero, the default, means no limit.
+     */
+    public int maxClientRequestRate() { return maxClientRequestRate; }
+
+    public ServerConfig maxClientRequestRate(int requestsPerSecond) {
+        if (requestsPerSecond < 0 || requestsPerSecond > 1000000000)
+            throw new IllegalArgumentException("Invalid request rate: " + requestsPerSecond);
+        this.maxClientRequestRate = requestsPerSecond;
+        return this;
+    }
+
+    /**
+     * Registers the server's metrics with the platform MBean server, on by default.
+     */
+    public boolean jmx() { return jmx; }
+
+    public ServerConfig jmx(boolean enabled) {
+        this.jmx = enabled;
+        return this;
+    }
+
+    /**
+     * Path at which the server's metrics are served in the Prometheus text format, such as
+     * "/metrics", or null for none. The path takes precedence over any file or handler it would
+     * otherwise reach.
+     */
+    public String metricsPath() { return metricsPath; }
+
+    public ServerConfig metricsPath(String path) {
+        if (path != null && !path.startsWith("/"))
+            throw new IllegalArgumentException("Metrics path must start with a slash.");
+        this.metricsPath = path;
+        return this;
+    }
+
+    /**
+     * Gzip-compresses text responses for clients that accept it, on by default. Static files are
+     * compressed once and the result cached, and precompressed .gz and .br files next to the originals
+     * are served in their place.
+     */
+    public boolean compression() { return compression; }
+
+    public ServerConfig compression(boolean enabled) {
+        this.compression = enabled;
+        return this;
+    }
+
+    /**
+     * Deflate level from 1, fastest, to 9, smallest output. The default of 6 is what gzip uses.
+     */
+    public int compressionLevel() { return compressionLevel; }
+
+    public ServerConfig compressionLevel(int level) {
+        if (level < 1 || level > 9)
+            throw new IllegalArgumentException("Compression level must be between 1 and 9.");
+        this.compressionLevel = level;
+        return this;
+    }
+
+    /**
+     * Smallest body that is compressed, since a few hundred bytes save less than they cost.
+     */
+    public int compressionMinSize() { return compressionMinSize; }
+
+    public ServerConfig compressionMinSize(int bytes) {
+        this.compressionMinSize = checkLimit(bytes);
+        return this;
+    }
+
+    /**
+     * Largest handler response that is compressed whole and sent with a Content-Length. Larger ones
+     * are compressed while they are sent, 16 KiB at a time and with chunked encoding, so that the
+     * memory they take stays bounded.
+     */
+    public long compressionMaxSize() { return compressionMaxSize; }
+
+    public ServerConfig compressionMaxSize(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("Limit must be positive.");
+        this.compressionMaxSize = bytes;
+        return this;
+    }
+
+    /**
+     * Synthetic requests the server answers on a private loopback port before it binds its own, so
+     * that the request parser, the handler and the response path are compiled by the time the first
+     * client arrives. The requests are GETs and HEADs of the document root and of the files at its
+     * top, and the handler sees them like any other. Zero, the default, skips the warm-up.
+     */
+    public int warmupRequests() { return warmupRequests; }
+
+    public ServerConfig warmupRequests(int requests) {
+        if (requests < 0)
+            throw new IllegalArgumentException("Request count cannot be negative.");
+        this.warmupRequests = requests;
+        return this;
+    }
+
+    /**
+     * A configuration with the same settings, which can be changed without affecting this one.
+     */
+    ServerConfig copy() {
+        try {
+            return (ServerConfig) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static int checkLimit(int limit) {
+        if (limit <= 0)
+            throw new IllegalArgumentException("Limit must be positive.");
+        return limit;
+    }
+
+    private static long checkTimeout(long milliseconds) {
+        if (milliseconds < 0)
+            throw new IllegalArgumentException("Timeout cannot be negative.");
+        return milliseconds;
+    }
+}
@@ -0,0 +1,163 @@
+package org.andlon.simpleweb;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a server, updated by the connections as they go. Recording
+ * never locks or allocates, so it stays on in production. The same figures are available through
+ * JMX, and through an HTTP endpoint in the Prometheus text format if one is configured.
+ */
+public final class ServerMetrics {
+    /**
+     * What a connection was waiting for when it timed out.
+     */
+    public enum Timeout { IDLE, HEADERS, BODY, WRITE }
+
+    private final LongAdder m_accepted = new LongAdder();
+    private final LongAdder m_active = new LongAdder();
+    private final LongAdder m_closed = new LongAdder();
+    private final LongAdder m_refused = new LongAdder();
+    private final LongAdder m_limited = new LongAdder();
+    private final LongAdder m_bytesIn = new LongAdder();
+    private final LongAdder m_bytesOut = new LongAdder();
+    private final LongAdder m_handlerErrors = new LongAdder();
+    private final LongAdder[] m_malformed = counters(MalformedRequestException.Reason.values().length);
+    private final LongAdder[] m_timeouts = counters(Timeout.values().length);
+    private final LatencyRecorder m_parseTime = new LatencyRecorder();
+    private final LatencyRecorder m_handlerTime = new LatencyRecorder();
+    private final LatencyRecorder m_requestTime = new LatencyRecorder();
+
+    private static LongAdder[] counters(int count) {
+        LongAdder[] counters = new LongAdder[count];
+        for (int i = 0; i < count; ++i)
+            counters[i] = new LongAdder();
+        return counters;
+    }
+
+    public long connectionsAccepted() { return m_accepted.sum(); }
+    public long connectionsActive() { return m_active.sum(); }
+    public long connectionsClosed() { return m_closed.sum(); }
+
+    /**
+     * Number of connections closed right after accepting them, since their client had too many open.
+     */
+    public long connectionsRefused() { return m_refused.sum(); }
+
+    /**
+     * Number of requests answered with 429 Too Many Requests, since their client exceeded its rate.
+     */
+    public long requestsLimited() { return m_limited.sum(); }
+
+    public long bytesIn() { return m_bytesIn.sum(); }
+    public long bytesOut() { return m_bytesOut.sum(); }
+
+    /**
+     * Number of handler calls that threw instead of returning a response.
+     */
+    public long handlerErrors() { return m_handlerErrors.sum(); }
+
+    public long malformedRequests(MalformedRequestException.Reason reason) {
+        return m_malformed[reason.ordinal()].sum();
+    }
+
+    public long timeouts(Timeout timeout) {
+        return m_timeouts[timeout.ordinal()].sum();
+    }
+
+    /**
+     * Time spent parsing each request, not counting time spent waiting for its bytes to arrive.
+     */
+    public LatencyRecorder parseTime() { return m_parseTime; }
+
+    /**
+     * Time spent in the request handler.
+     */
+    public LatencyRecorder handlerTime() { return m_handlerTime; }
+
+    /**
+     * Time from the first byte of a request being parsed until its response is queued for writing.
+     */
+    public LatencyRecorder requestTime() { return m_requestTime; }
+
+    void connectionAccepted() {
+        m_accepted.increment();
+        m_active.increment();
+    }
+
+    void connectionClosed() {
+        m_active.decrement();
+        m_closed.increment();
+    }
+
+    void connectionRefused() { m_refused.increment(); }
+    void requestLimited() { m_limited.increment(); }
+    void bytesIn(long bytes) { m_bytesIn.add(bytes); }
+    void bytesOut(long bytes) { m_bytesOut.add(bytes); }
+    void handlerError() { m_handlerErrors.increment(); }
+
+    void malformedRequest(MalformedRequestException e) {
+        m_malformed[e.reason().ordinal()].increment();
+    }
+
+    void timeout(Timeout timeout) {
+        m_timeouts[timeout.ordinal()].increment();
+    }
+
+    /**
+     * All metrics in the Prometheus text exposition format, version 0.0.4.
+     */
+    public String toPrometheusText() {
+        StringBuilder text = new StringBuilder(4096);
+        counter(text, "simpleweb_connections_accepted_total", "Connections accepted.", connectionsAccepted());
+        gauge(text, "simpleweb_connections_active", "Connections currently open.", connectionsActive());
+        counter(text, "simpleweb_connections_closed_total", "Connections closed.", connectionsClosed());
+        counter(text, "simpleweb_connections_refused_total", "Connections refused for exceeding the per-client limit.", connectionsRefused());
+        counter(text, "simpleweb_requests_limited_total", "Requests answered with 429 for exceeding the per-client rate.", requestsLimited());
+        counter(text, "simpleweb_received_bytes_total", "Bytes read from clients.", bytesIn());
+        counter(text, "simpleweb_sent_bytes_total", "Bytes written to clients.", bytesOut());
+        counter(text, "simpleweb_handler_errors_total", "Handler calls that failed with an exception.", handlerErrors());
+
+        header(text, "simpleweb_malformed_requests_total", "Requests rejected as malformed, by cause.", "counter");
+        for (MalformedRequestException.Reason reason : MalformedRequestException.Reason.values())
+            sample(text, "simpleweb_malformed_requests_total", "reason", reason.name(), malformedRequests(reason));
+        header(text, "simpleweb_timeouts_total", "Connections closed for taking too long, by what they were waiting for.", "counter");
+        for (Timeout timeout : Timeout.values())
+            sample(text, "simpleweb_timeouts_total", "phase", timeout.name(), timeouts(timeout));
+
+        summary(text, "simpleweb_parse_duration_seconds", "Time spent parsing requests.", m_parseTime);
+        summary(text, "simpleweb_handler_duration_seconds", "Time spent in the request handler.", m_handlerTime);
+        summary(text, "simpleweb_request_duration_seconds", "Time from the start of a request until its response is queued.", m_requestTime);
+        return text.toString();
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "counter");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "gauge");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, String label, String value, long count) {
+        text.append(name).append('{').append(label).append("=\"").append(value.toLowerCase(Locale.ROOT))
+                .append("\"} ").append(count).append('\n');
+    }
+
+    private static void summary(StringBuilder text, String name, String help, LatencyRecorder recorder) {
+        header(text, name, help, "summary");
+        for (String quantile : new String[] { "0.5", "0.9", "0.99", "0.999" }) {
+            double seconds = recorder.percentile(Double.parseDouble(quantile) * 100) / 1e9;
+            text.append(name).append("{quantile=\"").append(quantile).append("\"} ").append(seconds).append('\n');
+        }
+        text.append(name).append("_sum ").append(recorder.sum() / 1e9).append('\n');
+        text.append(name).append("_count ").append(recorder.count()).append('\n');
+    }
+}
@@ -0,0 +1,86 @@
+package org.andlon.simpleweb;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Presents a server's metrics to JMX.
+ */
+final class ServerMetricsBean implements ServerMetricsMXBean {
+    private final ServerMetrics m_metrics;
+
+    private ServerMetricsBean(ServerMetrics metrics) {
+        m_metrics = metrics;
+    }
+
+    /**
+     * Registers the metrics of the server listening on the given port with the platform MBean server.
+     * @return the name they were registered under, or null if registration failed
+     */
+    static ObjectName register(ServerMetrics metrics, int port) {
+        try {
+            ObjectName name = new ObjectName("org.andlon.simpleweb:type=Server,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new ServerMetricsBean(metrics), name);
+            return name;
+        } catch (JMException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    static void unregister(ObjectName name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override public long getConnectionsAccepted() { return m_metrics.connectionsAccepted(); }
+    @Override public long getConnectionsActive() { return m_metrics.connectionsActive(); }
+    @Override public long getConnectionsClosed() { return m_metrics.connectionsClosed(); }
+    @Override public long getConnectionsRefused() { return m_metrics.connectionsRefused(); }
+    @Override public long getRequestsLimited() { return m_metrics.requestsLimited(); }
+    @Override public long getBytesIn() { return m_metrics.bytesIn(); }
+    @Override public long getBytesOut() { return m_metrics.bytesOut(); }
+    @Override public long getHandlerErrors() { return m_metrics.handlerErrors(); }
+
+    @Override
+    public Map<String, Long> getMalformedRequests() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (MalformedRequestException.Reason reason : MalformedRequestException.Reason.values())
+            counts.put(reason.name(), m_metrics.malformedRequests(reason));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getTimeouts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (ServerMetrics.Timeout timeout : ServerMetrics.Timeout.values())
+            counts.put(timeout.name(), m_metrics.timeouts(timeout));
+        return counts;
+    }
+
+    @Override public long getRequestCount() { return m_metrics.requestTime().count(); }
+
+    @Override
+    public double getRequestTimeMean() {
+        long count = m_metrics.requestTime().count();
+        return count == 0 ? 0 : m_metrics.requestTime().sum() / 1000.0 / count;
+    }
+
+    @Override public long getRequestTime50thPercentile() { return micros(m_metrics.requestTime().percentile(50)); }
+    @Override public long getRequestTime99thPercentile() { return micros(m_metrics.requestTime().percentile(99)); }
+    @Override public long getRequestTimeMax() { return micros(m_metrics.requestTime().max()); }
+    @Override public long getHandlerTime50thPercentile() { return micros(m_metrics.handlerTime().percentile(50)); }
+    @Override public long getHandlerTime99thPercentile() { return micros(m_metrics.handlerTime().percentile(99)); }
+    @Override public long getParseTime50thPercentile() { return micros(m_metrics.parseTime().percentile(50)); }
+    @Override public long getParseTime99thPercentile() { return micros(m_metrics.parseTime().percentile(99)); }
+
+    private static long micros(long nanos) {
+        return nanos / 1000;
+    }
+}
@@ -0,0 +1,30 @@
+package org.andlon.simpleweb;
+
+import java.util.Map;
+
+/**
+ * The metrics of a server as seen through JMX, registered as org.andlon.simpleweb:type=Server,port=...
+ * Durations are in microseconds.
+ */
+public interface ServerMetricsMXBean {
+    long getConnectionsAccepted();
+    long getConnectionsActive();
+    long getConnectionsClosed();
+    long getConnectionsRefused();
+    long getRequestsLimited();
+    long getBytesIn();
+    long getBytesOut();
+    long getHandlerErrors();
+    Map<String, Long> getMalformedRequests();
+    Map<String, Long> getTimeouts();
+
+    long getRequestCount();
+    double getRequestTimeMean();
+    long getRequestTime50thPercentile();
+    long getRequestTime99thPercentile();
+    long getRequestTimeMax();
+    long getHandlerTime50thPercentile();
+    long getHandlerTime99thPercentile();
+    long getParseTime50thPercentile();
+    long getParseTime99thPercentile();
+}
@@ -4,145 +4,424 @@
 
 package org.andlon.simpleweb;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.time.Instant;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.ObjectName;
 
+/**
+ * An HTTP server. Connections are accepted by one or more acceptors, and served by event loops or,
+ * in thread per connection mode, by a thread each.
+ *
+ * shutdown() stops the server without dropping requests. To reload a configuration without a moment
+ * in which connections are refused, a successor server can take over the listening sockets of a
+ * running one, after which the old server is shut down and drains the connections it still has.
+ *
+ * With ServerConfig.warmupRequests() set, the constructor first serves synthetic requests on a private
+ * loopback port, so that the server is fast from its first real request on.
+ */
 public class SimpleWebServer {
-    private ServerSocket m_server;
-    private ConnectionPool m_pool;
+    // Directory listings produced at the same time, each reading a directory
+    private static final int LISTING_THREADS = 4;
+
+    private final ArrayList<Acceptor> m_acceptors = new ArrayList<Acceptor>();
+    private final ConnectionPool[] m_pools;
+    private final AtomicInteger m_nextPool = new AtomicInteger();
+    private final ServerConfig m_config;
+    private final RequestHandler m_handler;
+    private final BufferPool m_buffers;
+    private final ServerMetrics m_metrics = new ServerMetrics();
+    private final Compressor m_compressor;
+    // Per-client limits, if any are configured
+    private final ClientLimiter m_limiter;
+    private ObjectName m_metricsName;
+    // Connections served by a thread each, in thread per connection mode
+    private final Set<BlockingConnection> m_blockingConnections = ConcurrentHashMap.newKeySet();
+    // A server whose listening sockets this one has taken over, until this one accepts on them
+    private SimpleWebServer m_predecessor;
+    // Whether a successor has taken over the listening sockets, which must then stay open
+    private volatile boolean m_handedOff = false;
+    private HandlerDispatcher m_dispatcher;
+    // Threads producing directory listings, if they are enabled
+    private HandlerDispatcher m_listings;
+    private FileCache m_fileCache;
+    private MappedFileCache m_mappedFiles;
 
     public SimpleWebServer(int port) throws IOException {
-        m_pool = new ConnectionPool();
-        m_server = new ServerSocket(port);
-        m_server.setSoTimeout(1000);
+        this(new ServerConfig().port(port));
+    }
+
+    public SimpleWebServer(ServerConfig config) throws IOException {
+        this(config, (List<ServerSocketChannel>) null);
+    }
+
+    /**
+     * Creates a server that takes over the listening sockets of a running one. The predecessor keeps
+     * accepting until this server runs, so connections are never refused in between, and should then
+     * be shut down to drain its remaining connections. The port and acceptor count of the
+     * configuration are ignored, the predecessor's sockets are used as they are.
+     */
+    public SimpleWebServer(ServerConfig config, SimpleWebServer predecessor) throws IOException {
+        this(config, predecessor.handOff());
+        m_predecessor = predecessor;
+        if (config.jmx()) {
+            // The metrics are registered under the port, which the predecessor has to give up
+            predecessor.unregisterMetrics();
+            m_metricsName = ServerMetricsBean.register(m_metrics, port());
+        }
+    }
+
+    private SimpleWebServer(ServerConfig config, List<ServerSocketChannel> listeners) throws IOException {
+        // Before anything is bound, so that clients never reach a cold server
+        if (config.warmupRequests() > 0)
+            Warmup.run(config);
+        m_config = config;
+        m_compressor = config.compression() ? new Compressor(config.compressionLevel(), config.compressionMinSize(),
+                config.compressionMaxSize(), Math.max(1, Runtime.getRuntime().availableProcessors() / 2)) : null;
+        m_limiter = config.maxClientConnections() > 0 || config.maxClientRequestRate() > 0
+                ? new ClientLimiter(config.maxClientConnections(), config.maxClientRequestRate()) : null;
+        m_handler = createHandler(config);
+        m_buffers = new BufferPool(config.bufferLeakDetection());
+        if (config.blockingHandlers() || config.threadPerConnection())
+            m_dispatcher = new HandlerDispatcher("simpleweb-handler", config.maxConcurrentHandlers());
+
+        // With a thread per connection the event loops are not needed
+        m_pools = new ConnectionPool[config.threadPerConnection() ? 0 : config.workers()];
+        for (int i = 0; i < m_pools.length; ++i)
+            m_pools[i] = new ConnectionPool(i, m_handler, config, config.blockingHandlers() ? m_dispatcher : null,
+                    m_buffers, m_metrics, m_compressor);
+
+        if (listeners != null) {
+            for (ServerSocketChannel listener : listeners)
+                m_acceptors.add(new Acceptor(listener));
+            return;
+        }
+
+        int port = config.port();
+        for (int i = 0; i < config.acceptors(); ++i) {
+            Acceptor acceptor = new Acceptor(port, config.acceptors() > 1);
+            m_acceptors.add(acceptor);
+            // With an ephemeral port, the remaining acceptors must bind to whatever the first one got
+            port = acceptor.port();
+        }
+
+        if (config.jmx())
+            m_metricsName = ServerMetricsBean.register(m_metrics, port());
+    }
+
+    public int port() {
+        return m_acceptors.get(0).port();
     }
 
+    /**
+     * Accepts connections until the server is shut down. The calling thread services the first
+     * listening socket, additional acceptors get a thread of their own.
+     */
     public void run() throws IOException {
-        while (m_server.isBound()) {
-            try {
-                Socket socket = m_server.accept();
-                m_pool.add(Connection.fromSocket(socket));
-            } catch(SocketTimeoutException e) { }
+        if (m_predecessor != null) {
+            m_predecessor.stopAccepting();
+            m_predecessor = null;
         }
+
+        for (int i = 1; i < m_acceptors.size(); ++i) {
+            Thread thread = new Thread(m_acceptors.get(i), "simpleweb-acceptor-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        m_acceptors.get(0).accept();
     }
 
-    static private class Connection {
-        private Socket m_socket;
-        private BufferedReader m_reader;
-        private BufferedWriter m_writer;
-        private long m_lastCommunication;
-        private HttpRequestBuilder m_builder = new HttpRequestBuilder();
+    /**
+     * Stops the server gracefully. It stops accepting connections, closes idle ones and lets busy ones
+     * finish the requests their clients have sent, pipelined ones included, before closing them too.
+     * Connections still open at the deadline are closed regardless. Finally the server's threads are
+     * stopped. The listening sockets are closed, unless a successor has taken them over.
+     * @return true if every connection finished in time
+     */
+    public boolean shutdown(Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
 
-        private final int TIMEOUT_MILLISECONDS = 5000;
+        // No connection may reach a pool after it has drained
+        stopAccepting();
+        for (Acceptor acceptor : m_acceptors)
+            acceptor.awaitStopped(deadline);
 
-        private Connection(Socket socket) {
-            m_socket = socket;
-            m_lastCommunication = Instant.now().toEpochMilli();
-            try {
-                m_reader = new BufferedReader(new InputStreamReader(m_socket.getInputStream()));
-                m_writer = new BufferedWriter(new OutputStreamWriter(m_socket.getOutputStream()));
-            } catch (Exception e) {
+        for (ConnectionPool pool : m_pools)
+            pool.shutdown();
+        for (BlockingConnection connection : m_blockingConnections)
+            connection.shutdown();
 
-            }
+        boolean drained = true;
+        for (ConnectionPool pool : m_pools)
+            drained &= pool.awaitTermination(deadline);
+        while (!m_blockingConnections.isEmpty() && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        drained &= m_blockingConnections.isEmpty();
+
+        if (!drained) {
+            for (ConnectionPool pool : m_pools)
+                pool.close();
         }
+        if (m_dispatcher != null)
+            m_dispatcher.shutdown();
+        if (m_listings != null)
+            m_listings.shutdown();
+        if (m_compressor != null)
+            m_compressor.shutdown();
+        unregisterMetrics();
+        return drained;
+    }
+
+    /**
+     * Stops the acceptors, closing the listening sockets unless they have been handed off.
+     */
+    private void stopAccepting() {
+        for (Acceptor acceptor : m_acceptors)
+            acceptor.stop(!m_handedOff);
+    }
+
+    private List<ServerSocketChannel> handOff() {
+        m_handedOff = true;
+        List<ServerSocketChannel> listeners = new ArrayList<ServerSocketChannel>();
+        for (Acceptor acceptor : m_acceptors)
+            listeners.add(acceptor.m_server);
+        return listeners;
+    }
 
-        static public Connection fromSocket(Socket socket) {
-            return new Connection(socket);
+    private synchronized void unregisterMetrics() {
+        if (m_metricsName != null) {
+            ServerMetricsBean.unregister(m_metricsName);
+            m_metricsName = null;
         }
+    }
 
-        public void disconnect() {
-            try {
-                m_socket.close();
-            } catch (IOException e) { }
+    public ServerMetrics metrics() {
+        return m_metrics;
+    }
+
+    /**
+     * The pool supplying connections with I/O buffers.
+     */
+    public BufferPool bufferPool() {
+        return m_buffers;
+    }
+
+    /**
+     * The cache used for static files, or null if there is none.
+     */
+    public FileCache fileCache() {
+        return m_fileCache;
+    }
+
+    /**
+     * The shared mappings of large static files, or null if memory mapping is disabled.
+     */
+    public MappedFileCache mappedFiles() {
+        return m_mappedFiles;
+    }
+
+    private RequestHandler createHandler(ServerConfig config) throws IOException {
+        RequestHandler handler = createContentHandler(config);
+        if (config.metricsPath() != null)
+            return new MetricsHandler(config.metricsPath(), m_metrics, handler);
+        return handler;
+    }
+
+    private RequestHandler createContentHandler(ServerConfig config) throws IOException {
+        RequestHandler handler = config.handler();
+        // A router without a fallback serves the document root for paths it has no route for
+        boolean routerWantsFiles = handler instanceof Router && ((Router) handler).fallback() == null;
+        if (handler != null && !(routerWantsFiles && config.documentRoot() != null))
+            return handler;
+        if (config.documentRoot() != null) {
+            if (config.fileCacheSize() > 0 && config.fileCacheMaxFileSize() > 0)
+                m_fileCache = new FileCache(config.fileCacheSize(), config.fileCacheMaxFileSize());
+            if (config.mappedFileMinSize() > 0)
+                m_mappedFiles = new MappedFileCache(config.mappedFileCacheSize(), config.mappedFileMinSize());
+            if (config.directoryListings())
+                m_listings = new HandlerDispatcher("simpleweb-listing", LISTING_THREADS);
+            StaticFileHandler files = new StaticFileHandler(config.documentRoot(), m_fileCache, m_mappedFiles,
+                    m_compressor, m_listings != null ? m_listings::execute : null);
+            return handler != null ? ((Router) handler).withFallback(files) : files;
         }
+        return request -> HttpResponse.error(404);
+    }
 
-        public boolean checkConnection() {
-            long now = Instant.now().toEpochMilli();
-            return (now - m_lastCommunication) < TIMEOUT_MILLISECONDS;
+    private static SocketAddress remoteAddress(SocketChannel channel) {
+        try {
+            return channel.getRemoteAddress();
+        } catch (IOException e) {
+            // Reset before it could be served, which the connection finds out soon enough
+            return null;
         }
+    }
 
-        boolean poll() {
+    private void serveBlocking(BlockingConnection connection) {
+        m_blockingConnections.add(connection);
+        m_dispatcher.executeUnlimited(() -> {
             try {
-                if (m_reader.ready()) {
+                connection.run();
+            } finally {
+                m_blockingConnections.remove(connection);
+            }
+        });
+    }
 
-                    while (m_reader.ready()) {
-                        char c = (char) m_reader.read();
-                        m_builder.add(c);
-                    }
+    /**
+     * Picks the pool with the fewest active connections. The scan starts at a round-robin
+     * cursor so that equally loaded pools take turns.
+     */
+    private ConnectionPool nextPool() {
+        int start = Math.abs(m_nextPool.getAndIncrement() % m_pools.length);
+        ConnectionPool best = m_pools[start];
+        for (int i = 1; i < m_pools.length; ++i) {
+            ConnectionPool candidate = m_pools[(start + i) % m_pools.length];
+            if (candidate.connectionCount() < best.connectionCount())
+                best = candidate;
+        }
+        return best;
+    }
 
-                    m_lastCommunication = Instant.now().toEpochMilli();
-                    return true;
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } catch (MalformedRequestException e) {
-                // Send 400 Bad Request here
-                e.printStackTrace();
+    @SuppressWarnings("unchecked")
+    static private void enableReusePort(ServerSocketChannel channel) throws IOException {
+        // SO_REUSEPORT only exists as a standard option from Java 9 onwards
+        try {
+            SocketOption<Boolean> option = (SocketOption<Boolean>)
+                    StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            if (channel.supportedOptions().contains(option)) {
+                channel.setOption(option, true);
+                return;
             }
-            return false;
-        }
+        } catch (NoSuchFieldException | IllegalAccessException e) { }
+
+        throw new IOException("Multiple acceptors require SO_REUSEPORT, which is not supported on this platform.");
     }
 
-    private class ConnectionPool {
-        private ScheduledExecutorService m_scheduler;
-        private ArrayList<Connection> m_connections = new ArrayList<Connection>();
-        private ArrayList<Connection> m_newConnections = new ArrayList<Connection>();
-        private final Object newConnectionsLock = new Object();
+    private class Acceptor implements Runnable {
+        private final ServerSocketChannel m_server;
+        private final Selector m_selector;
+        private volatile boolean m_stopped = false;
+        private volatile boolean m_started = false;
+        private final CountDownLatch m_finished = new CountDownLatch(1);
+
+        public Acceptor(int port, boolean reusePort) throws IOException {
+            m_server = ServerSocketChannel.open();
+            if (reusePort)
+                enableReusePort(m_server);
+            m_server.bind(new InetSocketAddress(port));
+            m_server.configureBlocking(false);
+            m_selector = Selector.open();
+            m_server.register(m_selector, SelectionKey.OP_ACCEPT);
+        }
+
+        /**
+         * An acceptor for a listening socket taken over from another server. The socket can be
+         * registered with this acceptor's selector while the other server still accepts on it.
+         */
+        public Acceptor(ServerSocketChannel server) throws IOException {
+            m_server = server;
+            m_selector = Selector.open();
+            m_server.register(m_selector, SelectionKey.OP_ACCEPT);
+        }
 
-        public ConnectionPool() {
-            m_scheduler = Executors.newSingleThreadScheduledExecutor();
-            scheduleUpdate(1000);
+        public int port() {
+            return m_server.socket().getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            try {
+                accept();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
 
-        public void add(Connection connection) {
-            synchronized (newConnectionsLock) {
-                m_newConnections.add(connection);
+        void stop(boolean closeListener) {
+            m_stopped = true;
+            m_selector.wakeup();
+            if (closeListener) {
+                try {
+                    m_server.close();
+                } catch (IOException e) { }
             }
         }
 
-        private void scheduleUpdate(int microseconds) {
-            m_scheduler.schedule(this::update, microseconds, TimeUnit.MICROSECONDS);
+        void awaitStopped(long deadline) throws InterruptedException {
+            if (m_started)
+                m_finished.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            else
+                closeSelector();
         }
 
-        private void update() {
-            synchronized(newConnectionsLock) {
-                if (!m_newConnections.isEmpty()) {
-                    m_connections.addAll(m_newConnections);
-                    m_newConnections.clear();
-                }
+        private void closeSelector() {
+            try {
+                m_selector.close();
+            } catch (IOException e) { }
+        }
+
+        public void accept() throws IOException {
+            m_started = true;
+            try {
+                acceptUntilStopped();
+            } catch (ClosedChannelException e) {
+                // Closed by shutdown() while accepting
+                if (!m_stopped)
+                    throw e;
+            } finally {
+                closeSelector();
+                m_finished.countDown();
             }
+        }
 
-            // Keep working until there is no more work, then schedule a timed update
-            boolean idle;
-            do {
-                idle = true;
-
-                // Iterate across connections, polling and removing disconnected clients
-                Iterator<Connection> i = m_connections.iterator();
-                while (i.hasNext()) {
-                    Connection connection = i.next();
-                    if (connection.poll()) {
-                        idle = false;
-                    } else if (!connection.checkConnection()) {
-                        connection.disconnect();
-                        i.remove();
+        private void acceptUntilStopped() throws IOException {
+            while (!m_stopped && m_server.isOpen()) {
+                m_selector.select();
+                m_selector.selectedKeys().clear();
+                if (m_stopped)
+                    return;
+
+                // Accept everything that is pending before going back to sleep
+                SocketChannel channel;
+                while ((channel = m_server.accept()) != null) {
+                    ConnectionPool pool = m_config.threadPerConnection() ? null : nextPool();
+                    long client = 0;
+                    if (m_limiter != null) {
+                        client = ClientLimiter.key(remoteAddress(channel));
+                        // The clock that the requests of the connection will be checked against
+                        long now = pool != null ? pool.now() * 1000000 : System.nanoTime();
+                        if (!m_limiter.tryConnect(client, now)) {
+                            // Refused before any work is done for it
+                            m_metrics.connectionRefused();
+                            channel.close();
+                            continue;
+                        }
                     }
-                }
-            } while (!idle);
 
-            scheduleUpdate(1000);
+                    m_metrics.connectionAccepted();
+                    if (pool == null)
+                        serveBlocking(new BlockingConnection(channel, m_handler, m_config, m_dispatcher, m_metrics,
+                                m_compressor, m_limiter, client));
+                    else
+                        pool.add(Connection.fromChannel(channel, m_limiter, client));
+                }
+            }
         }
     }
 }
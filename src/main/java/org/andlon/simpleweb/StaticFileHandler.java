@@ -0,0 +1,598 @@
+package org.andlon.simpleweb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Serves files below a document root. File bodies are handed to the connection as file regions,
+ * which are sent with FileChannel.transferTo. Small files can be kept in a FileCache, in which case
+ * repeated requests are served from memory, and large files can be served from shared memory
+ * mappings kept by a MappedFileCache.
+ *
+ * With a Compressor, text files are sent compressed to clients that accept it. A precompressed file
+ * next to the original, such as style.css.gz or style.css.br, is sent in its place. Otherwise a cached
+ * file that is requested compressed gets a gzip variant, which the compressor's threads produce in the
+ * background and which is cached under a key of its own. Until it is ready, the file is sent as it is.
+ * Files too large for the cache are only sent compressed if a precompressed file exists.
+ *
+ * With an executor for listings, a directory without an index.html is answered with a listing of its
+ * files. The listing is read and rendered on the executor while it is sent, with chunked encoding, and a
+ * listing small enough for the cache is kept there until the directory's modification time or size
+ * changes, like a file.
+ */
+public class StaticFileHandler implements RequestHandler {
+    private static final String INDEX_FILE = "index.html";
+    private static final String LISTING_TYPE = "text/html; charset=utf-8";
+    // How long a cached file is trusted before it is compared with the file system again
+    private static final long REVALIDATE_MILLISECONDS = 1000;
+
+    private final Path m_root;
+    private final FileCache m_cache;
+    private final MappedFileCache m_mapped;
+    private final Compressor m_compressor;
+    private final Executor m_listings;
+    // Keys of the compressed variants being produced, so that each is only produced once
+    private final Set<String> m_compressing = ConcurrentHashMap.newKeySet();
+
+    public StaticFileHandler(Path root) throws IOException {
+        this(root, null, null);
+    }
+
+    /**
+     * @param cache cache for small files, or null to always read from the file system
+     * @param mapped mappings for large files, or null to send them with transferTo
+     */
+    public StaticFileHandler(Path root, FileCache cache, MappedFileCache mapped) throws IOException {
+        this(root, cache, mapped, null);
+    }
+
+    /**
+     * @param compressor compresses text files, or null to always send files as they are
+     */
+    StaticFileHandler(Path root, FileCache cache, MappedFileCache mapped, Compressor compressor) throws IOException {
+        this(root, cache, mapped, compressor, null);
+    }
+
+    /**
+     * @param listings produces directory listings, or null to answer directories without an index with 404
+     */
+    StaticFileHandler(Path root, FileCache cache, MappedFileCache mapped, Compressor compressor,
+                      Executor listings) throws IOException {
+        m_root = root.toRealPath();
+        m_cache = cache;
+        m_mapped = mapped;
+        m_compressor = compressor;
+        m_listings = listings;
+        if (!Files.isDirectory(m_root))
+            throw new IOException("Document root is not a directory: " + root);
+    }
+
+    public Path root() {
+        return m_root;
+    }
+
+    public FileCache cache() {
+        return m_cache;
+    }
+
+    @Override
+    public HttpResponse handle(HttpRequest request) throws IOException {
+        if (request.type() != HttpRequest.Type.GET && request.type() != HttpRequest.Type.HEAD)
+            return HttpResponse.error(405).header("Allow", "GET, HEAD");
+
+        String uriPath = uriPath(request.uri());
+        if (uriPath == null)
+            return HttpResponse.error(404);
+
+        // Ranges are always taken from the file itself, never from a compressed variant
+        String range = request.header(HttpHeader.RANGE);
+        String key = m_cache == null ? null : cacheKey(uriPath);
+        if (key != null) {
+            if (m_compressor != null && range == null) {
+                for (Compressor.Encoding encoding : Compressor.Encoding.values()) {
+                    if (Compressor.accepts(request, encoding)) {
+                        FileCache.Entry variant = fromCache(variantKey(key, encoding));
+                        if (variant != null)
+                            return fromEntry(request, variant);
+                    }
+                }
+            }
+
+            FileCache.Entry entry = fromCache(key);
+            if (entry != null) {
+                if (isCompressible(entry.fileSize, entry.path) && Compressor.accepts(request, Compressor.Encoding.GZIP))
+                    compressInBackground(entry);
+                if (range != null && Preconditions.isRangeCurrent(request, entry.etag, entry.lastModified)) {
+                    long[] ranges = ByteRanges.parse(range, entry.fileSize);
+                    if (ranges != null && !Preconditions.isNotModified(request, entry.etag, entry.lastModified)) {
+                        ByteBuffer body = entry.body();
+                        return ranged(ranges, entry.fileSize, contentType(entry.path), entry.etag, entry.lastModified,
+                                (position, count, last) -> Payload.of(slice(body, position, count)));
+                    }
+                }
+                return fromEntry(request, entry);
+            }
+        }
+
+        Path path = resolve(uriPath);
+        if (path == null)
+            return HttpResponse.error(404);
+
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attributes.isDirectory()) {
+                if (!uriPath.endsWith("/"))
+                    return redirect(request.uri());
+
+                Path directory = path;
+                BasicFileAttributes directoryAttributes = attributes;
+                path = path.resolve(INDEX_FILE);
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    if (m_listings == null)
+                        throw e;
+                    return listing(request, key, directory, uriPath, directoryAttributes);
+                }
+            }
+
+            if (!attributes.isRegularFile())
+                return HttpResponse.error(404);
+
+            String contentType = contentType(path);
+            long lastModified = attributes.lastModifiedTime().toMillis();
+            long size = attributes.size();
+            boolean compressible = isCompressible(size, path);
+            String etag = Preconditions.etag(lastModified, size, null);
+
+            // Precompressed files cost nothing to send, so they are used whatever the size
+            if (m_compressor != null && range == null && Compressor.isCompressible(contentType)) {
+                HttpResponse precompressed = precompressed(request, key, path, contentType, lastModified);
+                if (precompressed != null)
+                    return precompressed;
+            }
+
+            // Answered from the attributes alone, without opening the file
+            if (Preconditions.isNotModified(request, etag, lastModified))
+                return notModified(etag, lastModified, compressible);
+
+            long[] ranges = range != null && Preconditions.isRangeCurrent(request, etag, lastModified)
+                    ? ByteRanges.parse(range, size) : null;
+            if (ranges != null && ranges.length == 0)
+                return ByteRanges.response(ranges, size, contentType, null);
+
+            if (m_mapped != null && m_mapped.accepts(size)) {
+                MappedFileCache.Mapping mapping = m_mapped.acquire(path, lastModified, size);
+                if (ranges != null) {
+                    // The first slice takes over the reference acquired, every further one needs its own
+                    boolean[] first = { true };
+                    return ranged(ranges, size, contentType, etag, lastModified, (position, count, last) -> {
+                        if (!first[0])
+                            mapping.retain();
+                        first[0] = false;
+                        return mapping.slice(position, count);
+                    });
+                }
+                return validators(new HttpResponse(200), etag, lastModified, compressible)
+                        .header("Accept-Ranges", "bytes")
+                        .header("Content-Type", contentType)
+                        .append(mapping.slice(0, size));
+            }
+
+            if (ranges != null) {
+                // Every range is a region of the same channel, which the last one closes
+                FileChannel regions = FileChannel.open(path, StandardOpenOption.READ);
+                return ranged(ranges, size, contentType, etag, lastModified, (position, count, last) ->
+                        last ? Payload.ofFile(regions, position, count) : Payload.ofFileRegion(regions, position, count));
+            }
+
+            FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+            size = file.size();
+
+            if (key != null && size <= m_cache.maxEntrySize()) {
+                FileCache.Entry entry = load(key, path, file, contentType, null, lastModified);
+                if (entry != null)
+                    return fromEntry(request, entry);
+                file = FileChannel.open(path, StandardOpenOption.READ);
+                size = file.size();
+            }
+
+            return validators(new HttpResponse(200), Preconditions.etag(lastModified, size, null), lastModified, compressible)
+                    .header("Accept-Ranges", "bytes")
+                    .header("Content-Type", contentType)
+                    .file(file, 0, size);
+        } catch (NoSuchFileException e) {
+            return HttpResponse.error(404);
+        } catch (AccessDeniedException e) {
+            return HttpResponse.error(403);
+        }
+    }
+
+    /**
+     * The cache key for a decoded URI path: the path it maps to, without touching the file system.
+     * A trailing slash is kept, since it decides between serving a directory index and redirecting.
+     */
+    private String cacheKey(String uriPath) {
+        try {
+            Path path = m_root.resolve(uriPath.substring(1)).normalize();
+            if (!path.startsWith(m_root))
+                return null;
+            return uriPath.endsWith("/") ? path.toString() + "/" : path.toString();
+        } catch (InvalidPathException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Answers from the cache. An entry that has not been checked for a while is compared against
+     * the file's modification time and size first, and dropped if the file changed.
+     * @return the response, or null if the file has to be read from disk.
+     */
+    private FileCache.Entry fromCache(String key) {
+        FileCache.Entry entry = m_cache.get(key);
+        if (entry == null)
+            return null;
+
+        long now = System.currentTimeMillis();
+        if (now - entry.validatedAt > REVALIDATE_MILLISECONDS) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(entry.path, BasicFileAttributes.class);
+                if (attributes.lastModifiedTime().toMillis() != entry.lastModified || attributes.size() != entry.fileSize) {
+                    m_cache.invalidate(entry);
+                    return null;
+                }
+            } catch (IOException e) {
+                m_cache.invalidate(entry);
+                return null;
+            }
+            entry.validatedAt = now;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Answers from a cache entry, with 304 Not Modified if the client's copy is current.
+     */
+    private static HttpResponse fromEntry(HttpRequest request, FileCache.Entry entry) {
+        if (Preconditions.isNotModified(request, entry.etag, entry.lastModified))
+            return new HttpResponse(304).entityHead(entry.notModifiedHead());
+        return new HttpResponse(200).entityHead(entry.head()).body(entry.body());
+    }
+
+    private static String contentType(Path path) {
+        return MimeTypes.forFileName(path.getFileName().toString());
+    }
+
+    /**
+     * Whether the file is sent compressed to clients that accept it.
+     */
+    private boolean isCompressible(long size, Path path) {
+        return m_compressor != null && size >= m_compressor.minSize() && Compressor.isCompressible(contentType(path));
+    }
+
+    /**
+     * Adds the validators of a file to a response, and Vary: Accept-Encoding if the file is sent
+     * compressed to some clients. The body is never compressed on the way out, the handler decides on
+     * the variant itself.
+     */
+    private static HttpResponse validators(HttpResponse response, String etag, long lastModified, boolean varies) {
+        response.header("ETag", etag).header("Last-Modified", HttpDates.format(lastModified));
+        if (varies)
+            response.header("Vary", "Accept-Encoding");
+        return response.compressible(false);
+    }
+
+    private static HttpResponse notModified(String etag, long lastModified, boolean varies) {
+        return validators(new HttpResponse(304), etag, lastModified, varies);
+    }
+
+    private static HttpResponse ranged(long[] ranges, long size, String contentType, String etag, long lastModified,
+                                       ByteRanges.Source source) throws IOException {
+        return validators(ByteRanges.response(ranges, size, contentType, source), etag, lastModified, false);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long position, long count) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(buffer.position() + (int) position).limit(buffer.position() + (int) (position + count));
+        return slice;
+    }
+
+    /**
+     * Answers with a precompressed file next to the original, in the most preferred encoding the client
+     * accepts. Precompressed files older than the original are ignored, as they are probably stale.
+     * @return the response, or null if there is no usable precompressed file.
+     */
+    private HttpResponse precompressed(HttpRequest request, String key, Path path, String contentType,
+                                       long lastModified) throws IOException {
+        for (Compressor.Encoding encoding : Compressor.Encoding.values()) {
+            if (!Compressor.accepts(request, encoding))
+                continue;
+
+            Path variant = path.resolveSibling(path.getFileName() + encoding.suffix);
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(variant, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            long variantModified = attributes.lastModifiedTime().toMillis();
+            if (!attributes.isRegularFile() || variantModified < lastModified)
+                continue;
+
+            String etag = Preconditions.etag(variantModified, attributes.size(), encoding);
+            if (Preconditions.isNotModified(request, etag, variantModified))
+                return notModified(etag, variantModified, true);
+
+            FileChannel file = FileChannel.open(variant, StandardOpenOption.READ);
+            long size = file.size();
+            if (key != null && size <= m_cache.maxEntrySize()) {
+                FileCache.Entry entry = load(variantKey(key, encoding), variant, file, contentType, encoding,
+                        variantModified);
+                if (entry != null)
+                    return fromEntry(request, entry);
+                file = FileChannel.open(variant, StandardOpenOption.READ);
+                size = file.size();
+            }
+
+            return validators(new HttpResponse(200), Preconditions.etag(variantModified, size, encoding),
+                    variantModified, true)
+                    .header("Content-Type", contentType)
+                    .header("Content-Encoding", encoding.token)
+                    .file(file, 0, size);
+        }
+        return null;
+    }
+
+    /**
+     * Answers with the listing of a directory that has no index file, from the cache if the directory
+     * has not changed since it was last listed, and otherwise streamed as the listing is produced.
+     * Clients of HTTP/1.0 cannot read chunked encoding, they get the listing unframed and the connection
+     * closed after it.
+     */
+    private HttpResponse listing(HttpRequest request, String key, Path directory, String uriPath,
+                                 BasicFileAttributes attributes) {
+        String listingKey = key == null ? null : key + '\0' + "listing";
+        if (listingKey != null) {
+            FileCache.Entry entry = fromCache(listingKey);
+            if (entry != null)
+                return fromEntry(request, entry);
+        }
+
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        long size = attributes.size();
+        String etag = Preconditions.etag(lastModified, size, null);
+        if (Preconditions.isNotModified(request, etag, lastModified))
+            return notModified(etag, lastModified, false);
+
+        Consumer<ByteBuffer> cache = listingKey == null ? null
+                : body -> cacheListing(listingKey, directory, body, lastModified, size);
+        DirectoryListing listing = new DirectoryListing(directory, uriPath,
+                listingKey == null ? 0 : (int) m_cache.maxEntrySize(), cache);
+        boolean chunked = "HTTP/1.1".equals(request.version());
+        return validators(new HttpResponse(200), etag, lastModified, false)
+                .header("Content-Type", LISTING_TYPE)
+                .stream(Payload.ofStream(listing, m_listings, chunked), chunked);
+    }
+
+    /**
+     * Caches a complete listing, unless the directory changed while it was read, in which case the
+     * listing may have missed a file.
+     */
+    private void cacheListing(String key, Path directory, ByteBuffer body, long lastModified, long size) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(directory, BasicFileAttributes.class);
+            if (attributes.lastModifiedTime().toMillis() != lastModified || attributes.size() != size)
+                return;
+        } catch (IOException e) {
+            return;
+        }
+
+        String etag = Preconditions.etag(lastModified, size, null);
+        StringBuilder text = new StringBuilder(192).append("Content-Type: ").append(LISTING_TYPE).append("\r\n");
+        appendValidators(text, etag, lastModified, false);
+        text.append("Content-Length: ").append(body.remaining()).append("\r\n\r\n");
+        byte[] head = text.toString().getBytes(StandardCharsets.ISO_8859_1);
+
+        ByteBuffer data = ByteBuffer.allocateDirect(head.length + body.remaining());
+        data.put(head).put(body).flip();
+        m_cache.put(new FileCache.Entry(key, directory, data.asReadOnlyBuffer(), head.length, lastModified, size,
+                etag, notModifiedHead(etag, lastModified, false), System.currentTimeMillis()));
+    }
+
+    /**
+     * The cache key of a compressed variant. Paths cannot contain NUL, so it cannot clash with a file.
+     */
+    private static String variantKey(String key, Compressor.Encoding encoding) {
+        return key + '\0' + encoding.token;
+    }
+
+    /**
+     * Has the compressor produce the gzip variant of a cached file and cache it. A file that does not
+     * get any smaller is cached under the variant key uncompressed, so it is only tried once.
+     */
+    private void compressInBackground(FileCache.Entry entry) {
+        String variantKey = variantKey((String) entry.key, Compressor.Encoding.GZIP);
+        if (!m_compressing.add(variantKey))
+            return;
+
+        m_compressor.execute(() -> {
+            try {
+                ByteBuffer compressed = m_compressor.compress(entry.body());
+                FileCache.Entry variant;
+                if (compressed.remaining() < entry.fileSize) {
+                    String etag = Preconditions.etag(entry.lastModified, entry.fileSize, Compressor.Encoding.GZIP);
+                    byte[] head = entityHead(contentType(entry.path), compressed.remaining(), Compressor.Encoding.GZIP,
+                            etag, entry.lastModified, true);
+                    ByteBuffer data = ByteBuffer.allocateDirect(head.length + compressed.remaining());
+                    data.put(head).put(compressed).flip();
+                    variant = new FileCache.Entry(variantKey, entry.path, data.asReadOnlyBuffer(), head.length,
+                            entry.lastModified, entry.fileSize, etag, notModifiedHead(etag, entry.lastModified, true),
+                            entry.validatedAt);
+                } else {
+                    variant = new FileCache.Entry(variantKey, entry.path, entry.data, entry.headLength,
+                            entry.lastModified, entry.fileSize, entry.etag, entry.notModifiedHead(), entry.validatedAt);
+                }
+                m_cache.put(variant);
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                m_compressing.remove(variantKey);
+            }
+        });
+    }
+
+    /**
+     * The encoded entity headers of a cached file, up to and including the empty line.
+     * @param encoding the content coding of the body, or null if it is not encoded
+     * @param varies whether the file is sent in other encodings as well
+     */
+    private static byte[] entityHead(String contentType, long size, Compressor.Encoding encoding, String etag,
+                                     long lastModified, boolean varies) {
+        StringBuilder head = new StringBuilder(192).append("Content-Type: ").append(contentType).append("\r\n");
+        if (encoding != null)
+            head.append("Content-Encoding: ").append(encoding.token).append("\r\n");
+        else
+            head.append("Accept-Ranges: bytes\r\n");
+        appendValidators(head, etag, lastModified, varies);
+        head.append("Content-Length: ").append(size).append("\r\n\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * The encoded entity headers of a 304 Not Modified answer for a cached file.
+     */
+    private static ByteBuffer notModifiedHead(String etag, long lastModified, boolean varies) {
+        StringBuilder head = new StringBuilder(96);
+        appendValidators(head, etag, lastModified, varies);
+        head.append("\r\n");
+        return ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1)).asReadOnlyBuffer();
+    }
+
+    private static void appendValidators(StringBuilder head, String etag, long lastModified, boolean varies) {
+        head.append("ETag: ").append(etag).append("\r\n");
+        head.append("Last-Modified: ").append(HttpDates.format(lastModified)).append("\r\n");
+        if (varies)
+            head.append("Vary: Accept-Encoding\r\n");
+    }
+
+    /**
+     * Reads a file into a new cache entry, together with its encoded entity headers, and closes the file.
+     * @param encoding the content coding of the file, or null if it is the original
+     * @return the entry, or null if the file changed size while it was read.
+     */
+    private FileCache.Entry load(String key, Path path, FileChannel file, String contentType,
+                                 Compressor.Encoding encoding, long lastModified) throws IOException {
+        try {
+            long size = file.size();
+            String etag = Preconditions.etag(lastModified, size, encoding);
+            boolean varies = encoding != null || isCompressible(size, path);
+            byte[] head = entityHead(contentType, size, encoding, etag, lastModified, varies);
+
+            ByteBuffer data = ByteBuffer.allocateDirect(head.length + (int) size);
+            data.put(head);
+            while (data.hasRemaining()) {
+                if (file.read(data) < 0)
+                    return null;
+            }
+            data.flip();
+
+            FileCache.Entry entry = new FileCache.Entry(key, path, data.asReadOnlyBuffer(), head.length,
+                    lastModified, size, etag, notModifiedHead(etag, lastModified, varies), System.currentTimeMillis());
+            m_cache.put(entry);
+            return entry;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Maps a decoded URI path onto a file below the document root.
+     * @return the path, or null if it would escape the document root.
+     */
+    public Path resolve(String uriPath) {
+        if (!uriPath.startsWith("/") || uriPath.indexOf('\0') >= 0 || uriPath.indexOf('\\') >= 0)
+            return null;
+
+        Path path;
+        try {
+            path = m_root.resolve(uriPath.substring(1)).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (!path.startsWith(m_root))
+            return null;
+
+        // Symbolic links must not lead out of the document root either
+        try {
+            if (!path.toRealPath().startsWith(m_root))
+                return null;
+        } catch (IOException e) {
+            // Does not exist (yet), which the caller reports as not found
+        }
+        return path;
+    }
+
+    /**
+     * Extracts the path of a request URI and percent-decodes it.
+     * @return the decoded path, or null if the URI is malformed.
+     */
+    static String uriPath(String uri) {
+        // Absolute-form request targets carry a scheme and authority before the path
+        if (uri.startsWith("http://") || uri.startsWith("https://")) {
+            int slash = uri.indexOf('/', uri.indexOf("//") + 2);
+            uri = slash < 0 ? "/" : uri.substring(slash);
+        }
+
+        int end = uri.length();
+        int query = uri.indexOf('?');
+        if (query >= 0)
+            end = query;
+        int fragment = uri.indexOf('#');
+        if (fragment >= 0 && fragment < end)
+            end = fragment;
+
+        if (uri.indexOf('%') < 0)
+            return uri.substring(0, end);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(end);
+        for (int i = 0; i < end; ++i) {
+            char c = uri.charAt(i);
+            if (c != '%') {
+                bytes.write(c);
+                continue;
+            }
+
+            if (i + 2 >= end)
+                return null;
+            int high = Character.digit(uri.charAt(i + 1), 16);
+            int low = Character.digit(uri.charAt(i + 2), 16);
+            if (high < 0 || low < 0)
+                return null;
+            bytes.write((high << 4) | low);
+            i += 2;
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static HttpResponse redirect(String uri) {
+        int query = uri.indexOf('?');
+        String location = uri.substring(0, query < 0 ? uri.length() : query) + "/"
+                + (query < 0 ? "" : uri.substring(query));
+        return HttpResponse.error(301).header("Location", location);
+    }
+}
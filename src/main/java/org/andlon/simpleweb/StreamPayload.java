@@ -0,0 +1,243 @@
+package org.andlon.simpleweb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A body of unknown length, such as a directory listing, produced while it is being written. The
+ * source is read on an executor, never on the thread writing the payload, so an event loop does not
+ * wait for whatever the source does. Production starts with the first write and pauses while enough is
+ * waiting to be written, so a slow client holds up its own stream and nothing more.
+ *
+ * On a non-blocking channel, a write that finds nothing to write returns and the connection waits
+ * for the listener given to awaitData(). On a blocking channel, it waits for the source instead.
+ *
+ * A failing source cannot be reported to the client anymore, since the head has already been sent.
+ * The failure is thrown from writeTo() so that the connection is closed, which a client reading a
+ * chunked body recognizes as a truncated response.
+ */
+final class StreamPayload extends Payload {
+    // Production pauses once this much is waiting to be written, and resumes below the low mark
+    private static final int HIGH_WATER = 256 * 1024;
+    private static final int LOW_WATER = 64 * 1024;
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Produces the pieces of a stream. Calls come from the executor's threads, one at a time.
+     */
+    interface Source extends Closeable {
+        /**
+         * @return the next piece of the body, or null at the end.
+         */
+        ByteBuffer next() throws IOException;
+    }
+
+    private final Source m_source;
+    private final Executor m_executor;
+    private final boolean m_chunked;
+
+    // Guarded by this
+    private final ArrayDeque<ByteBuffer> m_chunks = new ArrayDeque<ByteBuffer>();
+    private long m_queued = 0;
+    private boolean m_producing = false;
+    private boolean m_finished = false;
+    private boolean m_released = false;
+    private boolean m_closed = false;
+    private IOException m_failure;
+    private Runnable m_listener;
+
+    // Only touched by the writing thread
+    private long m_written = 0;
+
+    StreamPayload(Source source, Executor executor, boolean chunked) {
+        m_source = source;
+        m_executor = executor;
+        m_chunked = chunked;
+    }
+
+    @Override
+    public synchronized long remaining() {
+        return m_queued;
+    }
+
+    @Override
+    public long written() {
+        return m_written;
+    }
+
+    @Override
+    public boolean writeTo(GatheringByteChannel channel) throws IOException {
+        boolean blocking = channel instanceof SelectableChannel && ((SelectableChannel) channel).isBlocking();
+        while (true) {
+            ByteBuffer chunk;
+            synchronized (this) {
+                if (m_failure != null)
+                    throw new IOException("Stream failed while being sent.", m_failure);
+                chunk = m_chunks.peek();
+                if (chunk == null) {
+                    if (m_finished)
+                        return true;
+                    produceLater();
+                    if (!blocking)
+                        return false;
+                    try {
+                        if (m_failure == null)
+                            wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted while waiting for the stream.");
+                    }
+                    continue;
+                }
+            }
+
+            m_written += channel.write(chunk);
+            if (chunk.hasRemaining())
+                return false;
+
+            synchronized (this) {
+                m_chunks.poll();
+                m_queued -= chunk.limit();
+                if (m_queued <= LOW_WATER)
+                    produceLater();
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean awaitData(Runnable listener) {
+        if (!m_chunks.isEmpty() || m_finished || m_failure != null)
+            return false;
+        m_listener = listener;
+        return true;
+    }
+
+    @Override
+    public void release() {
+        boolean close;
+        synchronized (this) {
+            m_released = true;
+            m_chunks.clear();
+            m_queued = 0;
+            m_listener = null;
+            // A running producer closes the source once it notices
+            close = !m_producing;
+        }
+        if (close)
+            closeSource();
+    }
+
+    /**
+     * Has the executor produce more, unless it already does or there is no more. Called holding the lock.
+     */
+    private void produceLater() {
+        if (m_producing || m_finished || m_released || m_failure != null)
+            return;
+        m_producing = true;
+        try {
+            m_executor.execute(this::produce);
+        } catch (RejectedExecutionException e) {
+            m_producing = false;
+            m_failure = new IOException("No thread to produce the stream.", e);
+        }
+    }
+
+    /**
+     * Reads pieces from the source until enough is queued, the source ends or the payload is released.
+     */
+    private void produce() {
+        try {
+            while (produceOne()) { }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            Runnable listener;
+            synchronized (this) {
+                m_failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                m_producing = false;
+                listener = takeListener();
+            }
+            if (listener != null)
+                listener.run();
+        }
+
+        boolean close;
+        synchronized (this) {
+            close = m_finished || m_released || m_failure != null;
+        }
+        if (close)
+            closeSource();
+    }
+
+    /**
+     * Queues the next piece of the source. Whenever production stops, the flag saying it runs is
+     * cleared under the same lock as the decision, so that a writer draining the queue at that moment
+     * starts it again.
+     * @return whether to carry on
+     */
+    private boolean produceOne() throws IOException {
+        synchronized (this) {
+            if (m_released || m_queued >= HIGH_WATER) {
+                m_producing = false;
+                return false;
+            }
+        }
+
+        ByteBuffer piece = m_source.next();
+        if (piece != null && !piece.hasRemaining())
+            return true;
+        ByteBuffer chunk = piece != null ? frame(piece) : m_chunked ? ByteBuffer.wrap(LAST_CHUNK) : null;
+
+        Runnable listener;
+        synchronized (this) {
+            if (chunk != null && !m_released) {
+                m_chunks.add(chunk);
+                m_queued += chunk.limit();
+            }
+            if (piece == null) {
+                m_finished = true;
+                m_producing = false;
+            }
+            listener = takeListener();
+        }
+        if (listener != null)
+            listener.run();
+        return piece != null;
+    }
+
+    /**
+     * Wakes whoever waits for data. Called holding the lock.
+     */
+    private Runnable takeListener() {
+        notifyAll();
+        Runnable listener = m_listener;
+        m_listener = null;
+        return listener;
+    }
+
+    private ByteBuffer frame(ByteBuffer piece) {
+        if (!m_chunked)
+            return piece.slice();
+        byte[] size = (Integer.toHexString(piece.remaining()) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer chunk = ByteBuffer.allocate(size.length + piece.remaining() + 2);
+        chunk.put(size).put(piece).put((byte) '\r').put((byte) '\n').flip();
+        return chunk;
+    }
+
+    private void closeSource() {
+        synchronized (this) {
+            if (m_closed)
+                return;
+            m_closed = true;
+        }
+        try {
+            m_source.close();
+        } catch (IOException e) { }
+    }
+}
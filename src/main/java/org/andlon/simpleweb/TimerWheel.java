@@ -0,0 +1,127 @@
+package org.andlon.simpleweb;
+
+/**
+ * Hashed timing wheel for the timeouts of one event loop. Timers are kept in intrusive doubly linked
+ * lists, one per slot, so scheduling, rescheduling and cancelling are O(1) and expiring only looks
+ * at the slots whose time has come rather than at every connection.
+ *
+ * Deadlines are in milliseconds on the clock of the owning loop. Timers that are more than one
+ * rotation away stay in their slot and are skipped until their round comes. The wheel is not
+ * thread safe and must only be used from the loop that owns it.
+ */
+final class TimerWheel {
+    private final long m_tickMilliseconds;
+    private final Timer[] m_slots;
+    private final int m_mask;
+    private long m_tick;
+    private int m_size = 0;
+
+    /**
+     * @param slots number of slots, rounded up to a power of two
+     * @param tickMilliseconds resolution of the wheel
+     * @param now current time, the wheel starts at this tick
+     */
+    TimerWheel(int slots, long tickMilliseconds, long now) {
+        int length = Integer.highestOneBit(Math.max(2, slots) - 1) << 1;
+        m_slots = new Timer[length];
+        for (int i = 0; i < length; ++i)
+            m_slots[i] = new Timer(null);
+        m_mask = length - 1;
+        m_tickMilliseconds = tickMilliseconds;
+        m_tick = now / tickMilliseconds;
+    }
+
+    long tickMilliseconds() { return m_tickMilliseconds; }
+
+    /**
+     * Number of timers currently scheduled.
+     */
+    int size() { return m_size; }
+
+    /**
+     * Schedules the timer to fire at the deadline, replacing any deadline it had before.
+     */
+    void schedule(Timer timer, long deadline) {
+        if (timer.isScheduled())
+            unlink(timer);
+        timer.deadline = deadline;
+        link(timer);
+    }
+
+    void cancel(Timer timer) {
+        if (timer.isScheduled())
+            unlink(timer);
+    }
+
+    /**
+     * Fires every timer whose deadline is at or before now. If the loop fell more than one rotation
+     * behind, every slot is visited once, which covers all deadlines.
+     */
+    void advance(long now) {
+        long target = now / m_tickMilliseconds;
+        long ticks = Math.min(target - m_tick, m_slots.length);
+        for (long i = 1; i <= ticks; ++i)
+            expire(m_slots[(int) (m_tick + i) & m_mask], now);
+        if (target > m_tick)
+            m_tick = target;
+    }
+
+    private void expire(Timer head, long now) {
+        Timer timer = head.next;
+        while (timer != head) {
+            Timer next = timer.next;
+            if (timer.deadline <= now) {
+                unlink(timer);
+                timer.task.run();
+            }
+            timer = next;
+        }
+    }
+
+    private void link(Timer timer) {
+        // Deadlines already due go into the next slot to be visited
+        long tick = Math.max(timer.deadline / m_tickMilliseconds, m_tick + 1);
+        Timer head = m_slots[(int) tick & m_mask];
+        timer.previous = head.previous;
+        timer.next = head;
+        head.previous.next = timer;
+        head.previous = timer;
+        ++m_size;
+    }
+
+    private void unlink(Timer timer) {
+        timer.previous.next = timer.next;
+        timer.next.previous = timer.previous;
+        timer.previous = null;
+        timer.next = null;
+        --m_size;
+    }
+
+    /**
+     * A timeout that can be scheduled on a wheel any number of times. The task runs on the loop
+     * thread when the deadline passes.
+     */
+    static final class Timer {
+        private final Runnable task;
+        private long deadline;
+        private Timer previous;
+        private Timer next;
+
+        Timer(Runnable task) {
+            this.task = task;
+            // Slot heads are empty circular lists
+            if (task == null) {
+                previous = this;
+                next = this;
+            }
+        }
+
+        boolean isScheduled() {
+            return next != null;
+        }
+
+        long deadline() {
+            return deadline;
+        }
+    }
+}
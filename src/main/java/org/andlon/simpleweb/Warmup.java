@@ -0,0 +1,160 @@
+package org.andlon.simpleweb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Warms a server up before it binds its port. A second server with the same configuration is run on
+ * an ephemeral loopback port, and a few clients send it pipelined batches of synthetic requests, so
+ * that the JIT compiler has seen the request parser, the handler and the response path, and the
+ * classes they use are loaded, before the first real client arrives. The same traffic makes a good
+ * training run for a class data sharing archive.
+ *
+ * The requests are GETs and HEADs of the document root, of a path that does not exist and of the
+ * small files at the top of the root, with and without compression and conditions.
+ */
+final class Warmup {
+    private static final int CONNECTIONS = 4;
+    // Requests written at once, pipelined as a busy client would
+    private static final int BATCH = 32;
+    private static final int MAX_FILES = 8;
+    private static final long MAX_FILE_SIZE = 64 * 1024;
+    private static final int READ_TIMEOUT = 30000;
+
+    private Warmup() { }
+
+    /**
+     * Sends config.warmupRequests() requests to a server configured like the given one, and waits
+     * until they are answered. Client limits and JMX are left out of the warm-up server.
+     */
+    static void run(ServerConfig config) throws IOException {
+        ServerConfig warmup = config.copy().port(0).acceptors(1).jmx(false).warmupRequests(0)
+                .maxClientConnections(0).maxClientRequestRate(0);
+        SimpleWebServer server = new SimpleWebServer(warmup);
+        Thread acceptor = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "simpleweb-warmup");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        List<byte[]> requests = requests(config.documentRoot());
+        int total = config.warmupRequests();
+        List<Thread> clients = new ArrayList<Thread>();
+        try {
+            for (int i = 0; i < CONNECTIONS; ++i) {
+                int count = total / CONNECTIONS + (i < total % CONNECTIONS ? 1 : 0);
+                if (count == 0)
+                    continue;
+                Thread client = new Thread(() -> client(server.port(), requests, count),
+                        "simpleweb-warmup-client-" + i);
+                client.setDaemon(true);
+                client.start();
+                clients.add(client);
+            }
+            for (Thread client : clients)
+                client.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                server.shutdown(Duration.ofSeconds(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Sends the requests over one connection, the last of them asking the server to close it, while
+     * a second thread reads and discards the responses.
+     */
+    private static void client(int port, List<byte[]> requests, int count) {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(READ_TIMEOUT);
+            InputStream input = socket.getInputStream();
+            Thread reader = new Thread(() -> drain(input), Thread.currentThread().getName() + "-reader");
+            reader.setDaemon(true);
+            reader.start();
+
+            OutputStream output = socket.getOutputStream();
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            for (int i = 0; i < count - 1; ++i) {
+                batch.write(requests.get(i % requests.size()));
+                if ((i + 1) % BATCH == 0) {
+                    batch.writeTo(output);
+                    batch.reset();
+                }
+            }
+            batch.write(request("GET", "/", "Connection: close\r\n"));
+            batch.writeTo(output);
+            reader.join();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void drain(InputStream input) {
+        byte[] buffer = new byte[16 * 1024];
+        try {
+            while (input.read(buffer) >= 0) { }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static List<byte[]> requests(Path root) throws IOException {
+        List<byte[]> requests = new ArrayList<byte[]>();
+        requests.add(request("GET", "/", ""));
+        requests.add(request("GET", "/", "Accept-Encoding: gzip, deflate\r\n"));
+        requests.add(request("HEAD", "/", ""));
+        requests.add(request("GET", "/simpleweb-warmup/missing", ""));
+        for (String name : files(root)) {
+            requests.add(request("GET", "/" + name, ""));
+            requests.add(request("GET", "/" + name, "Accept-Encoding: gzip, deflate\r\n"));
+            requests.add(request("GET", "/" + name, "If-None-Match: *\r\n"));
+            requests.add(request("HEAD", "/" + name, ""));
+        }
+        return requests;
+    }
+
+    /**
+     * Names of a few small files at the top of the document root, those that need no escaping in a path.
+     */
+    private static List<String> files(Path root) throws IOException {
+        List<String> names = new ArrayList<String>();
+        if (root == null || !Files.isDirectory(root))
+            return names;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(root)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (names.size() < MAX_FILES && name.matches("[A-Za-z0-9_-][A-Za-z0-9._-]*")
+                        && Files.isRegularFile(entry) && Files.size(entry) <= MAX_FILE_SIZE)
+                    names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private static byte[] request(String method, String path, String headers) {
+        String request = method + " " + path + " HTTP/1.1\r\nHost: localhost\r\nUser-Agent: simpleweb-warmup\r\n"
+                + "Accept: */*\r\n" + headers + "\r\n";
+        return request.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,119 @@
+import org.testng.annotations.*;
+import org.testng.Assert;
+import org.andlon.simpleweb.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+/**
+ * Tests of the limits on the connections and request rate of a single client.
+ */
+public class ClientLimitTest {
+    private static final byte[] REQUEST = "GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    @DataProvider(name = "modes")
+    public Object[][] modes() {
+        return new Object[][] { { false }, { true } };
+    }
+
+    @Test(dataProvider = "modes")
+    public void testConnectionLimit(boolean threadPerConnection) throws Exception {
+        SimpleWebServer server = SimpleWebServerTest.start(config(threadPerConnection).maxClientConnections(2));
+        try {
+            try (Socket first = SimpleWebServerTest.connect(server); Socket second = SimpleWebServerTest.connect(server)) {
+                Assert.assertEquals(request(first).status, 200);
+                Assert.assertEquals(request(second).status, 200);
+
+                try (Socket third = SimpleWebServerTest.connect(server)) {
+                    third.getOutputStream().write(REQUEST);
+                    Assert.assertEquals(readOrReset(third.getInputStream()), -1);
+                }
+                Assert.assertEquals(server.metrics().connectionsRefused(), 1);
+            }
+
+            // Closing connections makes room for new ones
+            for (int attempt = 0; ; ++attempt) {
+                try (Socket socket = SimpleWebServerTest.connect(server)) {
+                    socket.getOutputStream().write(REQUEST);
+                    if (readOrReset(socket.getInputStream()) != -1)
+                        break;
+                }
+                Assert.assertTrue(attempt < 50, "Closed connections were not released");
+                Thread.sleep(20);
+            }
+        } finally {
+            server.shutdown(Duration.ZERO);
+        }
+    }
+
+    @Test(dataProvider = "modes")
+    public void testRequestRate(boolean threadPerConnection) throws Exception {
+        SimpleWebServer server = SimpleWebServerTest.start(config(threadPerConnection).maxClientRequestRate(5));
+        try {
+            try (Socket socket = SimpleWebServerTest.connect(server)) {
+                // A burst of a second's worth of requests is served
+                for (int i = 0; i < 5; ++i)
+                    Assert.assertEquals(request(socket).status, 200);
+
+                SimpleWebServerTest.Response limited = request(socket);
+                Assert.assertEquals(limited.status, 429);
+                Assert.assertEquals(limited.headers.get("retry-after"), "1");
+                Assert.assertEquals(limited.headers.get("connection"), "close");
+                Assert.assertEquals(socket.getInputStream().read(), -1);
+            }
+            Assert.assertEquals(server.metrics().requestsLimited(), 1);
+
+            // The bucket refills at the configured rate, one request every 200 ms
+            Thread.sleep(300);
+            try (Socket socket = SimpleWebServerTest.connect(server)) {
+                Assert.assertEquals(request(socket).status, 200);
+            }
+        } finally {
+            server.shutdown(Duration.ZERO);
+        }
+    }
+
+    @Test(dataProvider = "modes")
+    public void testPipelinedRequestsOverRate(boolean threadPerConnection) throws Exception {
+        SimpleWebServer server = SimpleWebServerTest.start(config(threadPerConnection).maxClientRequestRate(3));
+        try (Socket socket = SimpleWebServerTest.connect(server)) {
+            OutputStream output = socket.getOutputStream();
+            for (int i = 0; i < 6; ++i)
+                output.write(REQUEST);
+
+            InputStream input = socket.getInputStream();
+            for (int i = 0; i < 3; ++i)
+                Assert.assertEquals(SimpleWebServerTest.Response.read(input).status, 200);
+            Assert.assertEquals(SimpleWebServerTest.Response.read(input).status, 429);
+            Assert.assertEquals(readOrReset(input), -1);
+        } finally {
+            server.shutdown(Duration.ZERO);
+        }
+    }
+
+    private static ServerConfig config(boolean threadPerConnection) {
+        return new ServerConfig().port(0).workers(1).jmx(false).threadPerConnection(threadPerConnection)
+                .handler(request -> new HttpResponse(200).body("ok".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static SimpleWebServerTest.Response request(Socket socket) throws IOException {
+        socket.getOutputStream().write(REQUEST);
+        return SimpleWebServerTest.Response.read(socket.getInputStream());
+    }
+
+    /**
+     * Reads a byte, taking a reset connection for a closed one.
+     */
+    private static int readOrReset(InputStream input) throws IOException {
+        try {
+            return input.read();
+        } catch (SocketException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+import org.testng.annotations.*;
+import org.testng.Assert;
+import org.andlon.simpleweb.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tests of content negotiation and compression, for static files and handler responses.
+ */
+public class CompressionTest {
+    private static final String STYLE;
+    private static final int LARGE_PARTS = 50;
+    private static final String SCRIPT = "console.log('the original, which should not be sent');\n";
+
+    static {
+        StringBuilder style = new StringBuilder();
+        for (int i = 0; i < 500; ++i)
+            style.append(".rule-").append(i).append(" { color: #").append(i % 10).append("0a0a0; margin: 0; }\n");
+        STYLE = style.toString();
+    }
+
+    private Path root;
+    private SimpleWebServer files;
+    private SimpleWebServer dynamic;
+    private SimpleWebServer streaming;
+    private SimpleWebServer streamingThreadPerConnection;
+    private byte[] precompressedScript;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("simpleweb-compression");
+        Files.write(root.resolve("style.css"), STYLE.getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("tiny.txt"), "Too small to bother".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("image.png"), STYLE.getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < 200; ++i)
+            script.append("console.log('precompressed ").append(i).append("');\n");
+        Files.write(root.resolve("app.js"), SCRIPT.getBytes(StandardCharsets.UTF_8));
+        precompressedScript = script.toString().getBytes(StandardCharsets.UTF_8);
+        Files.write(root.resolve("app.js.gz"), gzip(precompressedScript));
+
+        files = SimpleWebServerTest.start(new ServerConfig().port(0).workers(1).jmx(false).documentRoot(root));
+        dynamic = SimpleWebServerTest.start(new ServerConfig().port(0).workers(1).jmx(false).handler(request ->
+                new HttpResponse(200)
+                        .header("Content-Type", "text/css")
+                        .body(STYLE.getBytes(StandardCharsets.UTF_8))));
+
+        // Bodies over the limit are compressed while they are sent
+        RequestHandler large = request -> {
+            HttpResponse response = new HttpResponse(200).header("Content-Type", "text/css");
+            for (int i = 0; i < LARGE_PARTS; ++i)
+                response.body(STYLE.getBytes(StandardCharsets.UTF_8));
+            return response;
+        };
+        streaming = SimpleWebServerTest.start(new ServerConfig().port(0).workers(1).jmx(false).compressionMaxSize(4096).handler(large));
+        streamingThreadPerConnection = SimpleWebServerTest.start(new ServerConfig().port(0).workers(1).jmx(false).compressionMaxSize(4096)
+                .threadPerConnection(true).handler(large));
+    }
+
+    @AfterClass
+    public void teardown() throws InterruptedException {
+        files.shutdown(Duration.ZERO);
+        dynamic.shutdown(Duration.ZERO);
+        streaming.shutdown(Duration.ZERO);
+        streamingThreadPerConnection.shutdown(Duration.ZERO);
+    }
+
+    @DataProvider(name = "streaming")
+    public Object[][] streaming() {
+        return new Object[][] { { streaming }, { streamingThreadPerConnection } };
+    }
+
+    @Test()
+    public void testCachedFileGetsCompressedVariant() throws Exception {
+        SimpleWebServerTest.Response response = request(files, "/style.css", "gzip, deflate");
+        Assert.assertEquals(response.status, 200);
+        Assert.assertEquals(response.headers.get("vary"), "Accept-Encoding");
+
+        // The variant is produced in the background, the file goes out as it is in the meantime
+        long deadline = System.currentTimeMillis() + 5000;
+        while (response.headers.get("content-encoding") == null && System.currentTimeMillis() < deadline) {
+            Assert.assertEquals(new String(response.body, StandardCharsets.UTF_8), STYLE);
+            Thread.sleep(10);
+            response = request(files, "/style.css", "gzip, deflate");
+        }
+
+        Assert.assertEquals(response.headers.get("content-encoding"), "gzip");
+        Assert.assertEquals(response.headers.get("vary"), "Accept-Encoding");
+        Assert.assertTrue(response.body.length < STYLE.length() / 2);
+        Assert.assertEquals(new String(gunzip(response.body), StandardCharsets.UTF_8), STYLE);
+    }
+
+    @Test()
+    public void testNegotiation() throws Exception {
+        for (String accept : new String[] { null, "identity", "gzip;q=0", "br", "*;q=0", "*, gzip;q=0" }) {
+            SimpleWebServerTest.Response response = request(dynamic, "/", accept);
+            Assert.assertNull(response.headers.get("content-encoding"), accept);
+            Assert.assertEquals(new String(response.body, StandardCharsets.UTF_8), STYLE, accept);
+        }
+
+        for (String accept : new String[] { "gzip", "GZIP", "deflate, gzip;q=0.5", "*", "br;q=1.0, *;q=0.1" }) {
+            SimpleWebServerTest.Response response = request(dynamic, "/", accept);
+            Assert.assertEquals(response.headers.get("content-encoding"), "gzip", accept);
+            Assert.assertEquals(new String(gunzip(response.body), StandardCharsets.UTF_8), STYLE, accept);
+        }
+    }
+
+    @Test()
+    public void testPipelinedCompressedResponsesStayInOrder() throws Exception {
+        try (Socket socket = SimpleWebServerTest.connect(dynamic)) {
+            String request = "GET / HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n";
+            socket.getOutputStream().write((request + request + "GET / HTTP/1.1\r\n\r\n" + request)
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            InputStream input = socket.getInputStream();
+            for (int i = 0; i < 4; ++i) {
+                SimpleWebServerTest.Response response = SimpleWebServerTest.Response.read(input);
+                byte[] body = i == 2 ? response.body : gunzip(response.body);
+                Assert.assertEquals(response.headers.get("content-encoding"), i == 2 ? null : "gzip");
+                Assert.assertEquals(new String(body, StandardCharsets.UTF_8), STYLE);
+            }
+        }
+    }
+
+    @Test(dataProvider = "streaming")
+    public void testLargeBodyIsCompressedWhileSent(SimpleWebServer server) throws Exception {
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < LARGE_PARTS; ++i)
+            expected.append(STYLE);
+
+        try (Socket socket = SimpleWebServerTest.connect(server)) {
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\nGET / HTTP/1.1\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            InputStream input = socket.getInputStream();
+
+            SimpleWebServerTest.Response response = SimpleWebServerTest.Response.read(input);
+            Assert.assertEquals(response.status, 200);
+            Assert.assertEquals(response.headers.get("content-encoding"), "gzip");
+            Assert.assertEquals(response.headers.get("transfer-encoding"), "chunked");
+            Assert.assertNull(response.headers.get("content-length"));
+            Assert.assertEquals(new String(gunzip(response.body), StandardCharsets.UTF_8), expected.toString());
+
+            // The connection stays usable after the last chunk
+            response = SimpleWebServerTest.Response.read(input);
+            Assert.assertNull(response.headers.get("content-encoding"));
+            Assert.assertEquals(response.body.length, expected.length());
+        }
+
+        // HTTP/1.0 clients get the stream unframed, ended by closing the connection
+        try (Socket socket = SimpleWebServerTest.connect(server)) {
+            socket.getOutputStream().write("GET / HTTP/1.0\r\nAccept-Encoding: gzip\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            SimpleWebServerTest.Response response = SimpleWebServerTest.Response.read(socket.getInputStream());
+            Assert.assertEquals(response.headers.get("content-encoding"), "gzip");
+            Assert.assertNull(response.headers.get("transfer-encoding"));
+            Assert.assertEquals(response.headers.get("connection"), "close");
+            Assert.assertEquals(new String(gunzip(response.body), StandardCharsets.UTF_8), expected.toString());
+        }
+    }
+
+    @Test()
+    public void testHeadIsNotCompressed() throws Exception {
+        try (Socket socket = SimpleWebServerTest.connect(dynamic)) {
+            socket.getOutputStream().write("HEAD / HTTP/1.1\r\nAccept-Encoding: gzip\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            SimpleWebServerTest.Response response = SimpleWebServerTest.Response.read(socket.getInputStream());
+            Assert.assertEquals(response.status, 200);
+            Assert.assertNull(response.headers.get("content-encoding"));
+            Assert.assertEquals(response.headers.get("content-length"), String.valueOf(STYLE.length()));
+        }
+    }
+
+    @Test()
+    public void testPrecompressedFileIsServed() throws Exception {
+        for (int i = 0; i < 3; ++i) {
+            SimpleWebServerTest.Response response = request(files, "/app.js", "gzip");
+            Assert.assertEquals(response.status, 200);
+            Assert.assertEquals(response.headers.get("content-encoding"), "gzip");
+            Assert.assertTrue(response.headers.get("content-type").startsWith("application/javascript"));
+            Assert.assertEquals(response.headers.get("vary"), "Accept-Encoding");
+            Assert.assertEquals(gunzip(response.body), precompressedScript);
+        }
+
+        // Clients not accepting gzip get the original
+        SimpleWebServerTest.Response response = request(files, "/app.js", null);
+        Assert.assertNull(response.headers.get("content-encoding"));
+        Assert.assertEquals(new String(response.body, StandardCharsets.UTF_8), SCRIPT);
+    }
+
+    @Test()
+    public void testSmallAndIncompressibleFilesAreSentAsTheyAre() throws Exception {
+        for (int i = 0; i < 3; ++i) {
+            for (String path : new String[] { "/tiny.txt", "/image.png" }) {
+                SimpleWebServerTest.Response response = request(files, path, "gzip");
+                Assert.assertEquals(response.status, 200);
+                Assert.assertNull(response.headers.get("content-encoding"), path);
+                Assert.assertNull(response.headers.get("vary"), path);
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private static SimpleWebServerTest.Response request(SimpleWebServer server, String path, String acceptEncoding)
+            throws IOException {
+        try (Socket socket = SimpleWebServerTest.connect(server)) {
+            String request = "GET " + path + " HTTP/1.1\r\n"
+                    + (acceptEncoding == null ? "" : "Accept-Encoding: " + acceptEncoding + "\r\n")
+                    + "Connection: close\r\n\r\n";
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+            return SimpleWebServerTest.Response.read(socket.getInputStream());
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream output = new GZIPOutputStream(compressed)) {
+            output.write(bytes);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) > 0)
+                decompressed.write(buffer, 0, read);
+        }
+        return decompressed.toByteArray();
+    }
+}
@@ -0,0 +1,165 @@
+import org.testng.annotations.*;
+import org.testng.Assert;
+import org.andlon.simpleweb.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Tests of conditional and range requests for static files, served from the file cache, from disk
+ * and from memory mappings.
+ */
+public class ConditionalRequestTest {
+    private static final byte[] DATA = new byte[5000];
+
+    static {
+        for (int i = 0; i < DATA.length; ++i)
+            DATA[i] = (byte) ('a' + i % 26);
+    }
+
+    private SimpleWebServer cached;
+    private SimpleWebServer uncached;
+    private SimpleWebServer mapped;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        Path root = Files.createTempDirectory("simpleweb-conditional");
+        Files.write(root.resolve("data.bin"), DATA);
+
+        cached = SimpleWebServerTest.start(new ServerConfig().port(0).workers(1).jmx(false).documentRoot(root));
+        uncached = SimpleWebServerTest.start(new ServerConfig().port(0).workers(1).jmx(false).documentRoot(root).fileCacheSize(0));
+        mapped = SimpleWebServerTest.start(new ServerConfig().port(0).workers(1).jmx(false).documentRoot(root).mappedFileMinSize(1));
+    }
+
+    @AfterClass
+    public void teardown() throws InterruptedException {
+        cached.shutdown(Duration.ZERO);
+        uncached.shutdown(Duration.ZERO);
+        mapped.shutdown(Duration.ZERO);
+    }
+
+    @DataProvider(name = "servers")
+    public Object[][] servers() {
+        return new Object[][] { { cached }, { uncached }, { mapped } };
+    }
+
+    @Test(dataProvider = "servers")
+    public void testNotModified(SimpleWebServer server) throws Exception {
+        SimpleWebServerTest.Response full = request(server, "");
+        Assert.assertEquals(full.status, 200);
+        Assert.assertEquals(full.body, DATA);
+        Assert.assertEquals(full.headers.get("accept-ranges"), "bytes");
+        String etag = full.headers.get("etag");
+        String lastModified = full.headers.get("last-modified");
+        Assert.assertNotNull(etag);
+        Assert.assertTrue(lastModified.endsWith(" GMT"), lastModified);
+
+        for (String condition : new String[] { "If-None-Match: " + etag, "If-None-Match: \"other\", W/" + etag,
+                "If-None-Match: *", "If-Modified-Since: " + lastModified }) {
+            SimpleWebServerTest.Response response = request(server, condition + "\r\n");
+            Assert.assertEquals(response.status, 304, condition);
+            Assert.assertEquals(response.headers.get("etag"), etag);
+            Assert.assertNull(response.headers.get("content-length"));
+            Assert.assertEquals(response.body.length, 0);
+        }
+
+        for (String condition : new String[] { "If-None-Match: \"other\"", "If-Modified-Since: Sun, 06 Nov 1994 08:49:37 GMT",
+                "If-Modified-Since: yesterday", "If-None-Match: \"other\"\r\nIf-Modified-Since: " + lastModified }) {
+            SimpleWebServerTest.Response response = request(server, condition + "\r\n");
+            Assert.assertEquals(response.status, 200, condition);
+            Assert.assertEquals(response.body, DATA);
+        }
+    }
+
+    @Test(dataProvider = "servers")
+    public void testSingleRange(SimpleWebServer server) throws Exception {
+        Object[][] cases = {
+                { "bytes=10-19", 10, 19 },
+                { "bytes=4990-", 4990, 4999 },
+                { "bytes=-5", 4995, 4999 },
+                { "bytes=4000-9999", 4000, 4999 },
+        };
+        for (Object[] range : cases) {
+            int first = (Integer) range[1];
+            int last = (Integer) range[2];
+            SimpleWebServerTest.Response response = request(server, "Range: " + range[0] + "\r\n");
+            Assert.assertEquals(response.status, 206);
+            Assert.assertEquals(response.headers.get("content-range"), "bytes " + first + "-" + last + "/5000");
+            Assert.assertEquals(response.body, Arrays.copyOfRange(DATA, first, last + 1));
+        }
+    }
+
+    @Test(dataProvider = "servers")
+    public void testMultipleRanges(SimpleWebServer server) throws Exception {
+        SimpleWebServerTest.Response response = request(server, "Range: bytes=0-4, 26-30\r\n");
+        Assert.assertEquals(response.status, 206);
+        String type = response.headers.get("content-type");
+        Assert.assertTrue(type.startsWith("multipart/byteranges; boundary="), type);
+        String boundary = type.substring(type.indexOf('=') + 1);
+
+        String body = new String(response.body, StandardCharsets.ISO_8859_1);
+        Assert.assertEquals(body, "--" + boundary + "\r\nContent-Type: application/octet-stream\r\nContent-Range: bytes 0-4/5000\r\n\r\nabcde"
+                + "\r\n--" + boundary + "\r\nContent-Type: application/octet-stream\r\nContent-Range: bytes 26-30/5000\r\n\r\nabcde"
+                + "\r\n--" + boundary + "--\r\n");
+    }
+
+    @Test(dataProvider = "servers")
+    public void testIgnoredAndUnsatisfiableRanges(SimpleWebServer server) throws Exception {
+        SimpleWebServerTest.Response response = request(server, "Range: bytes=5000-\r\n");
+        Assert.assertEquals(response.status, 416);
+        Assert.assertEquals(response.headers.get("content-range"), "bytes */5000");
+
+        // Malformed, other units and ranges adding up to more than the file are ignored
+        for (String range : new String[] { "bytes=abc", "items=0-4", "bytes=20-10", "bytes=0-4999,0-10" }) {
+            response = request(server, "Range: " + range + "\r\n");
+            Assert.assertEquals(response.status, 200, range);
+            Assert.assertEquals(response.body, DATA);
+        }
+    }
+
+    @Test(dataProvider = "servers")
+    public void testIfRange(SimpleWebServer server) throws Exception {
+        SimpleWebServerTest.Response full = request(server, "");
+        String etag = full.headers.get("etag");
+
+        SimpleWebServerTest.Response response = request(server, "Range: bytes=0-9\r\nIf-Range: " + etag + "\r\n");
+        Assert.assertEquals(response.status, 206);
+        response = request(server, "Range: bytes=0-9\r\nIf-Range: " + full.headers.get("last-modified") + "\r\n");
+        Assert.assertEquals(response.status, 206);
+
+        // A client holding another version gets the whole file
+        response = request(server, "Range: bytes=0-9\r\nIf-Range: \"stale\"\r\n");
+        Assert.assertEquals(response.status, 200);
+        Assert.assertEquals(response.body, DATA);
+    }
+
+    @Test()
+    public void testKeepAliveAfterNotModified() throws Exception {
+        String etag = request(cached, "").headers.get("etag");
+        try (Socket socket = SimpleWebServerTest.connect(cached)) {
+            String conditional = "GET /data.bin HTTP/1.1\r\nIf-None-Match: " + etag + "\r\n\r\n";
+            socket.getOutputStream().write((conditional + conditional + "GET /data.bin HTTP/1.1\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            InputStream input = socket.getInputStream();
+            Assert.assertEquals(SimpleWebServerTest.Response.read(input).status, 304);
+            Assert.assertEquals(SimpleWebServerTest.Response.read(input).status, 304);
+            SimpleWebServerTest.Response response = SimpleWebServerTest.Response.read(input);
+            Assert.assertEquals(response.status, 200);
+            Assert.assertEquals(response.body, DATA);
+        }
+    }
+
+    private static SimpleWebServerTest.Response request(SimpleWebServer server, String headers) throws IOException {
+        try (Socket socket = SimpleWebServerTest.connect(server)) {
+            String request = "GET /data.bin HTTP/1.1\r\n" + headers + "Connection: close\r\n\r\n";
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+            return SimpleWebServerTest.Response.read(socket.getInputStream());
+        }
+    }
+}
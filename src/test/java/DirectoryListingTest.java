@@ -0,0 +1,174 @@
+import org.testng.annotations.*;
+import org.testng.Assert;
+import org.andlon.simpleweb.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+
+/**
+ * Tests of directory listings, streamed for large directories and cached for small ones.
+ */
+public class DirectoryListingTest {
+    private static final int LARGE_DIRECTORY = 5000;
+
+    private Path root;
+    private SimpleWebServer eventLoop;
+    private SimpleWebServer threadPerConnection;
+    private SimpleWebServer withoutListings;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("simpleweb-listing");
+        Path large = Files.createDirectory(root.resolve("large"));
+        for (int i = 0; i < LARGE_DIRECTORY; ++i)
+            Files.createFile(large.resolve(String.format("file-%05d.txt", i)));
+        Files.createDirectory(large.resolve("sub"));
+        Files.createFile(large.resolve(".hidden"));
+
+        Path small = Files.createDirectory(root.resolve("small"));
+        Files.createFile(small.resolve("a&b <c>.txt"));
+        Files.createDirectory(root.resolve("indexed"));
+        Files.write(root.resolve("indexed").resolve("index.html"), "<p>index</p>".getBytes(StandardCharsets.UTF_8));
+        Files.createDirectory(root.resolve("changing"));
+
+        // The listing of the large directory is too large for the cache, so that it is always streamed
+        eventLoop = SimpleWebServerTest.start(new ServerConfig().port(0).workers(1).jmx(false).documentRoot(root).directoryListings(true)
+                .fileCacheMaxFileSize(64 * 1024));
+        threadPerConnection = SimpleWebServerTest.start(new ServerConfig().port(0).workers(1).jmx(false).documentRoot(root)
+                .directoryListings(true).fileCacheMaxFileSize(64 * 1024).threadPerConnection(true));
+        withoutListings = SimpleWebServerTest.start(new ServerConfig().port(0).workers(1).jmx(false).documentRoot(root));
+    }
+
+    @AfterClass
+    public void teardown() throws InterruptedException {
+        eventLoop.shutdown(Duration.ZERO);
+        threadPerConnection.shutdown(Duration.ZERO);
+        withoutListings.shutdown(Duration.ZERO);
+    }
+
+    @DataProvider(name = "servers")
+    public Object[][] servers() {
+        return new Object[][] { { eventLoop }, { threadPerConnection } };
+    }
+
+    @Test(dataProvider = "servers")
+    public void testLargeDirectoryIsStreamed(SimpleWebServer server) throws Exception {
+        try (Socket socket = SimpleWebServerTest.connect(server)) {
+            socket.getOutputStream().write(("GET /large/ HTTP/1.1\r\n\r\nGET /indexed/ HTTP/1.1\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            InputStream input = socket.getInputStream();
+
+            SimpleWebServerTest.Response response = SimpleWebServerTest.Response.read(input);
+            Assert.assertEquals(response.status, 200);
+            Assert.assertEquals(response.headers.get("transfer-encoding"), "chunked");
+            Assert.assertNull(response.headers.get("content-length"));
+            Assert.assertEquals(response.headers.get("content-type"), "text/html; charset=utf-8");
+            String page = new String(response.body, StandardCharsets.UTF_8);
+            for (int i = 0; i < LARGE_DIRECTORY; ++i) {
+                String name = String.format("file-%05d.txt", i);
+                Assert.assertTrue(page.contains("<a href=\"" + name + "\">" + name + "</a>"), name);
+            }
+            Assert.assertTrue(page.contains("<a href=\"sub/\">sub/</a>"));
+            Assert.assertTrue(page.contains("<a href=\"../\">"));
+            Assert.assertFalse(page.contains(".hidden"));
+            Assert.assertTrue(page.endsWith("</html>\n"));
+
+            // The connection stays usable after the last chunk
+            response = SimpleWebServerTest.Response.read(input);
+            Assert.assertEquals(new String(response.body, StandardCharsets.UTF_8), "<p>index</p>");
+        }
+    }
+
+    @Test(dataProvider = "servers")
+    public void testHttp10GetsUnframedListing(SimpleWebServer server) throws Exception {
+        try (Socket socket = SimpleWebServerTest.connect(server)) {
+            socket.getOutputStream().write("GET /large/ HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            SimpleWebServerTest.Response response = SimpleWebServerTest.Response.read(socket.getInputStream());
+            Assert.assertEquals(response.status, 200);
+            Assert.assertNull(response.headers.get("transfer-encoding"));
+            Assert.assertNull(response.headers.get("content-length"));
+            Assert.assertEquals(response.headers.get("connection"), "close");
+            // The body ends where the server closed the connection
+            String page = new String(response.body, StandardCharsets.UTF_8);
+            Assert.assertTrue(page.contains("file-04999.txt"));
+            Assert.assertTrue(page.endsWith("</html>\n"));
+        }
+    }
+
+    @Test(dataProvider = "servers")
+    public void testHeadAndNotModified(SimpleWebServer server) throws Exception {
+        try (Socket socket = SimpleWebServerTest.connect(server)) {
+            socket.getOutputStream().write("HEAD /large/ HTTP/1.1\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            String head = readAll(socket.getInputStream());
+            Assert.assertTrue(head.startsWith("HTTP/1.1 200"), head);
+            Assert.assertTrue(head.endsWith("\r\n\r\n"), head);
+        }
+
+        SimpleWebServerTest.Response listed = get(server, "/large/", "");
+        String etag = listed.headers.get("etag");
+        Assert.assertNotNull(etag);
+        SimpleWebServerTest.Response response = get(server, "/large/", "If-None-Match: " + etag + "\r\n");
+        Assert.assertEquals(response.status, 304);
+        Assert.assertEquals(response.headers.get("etag"), etag);
+    }
+
+    @Test(dataProvider = "servers")
+    public void testNamesAreEscaped(SimpleWebServer server) throws Exception {
+        String page = new String(get(server, "/small/", "").body, StandardCharsets.UTF_8);
+        Assert.assertTrue(page.contains("<a href=\"a%26b%20%3Cc%3E.txt\">a&amp;b &lt;c&gt;.txt</a>"), page);
+        Assert.assertTrue(page.contains("<title>Index of /small/</title>"), page);
+    }
+
+    @Test()
+    public void testCachedListingIsRevalidated() throws Exception {
+        Path directory = root.resolve("changing");
+        Files.createFile(directory.resolve("first.txt"));
+
+        // The first listing is streamed and cached, the second comes from the cache
+        SimpleWebServerTest.Response response = get(eventLoop, "/changing/", "");
+        Assert.assertEquals(response.headers.get("transfer-encoding"), "chunked");
+        response = get(eventLoop, "/changing/", "");
+        Assert.assertNotNull(response.headers.get("content-length"));
+        Assert.assertTrue(new String(response.body, StandardCharsets.UTF_8).contains("first.txt"));
+
+        Files.createFile(directory.resolve("second.txt"));
+        // Makes sure the change shows, however coarse the file system's timestamps are
+        Files.setLastModifiedTime(directory, FileTime.fromMillis(System.currentTimeMillis() + 5000));
+        Thread.sleep(1100);
+        String page = new String(get(eventLoop, "/changing/", "").body, StandardCharsets.UTF_8);
+        Assert.assertTrue(page.contains("first.txt") && page.contains("second.txt"), page);
+    }
+
+    @Test()
+    public void testListingsCanBeDisabled() throws Exception {
+        Assert.assertEquals(get(withoutListings, "/large/", "").status, 404);
+        Assert.assertEquals(get(withoutListings, "/indexed/", "").status, 200);
+        Assert.assertEquals(get(eventLoop, "/large", "").status, 301);
+    }
+
+    private static SimpleWebServerTest.Response get(SimpleWebServer server, String path, String headers)
+            throws IOException {
+        try (Socket socket = SimpleWebServerTest.connect(server)) {
+            String request = "GET " + path + " HTTP/1.1\r\n" + headers + "Connection: close\r\n\r\n";
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+            return SimpleWebServerTest.Response.read(socket.getInputStream());
+        }
+    }
+
+    private static String readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) >= 0)
+            bytes.write(buffer, 0, read);
+        return new String(bytes.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+}
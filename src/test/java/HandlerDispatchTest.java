@@ -0,0 +1,124 @@
+import org.testng.annotations.*;
+import org.testng.Assert;
+import org.andlon.simpleweb.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Integration tests for handlers that block, run on threads of their own.
+ */
+public class HandlerDispatchTest {
+
+    @DataProvider(name = "modes")
+    public Object[][] createModes() {
+        return new Object[][] {
+                { new ServerConfig().port(0).workers(1).blockingHandlers(true) },
+                { new ServerConfig().port(0).workers(1).threadPerConnection(true) }
+        };
+    }
+
+    @Test(dataProvider = "modes")
+    public void testBlockedHandlerDoesNotStallOthers(ServerConfig config) throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        SimpleWebServer server = SimpleWebServerTest.start(config.handler(request -> {
+            if (request.uri().equals("/block")) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else if (request.uri().equals("/release")) {
+                release.countDown();
+            }
+            return new HttpResponse(200).body(request.uri().getBytes(StandardCharsets.UTF_8));
+        }));
+
+        try (Socket blocked = SimpleWebServerTest.connect(server); Socket other = SimpleWebServerTest.connect(server)) {
+            send(blocked, "GET /block HTTP/1.1\r\n\r\n");
+            // With a single event loop, this only gets through if the loop is not stuck in the handler
+            send(other, "GET /release HTTP/1.1\r\n\r\n");
+            Assert.assertEquals(body(other.getInputStream()), "/release");
+            Assert.assertEquals(body(blocked.getInputStream()), "/block");
+        }
+        server.shutdown(Duration.ZERO);
+    }
+
+    @Test(dataProvider = "modes")
+    public void testPipelinedResponsesStayInOrder(ServerConfig config) throws Exception {
+        SimpleWebServer server = SimpleWebServerTest.start(config.handler(request -> {
+            // Earlier requests take longer, so they would finish last if run side by side
+            int delay = 50 - 10 * Integer.parseInt(request.uri().substring(1));
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new HttpResponse(200).body(request.uri().getBytes(StandardCharsets.UTF_8));
+        }));
+
+        try (Socket socket = SimpleWebServerTest.connect(server)) {
+            StringBuilder requests = new StringBuilder();
+            for (int i = 0; i < 5; ++i)
+                requests.append("GET /").append(i).append(" HTTP/1.1\r\n\r\n");
+            send(socket, requests.toString());
+
+            for (int i = 0; i < 5; ++i)
+                Assert.assertEquals(body(socket.getInputStream()), "/" + i);
+        }
+        server.shutdown(Duration.ZERO);
+    }
+
+    @Test()
+    public void testConcurrencyLimit() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger highest = new AtomicInteger();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        SimpleWebServer server = SimpleWebServerTest.start(new ServerConfig().port(0).workers(1).blockingHandlers(true).maxConcurrentHandlers(2).handler(request -> {
+            highest.accumulateAndGet(running.incrementAndGet(), Math::max);
+            threads.add(Thread.currentThread().getName());
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            return new HttpResponse(200).body(request.uri().getBytes(StandardCharsets.UTF_8));
+        }));
+
+        Socket[] sockets = new Socket[6];
+        try {
+            for (int i = 0; i < sockets.length; ++i) {
+                sockets[i] = SimpleWebServerTest.connect(server);
+                send(sockets[i], "GET /" + i + " HTTP/1.1\r\n\r\n");
+            }
+            for (int i = 0; i < sockets.length; ++i)
+                Assert.assertEquals(body(sockets[i].getInputStream()), "/" + i);
+        } finally {
+            for (Socket socket : sockets) {
+                if (socket != null)
+                    socket.close();
+            }
+        }
+        Assert.assertEquals(highest.get(), 2);
+        // Requests over the limit wait in a queue, not on threads of their own
+        Assert.assertTrue(threads.size() <= 2, threads.toString());
+        server.shutdown(Duration.ZERO);
+    }
+
+    private static void send(Socket socket, String request) throws IOException {
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String body(InputStream input) throws IOException {
+        return new String(SimpleWebServerTest.Response.read(input).body, StandardCharsets.UTF_8);
+    }
+}
@@ -1,6 +1,11 @@
 import org.testng.annotations.*;
 import org.testng.Assert;
 import org.andlon.simpleweb.*;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Optional;
 
 /**
@@ -76,4 +81,370 @@ public class HttpRequestBuilderTest {
         Assert.assertNotNull(request);
         Assert.assertEquals(request.host(), "www.example.com");
     }
+
+    @Test(dataProvider = "simpleRequests")
+    public void testBulkRequestTypes(HttpRequest.Type expectedType, String requestLine) throws MalformedRequestException {
+        HttpRequestBuilder builder = new HttpRequestBuilder();
+        byte[] bytes = requestLine.getBytes(StandardCharsets.ISO_8859_1);
+        builder.add(bytes, 0, bytes.length);
+
+        HttpRequest request = builder.request();
+        Assert.assertNotNull(request);
+        Assert.assertEquals(request.type(), expectedType);
+        Assert.assertEquals(request.uri(), "/index.html");
+        Assert.assertEquals(request.version(), "HTTP/1.1");
+        Assert.assertEquals(request.host(), "www.example.com");
+        Assert.assertTrue(builder.isComplete());
+    }
+
+    @Test(dataProvider = "simpleRequestsExceptFail", expectedExceptions = MalformedRequestException.class)
+    public void testBulkMalformedSimpleRequests(String requestLine) throws MalformedRequestException {
+        HttpRequestBuilder builder = new HttpRequestBuilder();
+        builder.add(ByteBuffer.wrap(requestLine.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test()
+    public void testEverySplitPoint() throws MalformedRequestException {
+        byte[] bytes = SIMPLEREQUEST.getBytes(StandardCharsets.ISO_8859_1);
+
+        // Tokens must survive being cut in two anywhere, including right at a delimiter
+        for (int split = 0; split <= bytes.length; ++split) {
+            HttpRequestBuilder builder = new HttpRequestBuilder();
+            builder.add(bytes, 0, split);
+            builder.add(bytes, split, bytes.length - split);
+
+            HttpRequest request = builder.request();
+            Assert.assertTrue(builder.isComplete());
+            Assert.assertEquals(request.type(), HttpRequest.Type.POST);
+            Assert.assertEquals(request.uri(), "/index.html");
+            Assert.assertEquals(request.host(), "www.example.com");
+        }
+    }
+
+    @Test()
+    public void testDirectBuffer() throws MalformedRequestException {
+        byte[] bytes = SIMPLEREQUEST.getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+
+        HttpRequestBuilder builder = new HttpRequestBuilder();
+        builder.add(buffer);
+
+        Assert.assertTrue(builder.isComplete());
+        Assert.assertFalse(buffer.hasRemaining());
+        Assert.assertEquals(builder.request().host(), "www.example.com");
+    }
+
+    @Test()
+    public void testHeaders() throws MalformedRequestException {
+        HttpRequestBuilder builder = new HttpRequestBuilder();
+        byte[] bytes = "GET / HTTP/1.1\r\nHost: example.com\r\nACCEPT:  text/html \r\n\r\n"
+                .getBytes(StandardCharsets.ISO_8859_1);
+        builder.add(bytes, 0, bytes.length);
+
+        HttpRequest request = builder.request();
+        Assert.assertEquals(request.headers().size(), 2);
+        Assert.assertEquals(request.headers().get("host"), "example.com");
+        Assert.assertEquals(request.headers().get("accept"), "text/html");
+    }
+
+    @Test()
+    public void testWellKnownHeaders() throws MalformedRequestException {
+        HttpRequestBuilder builder = new HttpRequestBuilder();
+        byte[] bytes = ("GET / HTTP/1.1\r\nhOsT: example.com\r\nContent-LENGTH: 42\r\n"
+                + "If-None-Match: \"abc\"\r\nX-Custom: yes\r\nRangE: bytes=0-99\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        builder.add(bytes, 0, bytes.length);
+
+        HttpRequest request = builder.request();
+        Assert.assertEquals(request.host(), "example.com");
+        Assert.assertEquals(request.header(HttpHeader.CONTENT_LENGTH), "42");
+        Assert.assertEquals(request.header(HttpHeader.IF_NONE_MATCH), "\"abc\"");
+        Assert.assertEquals(request.header(HttpHeader.RANGE), "bytes=0-99");
+        Assert.assertNull(request.header(HttpHeader.ACCEPT_ENCODING));
+
+        // Well-known and other headers alike show up lower-cased in the generic map
+        Assert.assertEquals(request.headers().get("content-length"), "42");
+        Assert.assertEquals(request.headers().get("x-custom"), "yes");
+        Assert.assertEquals(request.headers().size(), 5);
+    }
+
+    @Test()
+    public void testReset() throws MalformedRequestException {
+        HttpRequestBuilder builder = new HttpRequestBuilder();
+        byte[] first = SIMPLEREQUEST.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] second = "GET /other.html HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+        builder.add(first, 0, first.length);
+        Assert.assertEquals(builder.request().uri(), "/index.html");
+
+        builder.reset();
+        Assert.assertFalse(builder.isComplete());
+        Assert.assertNull(builder.request());
+
+        builder.add(second, 0, second.length);
+        HttpRequest request = builder.request();
+        Assert.assertTrue(builder.isComplete());
+        Assert.assertEquals(request.type(), HttpRequest.Type.GET);
+        Assert.assertEquals(request.uri(), "/other.html");
+        Assert.assertEquals(request.version(), "HTTP/1.0");
+        Assert.assertNull(request.host());
+        Assert.assertTrue(request.headers().isEmpty());
+    }
+
+    @Test()
+    public void testPipelinedRequests() throws MalformedRequestException {
+        HttpRequestBuilder builder = new HttpRequestBuilder();
+        String first = "GET /first.html HTTP/1.1\r\nHost: localhost\r\n\r\n";
+        String second = "HEAD /second.html HTTP/1.1\r\nHost: localhost\r\n\r\n";
+        ByteBuffer buffer = ByteBuffer.wrap((first + second + "GET /th").getBytes(StandardCharsets.ISO_8859_1));
+
+        builder.add(buffer);
+        Assert.assertTrue(builder.isComplete());
+        Assert.assertEquals(builder.request().uri(), "/first.html");
+        Assert.assertEquals(buffer.position(), first.length());
+
+        builder.reset();
+        builder.add(buffer);
+        Assert.assertTrue(builder.isComplete());
+        Assert.assertEquals(builder.request().type(), HttpRequest.Type.HEAD);
+        Assert.assertEquals(builder.request().uri(), "/second.html");
+
+        // The incomplete third request is consumed entirely
+        builder.reset();
+        builder.add(buffer);
+        Assert.assertFalse(builder.isComplete());
+        Assert.assertFalse(buffer.hasRemaining());
+
+        byte[] bytes = (first + second).getBytes(StandardCharsets.ISO_8859_1);
+        builder.reset();
+        Assert.assertEquals(builder.add(bytes, 0, bytes.length), first.length());
+    }
+
+    @DataProvider(name = "requestsWithBodies")
+    public Object[][] createRequestsWithBodies() {
+        return new Object[][] {
+                { "POST /upload HTTP/1.1\r\nContent-Length: 11\r\n\r\nhello world", "hello world" },
+                { "POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                        + "5\r\nhello\r\n6;name=value\r\n world\r\n0\r\n\r\n", "hello world" },
+                { "POST /upload HTTP/1.1\r\nTransfer-Encoding: gzip, Chunked\r\n\r\n"
+                        + "B\r\nhello world\r\n0\r\nExpires: never\r\n\r\n", "hello world" },
+                { "POST /upload HTTP/1.1\r\nContent-Length: 0\r\n\r\n", "" },
+                { "POST /upload HTTP/1.1\r\nContent-Length: 11\r\nHost: x\r\nContent-Length:  11\r\n\r\nhello world",
+                        "hello world" }
+        };
+    }
+
+    @Test(dataProvider = "requestsWithBodies")
+    public void testBodyAtEverySplitPoint(String request, String expected) throws MalformedRequestException {
+        byte[] bytes = (request + "GET / HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+        for (int split = 0; split <= request.length(); ++split) {
+            HttpRequestBuilder builder = new HttpRequestBuilder();
+            CollectingConsumer consumer = new CollectingConsumer();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, split);
+            parse(builder, buffer, consumer);
+            buffer.limit(bytes.length);
+            parse(builder, buffer, consumer);
+
+            Assert.assertTrue(builder.isComplete());
+            Assert.assertEquals(new String(consumer.data.toByteArray(), StandardCharsets.ISO_8859_1), expected);
+            Assert.assertEquals(consumer.ended, !expected.isEmpty());
+            // The pipelined request that follows is left untouched
+            Assert.assertEquals(buffer.position(), request.length());
+        }
+    }
+
+    @Test()
+    public void testBodyConsumerCanPause() throws MalformedRequestException {
+        byte[] bytes = "PUT /upload HTTP/1.1\r\nContent-Length: 10\r\n\r\n0123456789".getBytes(StandardCharsets.ISO_8859_1);
+        HttpRequestBuilder builder = new HttpRequestBuilder();
+        CollectingConsumer consumer = new CollectingConsumer();
+        consumer.accept = false;
+
+        // Parsing waits for a consumer once the headers are complete
+        int consumed = builder.add(bytes, 0, bytes.length);
+        Assert.assertTrue(builder.needsBodyConsumer());
+        Assert.assertEquals(builder.contentLength(), 10);
+
+        builder.body(consumer);
+        consumed += builder.add(bytes, consumed, 4);
+        Assert.assertTrue(builder.isPaused());
+        Assert.assertEquals(consumer.data.size(), 4);
+
+        builder.resume();
+        consumer.accept = true;
+        consumed += builder.add(bytes, consumed, bytes.length - consumed);
+        Assert.assertEquals(consumed, bytes.length);
+        Assert.assertTrue(builder.isComplete());
+        Assert.assertEquals(new String(consumer.data.toByteArray(), StandardCharsets.ISO_8859_1), "0123456789");
+    }
+
+    @DataProvider(name = "malformedBodies")
+    public Object[][] createMalformedBodies() {
+        return new Object[][] {
+                { "POST / HTTP/1.1\r\nContent-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n" },
+                { "POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n" },
+                { "POST / HTTP/1.1\r\nContent-Length: -5\r\n\r\n" },
+                { "POST / HTTP/1.1\r\nContent-Length: 12345678901234567890\r\n\r\n" },
+                { "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nx\r\n" },
+                { "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabcd\r\n" },
+                { "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n10000000000000000\r\n" }
+        };
+    }
+
+    @Test(dataProvider = "malformedBodies", expectedExceptions = MalformedRequestException.class)
+    public void testMalformedBodies(String request) throws MalformedRequestException {
+        parse(new HttpRequestBuilder(), ByteBuffer.wrap(request.getBytes(StandardCharsets.ISO_8859_1)),
+                new CollectingConsumer());
+    }
+
+    @DataProvider(name = "limitViolations")
+    public Object[][] createLimitViolations() {
+        StringBuilder manyHeaders = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i < 5; ++i)
+            manyHeaders.append("X-Header-").append(i).append(": value\r\n");
+        String chunked = "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n";
+        StringBuilder manyTrailers = new StringBuilder(chunked).append("0\r\n");
+        for (int i = 0; i < 4; ++i)
+            manyTrailers.append("X-Trailer-").append(i).append(": value\r\n");
+        return new Object[][] {
+                { "GET /" + repeat('a', 100) + " HTTP/1.1\r\n\r\n", MalformedRequestException.Reason.REQUEST_LINE_TOO_LONG },
+                { manyHeaders.append("\r\n").toString(), MalformedRequestException.Reason.TOO_MANY_HEADERS },
+                { "GET / HTTP/1.1\r\nCookie: " + repeat('c', 200) + "\r\n\r\n", MalformedRequestException.Reason.HEADERS_TOO_LARGE },
+                { "POST / HTTP/1.1\r\nContent-Length: 11\r\n\r\nhello world", MalformedRequestException.Reason.BODY_TOO_LARGE },
+                { "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n6\r\nhello \r\n5\r\nworld\r\n0\r\n\r\n",
+                        MalformedRequestException.Reason.BODY_TOO_LARGE },
+                // Extensions and trailers are skipped, but not without limit
+                { chunked + "1;ext=" + repeat('e', 2000) + "\r\nx\r\n0\r\n\r\n", MalformedRequestException.Reason.CHUNK },
+                { chunked + "0" + repeat(' ', 2000) + "\r\n\r\n", MalformedRequestException.Reason.CHUNK },
+                { chunked + "0\r\nX-Trailer: " + repeat('t', 200) + "\r\n\r\n", MalformedRequestException.Reason.HEADERS_TOO_LARGE },
+                { manyTrailers.append("\r\n").toString(), MalformedRequestException.Reason.TOO_MANY_HEADERS },
+                { "GET / HTTP/2.0\r\n\r\n", MalformedRequestException.Reason.VERSION_NOT_SUPPORTED },
+                { "GET / HTTX/1.1\r\n\r\n", MalformedRequestException.Reason.REQUEST_LINE },
+                { "GET / HTTP/1.1a\r\n\r\n", MalformedRequestException.Reason.REQUEST_LINE }
+        };
+    }
+
+    @DataProvider(name = "conflictingLengths")
+    public Object[][] createConflictingLengths() {
+        return new Object[][] {
+                { "POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 50\r\n\r\nhello" },
+                { "POST / HTTP/1.1\r\nContent-Length: 50\r\nContent-Length: 5\r\n\r\nhello" },
+                { "POST / HTTP/1.1\r\nContent-Length: 5\r\nHost: x\r\nContent-Length: 05\r\n\r\nhello" }
+        };
+    }
+
+    @Test(dataProvider = "conflictingLengths")
+    public void testConflictingContentLengths(String request) {
+        try {
+            parse(new HttpRequestBuilder(), ByteBuffer.wrap(request.getBytes(StandardCharsets.ISO_8859_1)),
+                    new CollectingConsumer());
+            Assert.fail("Request was accepted: " + request);
+        } catch (MalformedRequestException e) {
+            Assert.assertEquals(e.reason(), MalformedRequestException.Reason.CONTENT_LENGTH);
+        }
+    }
+
+    @Test(dataProvider = "limitViolations")
+    public void testLimits(String request, MalformedRequestException.Reason reason) {
+        HttpRequestBuilder builder = new HttpRequestBuilder().limits(64, 4, 128, 10).stackTraces(false);
+        try {
+            parse(builder, ByteBuffer.wrap(request.getBytes(StandardCharsets.ISO_8859_1)), new CollectingConsumer());
+            Assert.fail("Request was accepted: " + request);
+        } catch (MalformedRequestException e) {
+            Assert.assertEquals(e.reason(), reason);
+            Assert.assertEquals(e.getStackTrace().length, 0);
+        }
+    }
+
+    @Test()
+    public void testWithinLimits() throws MalformedRequestException {
+        HttpRequestBuilder builder = new HttpRequestBuilder().limits(64, 4, 128, 10);
+        CollectingConsumer consumer = new CollectingConsumer();
+        parse(builder, ByteBuffer.wrap("POST /upload HTTP/1.1\r\nHost: localhost\r\nContent-Length: 10\r\n\r\n0123456789"
+                .getBytes(StandardCharsets.ISO_8859_1)), consumer);
+        Assert.assertTrue(builder.isComplete());
+        Assert.assertEquals(new String(consumer.data.toByteArray(), StandardCharsets.ISO_8859_1), "0123456789");
+
+        // Short extensions and trailers within the header limits are accepted
+        builder.reset();
+        consumer.data.reset();
+        parse(builder, ByteBuffer.wrap(("POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;name=value\r\nhello\r\n0\r\nExpires: never\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)), consumer);
+        Assert.assertTrue(builder.isComplete());
+        Assert.assertEquals(new String(consumer.data.toByteArray(), StandardCharsets.ISO_8859_1), "hello");
+
+        // The limits apply to each request separately
+        builder.reset();
+        parse(builder, ByteBuffer.wrap("GET / HTTP/1.0\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)), consumer);
+        Assert.assertTrue(builder.isComplete());
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static void parse(HttpRequestBuilder builder, ByteBuffer buffer, BodyConsumer consumer)
+            throws MalformedRequestException {
+        while (buffer.hasRemaining() && !builder.isComplete()) {
+            builder.add(buffer);
+            if (builder.needsBodyConsumer())
+                builder.body(consumer);
+        }
+    }
+
+    private static class CollectingConsumer implements BodyConsumer {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        boolean accept = true;
+        boolean ended = false;
+
+        @Override
+        public boolean onData(ByteBuffer buffer) {
+            while (buffer.hasRemaining())
+                data.write(buffer.get());
+            return accept;
+        }
+
+        @Override
+        public void onEnd() {
+            ended = true;
+        }
+    }
+
+    @Test()
+    public void testSteadyStateParsingDoesNotAllocate() throws MalformedRequestException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        byte[] bytes = ("GET /index.html HTTP/1.1\r\nHost: www.example.com\r\nUser-Agent: test\r\n"
+                + "Accept: */*\r\nAccept-Encoding: gzip\r\nConnection: keep-alive\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        HttpRequestBuilder builder = new HttpRequestBuilder();
+
+        // Let the builder grow its buffers and the JIT settle first
+        for (int i = 0; i < 50000; ++i)
+            parse(builder, buffer);
+
+        int iterations = 100000;
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; ++i)
+            parse(builder, buffer);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        // Allow for a handful of bytes from the measurement itself
+        Assert.assertTrue(allocated < 1024, "Allocated " + allocated + " bytes for " + iterations + " requests");
+    }
+
+    private static void parse(HttpRequestBuilder builder, ByteBuffer buffer) throws MalformedRequestException {
+        builder.reset();
+        buffer.rewind();
+        builder.add(buffer);
+        if (!builder.isComplete() || builder.request().type() != HttpRequest.Type.GET)
+            throw new AssertionError();
+    }
 }
@@ -0,0 +1,101 @@
+import org.testng.annotations.*;
+import org.testng.Assert;
+import org.andlon.simpleweb.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import javax.management.ObjectName;
+
+/**
+ * Tests of the metrics a server keeps about itself and how they are exposed.
+ */
+public class MetricsTest {
+    private SimpleWebServer server;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        server = SimpleWebServerTest.start(new ServerConfig()
+                .port(0)
+                .workers(1)
+                .metricsPath("/metrics")
+                .handler(request -> {
+                    if (request.uri().equals("/fail"))
+                        throw new IOException("Failing on purpose");
+                    return new HttpResponse(200).body("hello".getBytes(StandardCharsets.UTF_8));
+                }));
+    }
+
+    @AfterClass
+    public void teardown() throws InterruptedException {
+        server.shutdown(Duration.ZERO);
+    }
+
+    @Test()
+    public void testLatencyPercentiles() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        for (long micros = 1; micros <= 1000; ++micros)
+            recorder.record(micros * 1000);
+
+        Assert.assertEquals(recorder.count(), 1000);
+        Assert.assertEquals(recorder.max(), 1000000);
+        Assert.assertEquals(recorder.sum(), 500500000L);
+        Assert.assertEquals(recorder.percentile(50), 500000, 500000 * 0.04);
+        Assert.assertEquals(recorder.percentile(99), 990000, 990000 * 0.04);
+        Assert.assertEquals(recorder.percentile(100), 1000000);
+        Assert.assertEquals(new LatencyRecorder().percentile(99), 0);
+    }
+
+    @Test()
+    public void testPrometheusEndpoint() throws Exception {
+        Assert.assertEquals(request("GET /hello HTTP/1.1\r\nConnection: close\r\n\r\n").status, 200);
+        Assert.assertEquals(request("GET /fail HTTP/1.1\r\nConnection: close\r\n\r\n").status, 500);
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nContent-Length: ten\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            Assert.assertEquals(SimpleWebServerTest.Response.read(socket.getInputStream()).status, 400);
+        }
+
+        SimpleWebServerTest.Response response = request("GET /metrics HTTP/1.1\r\nConnection: close\r\n\r\n");
+        Assert.assertEquals(response.status, 200);
+        Assert.assertTrue(response.headers.get("content-type").startsWith("text/plain; version=0.0.4"));
+        String text = new String(response.body, StandardCharsets.UTF_8);
+        Assert.assertTrue(text.contains("# TYPE simpleweb_connections_accepted_total counter\n"), text);
+        Assert.assertTrue(text.contains("simpleweb_malformed_requests_total{reason=\"content_length\"} 1\n"), text);
+        Assert.assertTrue(text.contains("simpleweb_handler_errors_total 1\n"), text);
+        Assert.assertTrue(text.contains("simpleweb_request_duration_seconds{quantile=\"0.99\"} "), text);
+
+        Assert.assertTrue(server.metrics().connectionsAccepted() >= 4);
+        Assert.assertTrue(server.metrics().bytesIn() > 0);
+        Assert.assertTrue(server.metrics().bytesOut() > 0);
+        Assert.assertTrue(server.metrics().handlerTime().count() >= 2);
+        Assert.assertTrue(server.metrics().parseTime().count() >= 2);
+    }
+
+    @Test()
+    public void testJmx() throws Exception {
+        Assert.assertEquals(request("GET /hello HTTP/1.1\r\nConnection: close\r\n\r\n").status, 200);
+
+        ObjectName name = new ObjectName("org.andlon.simpleweb:type=Server,port=" + server.port());
+        Object accepted = ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ConnectionsAccepted");
+        Assert.assertTrue((Long) accepted >= 1);
+        Object requests = ManagementFactory.getPlatformMBeanServer().getAttribute(name, "RequestCount");
+        Assert.assertTrue((Long) requests >= 1);
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("localhost", server.port());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private SimpleWebServerTest.Response request(String request) throws IOException {
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+            InputStream input = socket.getInputStream();
+            return SimpleWebServerTest.Response.read(input);
+        }
+    }
+}
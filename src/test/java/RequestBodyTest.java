@@ -0,0 +1,221 @@
+import org.testng.annotations.*;
+import org.testng.Assert;
+import org.andlon.simpleweb.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Integration tests for requests with bodies, collected by the server or streamed to the handler.
+ */
+public class RequestBodyTest {
+    private SimpleWebServer server;
+    private ScheduledExecutorService scheduler;
+    private volatile Path lastSpilledFile;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        server = SimpleWebServerTest.start(new ServerConfig()
+                .port(0)
+                .workers(1)
+                .bodyMemoryThreshold(16 * 1024)
+                .handler(new BodyHandler()));
+    }
+
+    @AfterClass
+    public void teardown() throws InterruptedException {
+        server.shutdown(Duration.ZERO);
+        scheduler.shutdownNow();
+    }
+
+    @Test()
+    public void testBodyConsumerFailuresAreCounted() throws IOException {
+        long errors = server.metrics().handlerErrors();
+        for (String path : new String[] { "/refuse", "/broken" }) {
+            try (Socket socket = connect()) {
+                socket.getOutputStream().write(("POST " + path + " HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello")
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                Assert.assertEquals(SimpleWebServerTest.Response.read(socket.getInputStream()).status, 500);
+            }
+        }
+        Assert.assertEquals(server.metrics().handlerErrors(), errors + 2);
+    }
+
+    @Test()
+    public void testContentLengthBody() throws IOException {
+        try (Socket socket = connect()) {
+            OutputStream output = socket.getOutputStream();
+            InputStream input = socket.getInputStream();
+
+            output.write("POST /echo HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello".getBytes(StandardCharsets.ISO_8859_1));
+            SimpleWebServerTest.Response response = SimpleWebServerTest.Response.read(input);
+            Assert.assertEquals(response.status, 200);
+            Assert.assertEquals(new String(response.body, StandardCharsets.UTF_8), "memory hello");
+
+            // The connection is ready for the next request once the body has been read
+            output.write("POST /echo HTTP/1.1\r\nContent-Length: 2\r\n\r\nhi".getBytes(StandardCharsets.ISO_8859_1));
+            response = SimpleWebServerTest.Response.read(input);
+            Assert.assertEquals(new String(response.body, StandardCharsets.UTF_8), "memory hi");
+        }
+    }
+
+    @Test()
+    public void testChunkedBodyIsSpilled() throws IOException {
+        byte[] body = new byte[200 * 1024];
+        new Random(3).nextBytes(body);
+
+        try (Socket socket = connect()) {
+            OutputStream output = socket.getOutputStream();
+            output.write("POST /checksum HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            for (int offset = 0; offset < body.length; offset += 7000) {
+                int length = Math.min(7000, body.length - offset);
+                output.write((Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                output.write(body, offset, length);
+                output.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            }
+            output.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+
+            SimpleWebServerTest.Response response = SimpleWebServerTest.Response.read(socket.getInputStream());
+            Assert.assertEquals(new String(response.body, StandardCharsets.UTF_8), "file " + checksum(body));
+            // The spilled file only lives as long as the request
+            Assert.assertNotNull(lastSpilledFile);
+            Assert.assertFalse(Files.exists(lastSpilledFile));
+        }
+    }
+
+    @Test()
+    public void testExpectContinue() throws IOException {
+        try (Socket socket = connect()) {
+            OutputStream output = socket.getOutputStream();
+            InputStream input = socket.getInputStream();
+
+            output.write("PUT /echo HTTP/1.1\r\nContent-Length: 3\r\nExpect: 100-continue\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            // The interim response has no body, so it ends with the empty line
+            StringBuilder interim = new StringBuilder();
+            while (!interim.toString().endsWith("\r\n\r\n"))
+                interim.append((char) input.read());
+            Assert.assertEquals(interim.toString(), "HTTP/1.1 100 Continue\r\n\r\n");
+
+            output.write("abc".getBytes(StandardCharsets.ISO_8859_1));
+            SimpleWebServerTest.Response response = SimpleWebServerTest.Response.read(input);
+            Assert.assertEquals(new String(response.body, StandardCharsets.UTF_8), "memory abc");
+        }
+    }
+
+    @Test()
+    public void testStreamingConsumerWithBackpressure() throws IOException {
+        byte[] body = new byte[1024 * 1024];
+        new Random(5).nextBytes(body);
+
+        try (Socket socket = connect()) {
+            OutputStream output = socket.getOutputStream();
+            output.write(("POST /stream HTTP/1.1\r\nContent-Length: " + body.length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            output.write(body);
+
+            SimpleWebServerTest.Response response = SimpleWebServerTest.Response.read(socket.getInputStream());
+            Assert.assertEquals(response.status, 200);
+            String[] result = new String(response.body, StandardCharsets.UTF_8).split(" ");
+            Assert.assertEquals(result[0], Long.toString(checksum(body)));
+            // Every piece of the body paused reading until the consumer resumed it
+            Assert.assertTrue(Integer.parseInt(result[1]) > 1);
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("localhost", server.port());
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    private static long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    /**
+     * Answers /echo and /checksum from the collected body and consumes /stream as it arrives,
+     * pausing after every piece and resuming from another thread.
+     */
+    private class BodyHandler implements RequestHandler {
+        private final CRC32 streamed = new CRC32();
+        private int pauses = 0;
+
+        @Override
+        public HttpResponse handle(HttpRequest request) throws IOException {
+            String text;
+            if (request.uri().equals("/stream")) {
+                text = streamed.getValue() + " " + pauses;
+                streamed.reset();
+                pauses = 0;
+            } else {
+                RequestBody content = request.content();
+                String storage = content.isInMemory() ? "memory " : "file ";
+                if (!content.isInMemory())
+                    lastSpilledFile = content.file();
+
+                if (request.uri().equals("/checksum")) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    try (InputStream stream = content.stream()) {
+                        int b;
+                        while ((b = stream.read()) >= 0)
+                            bytes.write(b);
+                    }
+                    text = storage + checksum(bytes.toByteArray());
+                } else {
+                    text = storage + request.body();
+                }
+            }
+            return new HttpResponse(200).body(text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public BodyConsumer bodyConsumer(HttpRequest request, Runnable resume) throws IOException {
+            if (request.uri().equals("/refuse"))
+                throw new IOException("Refusing the body on purpose");
+            if (request.uri().equals("/broken"))
+                return new BodyConsumer() {
+                    @Override
+                    public boolean onData(ByteBuffer data) throws IOException {
+                        throw new IOException("Failing on purpose");
+                    }
+
+                    @Override
+                    public void onEnd() { }
+                };
+            if (!request.uri().equals("/stream"))
+                return null;
+
+            return new BodyConsumer() {
+                @Override
+                public boolean onData(ByteBuffer data) {
+                    byte[] bytes = new byte[data.remaining()];
+                    data.get(bytes);
+                    streamed.update(bytes, 0, bytes.length);
+                    ++pauses;
+                    scheduler.schedule(resume, 1, TimeUnit.MILLISECONDS);
+                    return false;
+                }
+
+                @Override
+                public void onEnd() { }
+            };
+        }
+    }
+}
@@ -0,0 +1,201 @@
+import org.testng.annotations.*;
+import org.testng.Assert;
+import org.andlon.simpleweb.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Tests of routing requests by method and path.
+ */
+public class RouterTest {
+    private Router router;
+
+    @BeforeClass
+    public void setup() {
+        router = new Router.Builder()
+                .get("/", RouterTest::describe)
+                .get("/users", RouterTest::describe)
+                .get("/users/me", RouterTest::describe)
+                .get("/users/:id", RouterTest::describe)
+                .delete("/users/:id", RouterTest::describe)
+                .get("/users/:id/posts/:post", RouterTest::describe)
+                .get("/users/:id/*rest", RouterTest::describe)
+                .post("/upload", RouterTest::describe)
+                .any("/health", RouterTest::describe)
+                .get("/static/*file", RouterTest::describe)
+                .build();
+    }
+
+    @Test()
+    public void testPrecedence() throws Exception {
+        assertRoute("GET / HTTP/1.1", "/");
+        assertRoute("GET /users HTTP/1.1", "/users");
+        assertRoute("GET /users/me HTTP/1.1", "/users/me");
+        assertRoute("GET /users/mel HTTP/1.1", "/users/:id", "id=mel");
+        assertRoute("GET /users/42 HTTP/1.1", "/users/:id", "id=42");
+        assertRoute("GET /users/42/posts/7 HTTP/1.1", "/users/:id/posts/:post", "id=42", "post=7");
+        // Falls back from the parameter route to the wildcard when the rest does not match
+        assertRoute("GET /users/42/posts HTTP/1.1", "/users/:id/*rest", "id=42", "rest=posts");
+        assertRoute("GET /users/me/friends/all HTTP/1.1", "/users/:id/*rest", "id=me", "rest=friends/all");
+        assertRoute("GET /static/css/site.css HTTP/1.1", "/static/*file", "file=css/site.css");
+        assertRoute("GET /static/ HTTP/1.1", "/static/*file", "file=");
+    }
+
+    @Test()
+    public void testUriForms() throws Exception {
+        assertRoute("GET /users/42?tab=posts#top HTTP/1.1", "/users/:id", "id=42");
+        assertRoute("GET /users/J%C3%B8rgen%20K HTTP/1.1", "/users/:id", "id=J\u00f8rgen K");
+        assertRoute("GET /users/100%25 HTTP/1.1", "/users/:id", "id=100%");
+        assertRoute("GET /users/bad%zz HTTP/1.1", "/users/:id", "id=bad%zz");
+        assertRoute("GET http://example.com/users/42 HTTP/1.1", "/users/:id", "id=42");
+        assertRoute("GET https://example.com/users/42 HTTP/1.1", "/users/:id", "id=42");
+        assertRoute("GET http://example.com HTTP/1.1", "/");
+    }
+
+    @Test()
+    public void testMethods() throws Exception {
+        assertRoute("DELETE /users/42 HTTP/1.1", "/users/:id", "id=42");
+        assertRoute("HEAD /users/42 HTTP/1.1", "/users/:id", "id=42");
+        assertRoute("PATCH /health HTTP/1.1", "/health");
+
+        HttpResponse response = router.handle(parse("PUT /users/42 HTTP/1.1"));
+        Assert.assertEquals(response.status(), 405);
+        Assert.assertEquals(response.header("Allow"), "GET, HEAD, DELETE");
+
+        response = router.handle(parse("GET /upload HTTP/1.1"));
+        Assert.assertEquals(response.status(), 405);
+        Assert.assertEquals(response.header("Allow"), "POST");
+    }
+
+    @Test()
+    public void testUnmatchedRequests() throws Exception {
+        for (String line : new String[] { "GET /nothing HTTP/1.1", "GET /users/ HTTP/1.1", "GET /userss HTTP/1.1",
+                "GET /static HTTP/1.1", "OPTIONS * HTTP/1.1" })
+            Assert.assertEquals(router.handle(parse(line)).status(), 404, line);
+
+        Router withFallback = router.withFallback(request -> new HttpResponse(200).header("X-Route", "fallback"));
+        Assert.assertEquals(withFallback.handle(parse("GET /nothing HTTP/1.1")).header("X-Route"), "fallback");
+        Assert.assertEquals(withFallback.handle(parse("GET /users/42 HTTP/1.1")).header("X-Route"), "/users/:id");
+    }
+
+    @Test()
+    public void testRequestsNotFromParser() throws Exception {
+        HttpResponse response = router.handle(new FixedRequest(HttpRequest.Type.GET, "/users/42/posts/7?x=1"));
+        Assert.assertEquals(response.header("X-Route"), "/users/:id/posts/:post");
+        Assert.assertEquals(response.header("X-Parameters"), "id=42,post=7");
+    }
+
+    @Test()
+    public void testManyRoutes() throws Exception {
+        Router.Builder builder = new Router.Builder();
+        for (int i = 0; i < 2000; ++i) {
+            builder.get("/api/v" + (i % 4) + "/resource" + i + "/:id", RouterTest::describe);
+            builder.get("/api/v" + (i % 4) + "/resource" + i, RouterTest::describe);
+        }
+        Router many = builder.build();
+
+        for (int i = 0; i < 2000; i += 37) {
+            HttpResponse response = many.handle(parse("GET /api/v" + (i % 4) + "/resource" + i + "/x" + i + " HTTP/1.1"));
+            Assert.assertEquals(response.header("X-Route"), "/api/v" + (i % 4) + "/resource" + i + "/:id");
+            Assert.assertEquals(response.header("X-Parameters"), "id=x" + i);
+            response = many.handle(parse("GET /api/v" + (i % 4) + "/resource" + i + " HTTP/1.1"));
+            Assert.assertEquals(response.header("X-Route"), "/api/v" + (i % 4) + "/resource" + i);
+        }
+        Assert.assertEquals(many.handle(parse("GET /api/v1/resource0 HTTP/1.1")).status(), 404);
+    }
+
+    @Test()
+    public void testInvalidRoutes() {
+        String[] invalid = { "users", "/users/:", "/files/*path/more", "/a/:id/b/:id", "/caf\u00e9", "/a b" };
+        for (String pattern : invalid) {
+            try {
+                new Router.Builder().get(pattern, RouterTest::describe);
+                Assert.fail("Accepted " + pattern);
+            } catch (IllegalArgumentException e) { }
+        }
+
+        try {
+            new Router.Builder().get("/users/:id", RouterTest::describe).get("/users/:name", RouterTest::describe);
+            Assert.fail("Accepted clashing routes");
+        } catch (IllegalArgumentException e) { }
+        // Different methods may name the same parameter differently
+        new Router.Builder().get("/users/:id", RouterTest::describe).delete("/users/:name", RouterTest::describe);
+    }
+
+    @Test()
+    public void testServerFallsBackToFiles() throws Exception {
+        Path root = Files.createTempDirectory("simpleweb-router");
+        Files.write(root.resolve("page.html"), "<p>file</p>".getBytes(StandardCharsets.UTF_8));
+        SimpleWebServer server = SimpleWebServerTest.start(new ServerConfig().port(0).workers(1).jmx(false)
+                .documentRoot(root).handler(new Router.Builder()
+                        .get("/hello/:name", (request, match) -> new HttpResponse(200)
+                                .body(("Hello " + match.parameter("name")).getBytes(StandardCharsets.UTF_8)))
+                        .build()));
+
+        Assert.assertEquals(new String(get(server, "/hello/world").body, StandardCharsets.UTF_8), "Hello world");
+        Assert.assertEquals(new String(get(server, "/page.html").body, StandardCharsets.UTF_8), "<p>file</p>");
+        Assert.assertEquals(get(server, "/missing.html").status, 404);
+        server.shutdown(Duration.ZERO);
+    }
+
+    private void assertRoute(String requestLine, String pattern, String... parameters) throws Exception {
+        HttpResponse response = router.handle(parse(requestLine));
+        Assert.assertEquals(response.status(), 200, requestLine);
+        Assert.assertEquals(response.header("X-Route"), pattern, requestLine);
+        Assert.assertEquals(response.header("X-Parameters"), String.join(",", parameters), requestLine);
+    }
+
+    private static HttpResponse describe(HttpRequest request, RouteMatch match) {
+        StringBuilder parameters = new StringBuilder();
+        for (int i = 0; i < match.parameterCount(); ++i) {
+            parameters.append(i == 0 ? "" : ",").append(match.name(i)).append('=').append(match.parameter(i));
+            Assert.assertEquals(match.parameter(match.name(i)), match.parameter(i));
+        }
+        return new HttpResponse(200).header("X-Route", match.pattern()).header("X-Parameters", parameters.toString());
+    }
+
+    private static HttpRequest parse(String requestLine) throws MalformedRequestException {
+        HttpRequestBuilder builder = new HttpRequestBuilder();
+        byte[] bytes = (requestLine + "\r\nHost: example.com\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        builder.add(bytes, 0, bytes.length);
+        return builder.request();
+    }
+
+    private static SimpleWebServerTest.Response get(SimpleWebServer server, String path) throws IOException {
+        try (Socket socket = new Socket("localhost", server.port())) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            return SimpleWebServerTest.Response.read(socket.getInputStream());
+        }
+    }
+
+    /**
+     * A request built by hand rather than by the parser.
+     */
+    private static class FixedRequest implements HttpRequest {
+        private final Type m_type;
+        private final String m_uri;
+
+        FixedRequest(Type type, String uri) {
+            m_type = type;
+            m_uri = uri;
+        }
+
+        public Type type() { return m_type; }
+        public String uri() { return m_uri; }
+        public String version() { return "HTTP/1.1"; }
+        public String host() { return null; }
+        public String header(HttpHeader header) { return null; }
+        public Map<String, String> headers() { return Collections.emptyMap(); }
+        public String body() { return ""; }
+        public RequestBody content() { return null; }
+    }
+}
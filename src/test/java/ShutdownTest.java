@@ -0,0 +1,135 @@
+import org.testng.annotations.*;
+import org.testng.Assert;
+import org.andlon.simpleweb.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of graceful shutdown and of handing the listening sockets over to a successor server, in both
+ * the event loop and the thread per connection mode.
+ */
+public class ShutdownTest {
+    @DataProvider(name = "modes")
+    public Object[][] modes() {
+        return new Object[][] { { false }, { true } };
+    }
+
+    @Test(dataProvider = "modes")
+    public void testIdleConnectionIsClosed(boolean threadPerConnection) throws Exception {
+        SimpleWebServer server = SimpleWebServerTest.start(config(threadPerConnection).handler(request -> text("idle")));
+        try (Socket socket = SimpleWebServerTest.connect(server)) {
+            socket.getOutputStream().write(get("/").getBytes(StandardCharsets.ISO_8859_1));
+            InputStream input = socket.getInputStream();
+            SimpleWebServerTest.Response response = SimpleWebServerTest.Response.read(input);
+            Assert.assertEquals(response.status, 200);
+
+            Assert.assertTrue(server.shutdown(Duration.ofSeconds(5)));
+            Assert.assertEquals(input.read(), -1);
+        }
+        assertRefused(server.port());
+    }
+
+    @Test(dataProvider = "modes")
+    public void testInFlightAndPipelinedRequestsFinish(boolean threadPerConnection) throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        SimpleWebServer server = SimpleWebServerTest.start(config(threadPerConnection).handler(request -> {
+            if (request.uri().equals("/slow")) {
+                started.countDown();
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) { }
+            }
+            return text(request.uri());
+        }));
+
+        try (Socket socket = SimpleWebServerTest.connect(server)) {
+            socket.getOutputStream().write((get("/slow") + get("/next")).getBytes(StandardCharsets.ISO_8859_1));
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(server.shutdown(Duration.ofSeconds(5)));
+
+            InputStream input = socket.getInputStream();
+            SimpleWebServerTest.Response first = SimpleWebServerTest.Response.read(input);
+            Assert.assertEquals(new String(first.body, StandardCharsets.UTF_8), "/slow");
+            SimpleWebServerTest.Response second = SimpleWebServerTest.Response.read(input);
+            Assert.assertEquals(new String(second.body, StandardCharsets.UTF_8), "/next");
+            Assert.assertEquals(input.read(), -1);
+        }
+    }
+
+    @Test()
+    public void testDeadlineClosesRemainingConnections() throws Exception {
+        SimpleWebServer server = SimpleWebServerTest.start(config(false).blockingHandlers(true).handler(request -> {
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) { }
+            return text("late");
+        }));
+
+        try (Socket socket = SimpleWebServerTest.connect(server)) {
+            socket.getOutputStream().write(get("/").getBytes(StandardCharsets.ISO_8859_1));
+            Thread.sleep(100);
+            Assert.assertFalse(server.shutdown(Duration.ofMillis(100)));
+            Assert.assertEquals(socket.getInputStream().read(), -1);
+        }
+    }
+
+    @Test(dataProvider = "modes")
+    public void testSuccessorTakesOverListener(boolean threadPerConnection) throws Exception {
+        SimpleWebServer old = SimpleWebServerTest.start(config(threadPerConnection).handler(request -> text("old")));
+        try (Socket kept = SimpleWebServerTest.connect(old)) {
+            SimpleWebServer successor = new SimpleWebServer(config(threadPerConnection).handler(request -> text("new")),
+                    old);
+            Assert.assertEquals(successor.port(), old.port());
+
+            // Until the successor runs, the old server keeps accepting
+            Assert.assertEquals(body(request(old.port())), "old");
+
+            SimpleWebServerTest.start(successor);
+            Assert.assertTrue(old.shutdown(Duration.ofSeconds(5)));
+            for (int i = 0; i < 5; ++i)
+                Assert.assertEquals(body(request(old.port())), "new");
+
+            // The connection the old server had is drained, not dropped
+            Assert.assertEquals(kept.getInputStream().read(), -1);
+            Assert.assertTrue(successor.shutdown(Duration.ofSeconds(5)));
+        }
+    }
+
+    private static ServerConfig config(boolean threadPerConnection) {
+        return new ServerConfig().port(0).workers(1).jmx(false).threadPerConnection(threadPerConnection);
+    }
+
+    private static HttpResponse text(String body) {
+        return new HttpResponse(200).header("Content-Type", "text/plain").body(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String get(String uri) {
+        return "GET " + uri + " HTTP/1.1\r\n\r\n";
+    }
+
+    private static String body(SimpleWebServerTest.Response response) {
+        return new String(response.body, StandardCharsets.UTF_8);
+    }
+
+    private static SimpleWebServerTest.Response request(int port) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            return SimpleWebServerTest.Response.read(socket.getInputStream());
+        }
+    }
+
+    private static void assertRefused(int port) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            Assert.fail("Connection was accepted after shutdown");
+        } catch (ConnectException e) { }
+    }
+}
@@ -0,0 +1,462 @@
+import org.testng.annotations.*;
+import org.testng.Assert;
+import org.andlon.simpleweb.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Integration tests talking to a running server over real sockets.
+ */
+public class SimpleWebServerTest {
+    private Path root;
+    private SimpleWebServer server;
+    private byte[] mediumFile;
+    private byte[] largeFile;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("simpleweb");
+        Files.write(root.resolve("index.html"), "<h1>Hello</h1>".getBytes(StandardCharsets.UTF_8));
+        Files.createDirectory(root.resolve("sub"));
+        Files.write(root.resolve("sub").resolve("index.html"), "sub".getBytes(StandardCharsets.UTF_8));
+
+        // Too large for the file cache, so it is sent with transferTo
+        mediumFile = new byte[1536 * 1024 + 5];
+        new Random(7).nextBytes(mediumFile);
+        Files.write(root.resolve("medium.bin"), mediumFile);
+
+        // Large enough to be memory mapped
+        largeFile = new byte[3 * 1024 * 1024 + 17];
+        new Random(42).nextBytes(largeFile);
+        Files.write(root.resolve("large.bin"), largeFile);
+
+        server = start(new ServerConfig()
+                .port(0)
+                .workers(2)
+                .documentRoot(root)
+                .mappedFileMinSize(2 * 1024 * 1024)
+                .headerTimeout(1000));
+    }
+
+    @AfterClass
+    public void teardown() throws InterruptedException {
+        server.shutdown(Duration.ZERO);
+    }
+
+    @Test()
+    public void testGetFile() throws IOException {
+        Response response = request("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+        Assert.assertEquals(response.status, 200);
+        Assert.assertEquals(response.headers.get("content-type"), "text/html; charset=utf-8");
+        Assert.assertEquals(response.headers.get("content-length"), "14");
+        Assert.assertEquals(new String(response.body, StandardCharsets.UTF_8), "<h1>Hello</h1>");
+    }
+
+    @Test()
+    public void testResponseHeadCarriesDateAndServer() throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        for (String path : new String[] { "/index.html", "/medium.bin", "/missing" }) {
+            long before = System.currentTimeMillis() / 1000 * 1000;
+            Response response = request("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+            long after = System.currentTimeMillis();
+
+            String date = response.headers.get("date");
+            Assert.assertTrue(date.matches("[A-Z][a-z]{2}, \\d{2} [A-Z][a-z]{2} \\d{4} \\d{2}:\\d{2}:\\d{2} GMT"), date);
+            long time = format.parse(date).getTime();
+            Assert.assertTrue(time >= before && time <= after, date);
+            Assert.assertEquals(response.headers.get("server"), "SimpleWeb");
+            Assert.assertEquals(response.headers.get("content-length"), String.valueOf(response.body.length));
+        }
+    }
+
+    @Test()
+    public void testNoContentHasNoLength() throws Exception {
+        SimpleWebServer handlerServer = start(new ServerConfig().port(0).workers(1).jmx(false).handler(request ->
+                new HttpResponse(request.uri().equals("/empty") ? 204 : 200).body("body".getBytes(StandardCharsets.UTF_8))));
+        try (Socket socket = connect(handlerServer)) {
+            socket.getOutputStream().write("GET /empty HTTP/1.1\r\n\r\nGET /full HTTP/1.1\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            InputStream input = socket.getInputStream();
+
+            Response response = Response.read(input);
+            Assert.assertEquals(response.status, 204);
+            Assert.assertNull(response.headers.get("content-length"));
+
+            // The body given to the 204 was not sent, or it would be read as the next response
+            response = Response.read(input);
+            Assert.assertEquals(response.status, 200);
+            Assert.assertEquals(new String(response.body, StandardCharsets.UTF_8), "body");
+        }
+        handlerServer.shutdown(Duration.ZERO);
+    }
+
+    @Test()
+    public void testHeaderValuesCannotSplitTheResponse() throws Exception {
+        SimpleWebServer handlerServer = start(new ServerConfig().port(0).workers(1).jmx(false).handler(request ->
+                new HttpResponse(200).header("X-Echo", request.uri().substring(1).replace("%0D%0A", "\r\n"))));
+        try (Socket socket = connect(handlerServer)) {
+            socket.getOutputStream().write("GET /a%0D%0ASet-Cookie:%20evil HTTP/1.1\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            Response response = Response.read(socket.getInputStream());
+            Assert.assertEquals(response.status, 500);
+            Assert.assertNull(response.headers.get("x-echo"));
+            Assert.assertNull(response.headers.get("set-cookie"));
+        }
+        Assert.assertEquals(handlerServer.metrics().handlerErrors(), 1);
+        handlerServer.shutdown(Duration.ZERO);
+    }
+
+    @Test()
+    public void testHeadHasNoBody() throws IOException {
+        Response response = request("HEAD /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+        Assert.assertEquals(response.status, 200);
+        Assert.assertEquals(response.headers.get("content-length"), "14");
+        Assert.assertEquals(response.body.length, 0);
+    }
+
+    @Test()
+    public void testFileTransfer() throws IOException {
+        Response response = request("GET /medium.bin HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+        Assert.assertEquals(response.status, 200);
+        Assert.assertEquals(response.headers.get("content-type"), "application/octet-stream");
+        Assert.assertTrue(Arrays.equals(response.body, mediumFile));
+    }
+
+    @Test()
+    public void testMappedFile() throws IOException {
+        for (int i = 0; i < 3; ++i) {
+            Response response = request("GET /large.bin HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+            Assert.assertEquals(response.status, 200);
+            Assert.assertTrue(Arrays.equals(response.body, largeFile));
+        }
+
+        // Every request shares the one mapping
+        Assert.assertEquals(server.mappedFiles().mappingCount(), 1);
+        Assert.assertEquals(server.mappedFiles().mappedBytes(), largeFile.length);
+    }
+
+    @Test()
+    public void testDirectoryIndex() throws IOException {
+        Assert.assertEquals(request("GET /sub HTTP/1.1\r\nConnection: close\r\n\r\n").status, 301);
+
+        Response response = request("GET /sub/ HTTP/1.1\r\nConnection: close\r\n\r\n");
+        Assert.assertEquals(response.status, 200);
+        Assert.assertEquals(new String(response.body, StandardCharsets.UTF_8), "sub");
+    }
+
+    @Test()
+    public void testCachedFileIsRevalidated() throws Exception {
+        Path file = root.resolve("cached.txt");
+        Files.write(file, "one".getBytes(StandardCharsets.UTF_8));
+
+        Assert.assertEquals(new String(request("GET /cached.txt HTTP/1.1\r\nConnection: close\r\n\r\n").body,
+                StandardCharsets.UTF_8), "one");
+        long hits = server.fileCache().hits();
+        Response response = request("GET /cached.txt HTTP/1.1\r\nConnection: close\r\n\r\n");
+        Assert.assertEquals(server.fileCache().hits(), hits + 1);
+        Assert.assertEquals(response.headers.get("content-type"), "text/plain; charset=utf-8");
+        Assert.assertEquals(new String(response.body, StandardCharsets.UTF_8), "one");
+
+        // Once the entry is due for revalidation, the changed file must be picked up
+        Thread.sleep(1100);
+        Files.write(file, "two!".getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals(new String(request("GET /cached.txt HTTP/1.1\r\nConnection: close\r\n\r\n").body,
+                StandardCharsets.UTF_8), "two!");
+    }
+
+    @Test()
+    public void testKeepAliveAndPipelining() throws IOException {
+        try (Socket socket = new Socket("localhost", server.port())) {
+            socket.setSoTimeout(5000);
+            // Both requests in one write, the second must not be lost in the first one's read
+            String requests = "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /sub/index.html HTTP/1.1\r\nHost: localhost\r\n\r\n";
+            socket.getOutputStream().write(requests.getBytes(StandardCharsets.ISO_8859_1));
+            InputStream input = socket.getInputStream();
+
+            Response first = Response.read(input);
+            Assert.assertEquals(first.headers.get("connection"), "keep-alive");
+            Assert.assertEquals(new String(first.body, StandardCharsets.UTF_8), "<h1>Hello</h1>");
+            Response second = Response.read(input);
+            Assert.assertEquals(second.headers.get("connection"), "keep-alive");
+            Assert.assertEquals(new String(second.body, StandardCharsets.UTF_8), "sub");
+
+            // The connection stays usable until the client asks to close it
+            socket.getOutputStream().write("GET /index.html HTTP/1.1\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            Response last = Response.read(input);
+            Assert.assertEquals(last.status, 200);
+            Assert.assertEquals(last.headers.get("connection"), "close");
+            Assert.assertEquals(input.read(), -1);
+        }
+    }
+
+    @Test()
+    public void testConnectionHeaderLists() throws IOException {
+        try (Socket socket = connect(server)) {
+            InputStream input = socket.getInputStream();
+            socket.getOutputStream().write("GET /index.html HTTP/1.0\r\nConnection: TE,\tKeep-Alive \r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            Assert.assertEquals(Response.read(input).headers.get("connection"), "keep-alive");
+
+            // Only whole elements count
+            socket.getOutputStream().write("GET /index.html HTTP/1.1\r\nConnection: closed,,upgrade\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            Assert.assertEquals(Response.read(input).headers.get("connection"), "keep-alive");
+
+            socket.getOutputStream().write("GET /index.html HTTP/1.1\r\nConnection: upgrade , CLOSE\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            Assert.assertEquals(Response.read(input).headers.get("connection"), "close");
+            Assert.assertEquals(input.read(), -1);
+        }
+    }
+
+    @Test()
+    public void testConnectionStorm() throws Exception {
+        // Many clients connecting at once, all handed to the pools at the same time
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> statuses = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 400; ++i) {
+                statuses.add(clients.submit(() ->
+                        request("GET /index.html HTTP/1.1\r\nConnection: close\r\n\r\n").status));
+            }
+            for (Future<Integer> status : statuses)
+                Assert.assertEquals((int) status.get(10, TimeUnit.SECONDS), 200);
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    @Test()
+    public void testHttp10ClosesByDefault() throws IOException {
+        try (Socket socket = new Socket("localhost", server.port())) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("GET /index.html HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            Response response = Response.read(socket.getInputStream());
+            Assert.assertEquals(response.headers.get("connection"), "close");
+            Assert.assertEquals(socket.getInputStream().read(), -1);
+        }
+    }
+
+    @Test()
+    public void testSlowHeadersTimeOut() throws Exception {
+        try (Socket socket = new Socket("localhost", server.port())) {
+            socket.setSoTimeout(5000);
+            long start = System.nanoTime();
+            socket.getOutputStream().write("GET /index.html HTTP/1.1\r\n".getBytes(StandardCharsets.ISO_8859_1));
+
+            // Activity must not extend the header deadline
+            try {
+                for (int i = 0; i < 20; ++i) {
+                    Thread.sleep(100);
+                    socket.getOutputStream().write('X');
+                }
+            } catch (IOException e) {
+                // The server closed the connection while headers were still coming in
+            }
+
+            Assert.assertEquals(socket.getInputStream().read(), -1);
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            Assert.assertTrue(elapsed < 2500, "Closed after " + elapsed + " ms");
+        } catch (java.net.SocketException e) {
+            // Reset by the server, which is just as closed
+        }
+    }
+
+    @Test()
+    public void testIdleConnectionsHoldNoBuffers() throws Exception {
+        Socket[] sockets = new Socket[4];
+        try {
+            for (int i = 0; i < sockets.length; ++i) {
+                sockets[i] = new Socket("localhost", server.port());
+                sockets[i].setSoTimeout(5000);
+                sockets[i].getOutputStream().write("GET /index.html HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                Assert.assertEquals(Response.read(sockets[i].getInputStream()).status, 200);
+            }
+
+            // The connections stay open, but once answered they give their buffers back
+            long deadline = System.nanoTime() + 1000000000L;
+            while (server.bufferPool().inUse() > 0 && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            Assert.assertEquals(server.bufferPool().inUse(), 0);
+            Assert.assertTrue(server.bufferPool().acquires() >= sockets.length);
+        } finally {
+            for (Socket socket : sockets) {
+                if (socket != null)
+                    socket.close();
+            }
+        }
+    }
+
+    @DataProvider(name = "rejectedRequests")
+    public Object[][] createRejectedRequests() {
+        char[] cookie = new char[64 * 1024];
+        Arrays.fill(cookie, 'c');
+        return new Object[][] {
+                { "FETCH /index.html HTTP/1.1\r\n\r\n", 400 },
+                { "GET /index.html HTTP/1.1\r\nContent-Length: -1\r\n\r\n", 400 },
+                { "GET /index.html HTTP/1.1\r\nCookie: " + new String(cookie) + "\r\n\r\n", 431 },
+                { "GET /index.html HTTP/3.0\r\n\r\n", 505 }
+        };
+    }
+
+    @Test(dataProvider = "rejectedRequests")
+    public void testRejectedRequestIsAnsweredAndClosed(String request, int status) throws IOException {
+        try (Socket socket = new Socket("localhost", server.port())) {
+            socket.setSoTimeout(5000);
+            // A valid request ahead of the bad one is still answered
+            socket.getOutputStream().write(("GET /index.html HTTP/1.1\r\n\r\n" + request).getBytes(StandardCharsets.ISO_8859_1));
+            InputStream input = socket.getInputStream();
+            Assert.assertEquals(Response.read(input).status, 200);
+
+            Response response = Response.read(input);
+            Assert.assertEquals(response.status, status);
+            Assert.assertEquals(response.headers.get("connection"), "close");
+            Assert.assertEquals(input.read(), -1);
+        }
+    }
+
+    @DataProvider(name = "outsideRoot")
+    public Object[][] createOutsideRoot() {
+        return new Object[][] {
+                { "/../../../../etc/passwd" },
+                { "/%2e%2e/%2e%2e/%2e%2e/etc/passwd" },
+                { "/sub/../../etc/passwd" },
+                { "/missing.html" }
+        };
+    }
+
+    @Test(dataProvider = "outsideRoot")
+    public void testNotFound(String uri) throws IOException {
+        Response response = request("GET " + uri + " HTTP/1.1\r\nConnection: close\r\n\r\n");
+        Assert.assertEquals(response.status, 404);
+    }
+
+    @Test()
+    public void testMethodNotAllowed() throws IOException {
+        Response response = request("DELETE /index.html HTTP/1.1\r\nConnection: close\r\n\r\n");
+        Assert.assertEquals(response.status, 405);
+        Assert.assertEquals(response.headers.get("allow"), "GET, HEAD");
+    }
+
+    private Response request(String request) throws IOException {
+        try (Socket socket = new Socket("localhost", server.port())) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+            socket.getOutputStream().flush();
+            return Response.read(socket.getInputStream());
+        }
+    }
+
+    /**
+     * Creates a server and runs it on a daemon thread of its own.
+     */
+    static SimpleWebServer start(ServerConfig config) throws IOException {
+        return start(new SimpleWebServer(config));
+    }
+
+    static SimpleWebServer start(SimpleWebServer server) {
+        Thread thread = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    static Socket connect(SimpleWebServer server) throws IOException {
+        Socket socket = new Socket("localhost", server.port());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    static class Response {
+        int status;
+        Map<String, String> headers = new HashMap<String, String>();
+        byte[] body;
+
+        /**
+         * Reads a single response, using Content-Length or chunked encoding to find the end of the body.
+         * A 304, a 204 and informational responses never have one.
+         */
+        static Response read(InputStream input) throws IOException {
+            Response response = new Response();
+            String statusLine = readLine(input);
+            response.status = Integer.parseInt(statusLine.split(" ")[1]);
+
+            String line;
+            while (!(line = readLine(input)).isEmpty()) {
+                int colon = line.indexOf(':');
+                response.headers.put(line.substring(0, colon).toLowerCase(), line.substring(colon + 1).trim());
+            }
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if ("chunked".equals(response.headers.get("transfer-encoding"))) {
+                int size;
+                while ((size = Integer.parseInt(readLine(input), 16)) > 0) {
+                    for (int i = 0; i < size; ++i) {
+                        int c = input.read();
+                        if (c < 0)
+                            throw new IOException("Connection closed in the middle of a chunk.");
+                        body.write(c);
+                    }
+                    Assert.assertEquals(readLine(input), "");
+                }
+                Assert.assertEquals(readLine(input), "");
+                response.body = body.toByteArray();
+                return response;
+            }
+
+            String contentLength = response.headers.get("content-length");
+            long remaining = contentLength == null ? Long.MAX_VALUE : Long.parseLong(contentLength);
+            if (response.status == 304 || response.status == 204 || response.status < 200)
+                remaining = 0;
+            byte[] buffer = new byte[8192];
+            while (remaining > 0) {
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0)
+                    break;
+                body.write(buffer, 0, read);
+                remaining -= read;
+            }
+            response.body = body.toByteArray();
+            return response;
+        }
+
+        private static String readLine(InputStream input) throws IOException {
+            StringBuilder builder = new StringBuilder();
+            int c;
+            while ((c = input.read()) != '\n') {
+                if (c < 0)
+                    throw new IOException("Connection closed in the middle of a line.");
+                if (c != '\r')
+                    builder.append((char) c);
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import org.testng.annotations.*;
+import org.testng.Assert;
+import org.andlon.simpleweb.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of the warm-up a server goes through before it binds its port.
+ */
+public class WarmupTest {
+
+    @DataProvider(name = "modes")
+    public Object[][] modes() {
+        return new Object[][] { { false }, { true } };
+    }
+
+    @Test(dataProvider = "modes")
+    public void testWarmupIsAnsweredBeforeBinding(boolean threadPerConnection) throws Exception {
+        AtomicInteger warmups = new AtomicInteger();
+        SimpleWebServer server = SimpleWebServerTest.start(new ServerConfig().port(0).workers(2).jmx(false)
+                .threadPerConnection(threadPerConnection).warmupRequests(500).maxClientRequestRate(10)
+                .handler(request -> {
+                    if ("simpleweb-warmup".equals(request.header(HttpHeader.USER_AGENT)))
+                        warmups.incrementAndGet();
+                    return new HttpResponse(200).body("ok".getBytes(StandardCharsets.UTF_8));
+                }));
+
+        // Every request is answered by the time the constructor returns, without counting against
+        // the limits or the metrics of the server itself
+        Assert.assertEquals(warmups.get(), 500);
+        Assert.assertEquals(server.metrics().connectionsAccepted(), 0);
+        Assert.assertEquals(get(server, "/").status, 200);
+        server.shutdown(Duration.ZERO);
+    }
+
+    @Test()
+    public void testFilesOfTheRootAreRequested() throws Exception {
+        Path root = Files.createTempDirectory("simpleweb-warmup");
+        Files.write(root.resolve("index.html"), "<p>index</p>".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("style.css"), "p { }".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("needs escaping.txt"), "x".getBytes(StandardCharsets.UTF_8));
+
+        Set<String> paths = ConcurrentHashMap.newKeySet();
+        SimpleWebServer server = SimpleWebServerTest.start(new ServerConfig().port(0).workers(1).jmx(false).documentRoot(root)
+                .warmupRequests(100).handler(request -> {
+                    paths.add(request.uri());
+                    return new HttpResponse(200).body("ok".getBytes(StandardCharsets.UTF_8));
+                }));
+        Assert.assertTrue(paths.contains("/index.html"), paths.toString());
+        Assert.assertTrue(paths.contains("/style.css"), paths.toString());
+        Assert.assertFalse(paths.contains("/needs escaping.txt"), paths.toString());
+        Assert.assertEquals(get(server, "/style.css").status, 200);
+        server.shutdown(Duration.ZERO);
+    }
+
+    private static SimpleWebServerTest.Response get(SimpleWebServer server, String path) throws IOException {
+        try (Socket socket = SimpleWebServerTest.connect(server)) {
+            String request = "GET " + path + " HTTP/1.1\r\nConnection: close\r\n\r\n";
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+            return SimpleWebServerTest.Response.read(socket.getInputStream());
+        }
+    }
+}
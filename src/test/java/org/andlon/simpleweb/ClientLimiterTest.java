@@ -0,0 +1,77 @@
+package org.andlon.simpleweb;
+
+import org.testng.annotations.*;
+import org.testng.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests of how the client limiter forgets clients, which only shows from inside its package.
+ */
+public class ClientLimiterTest {
+    // Twice the room a stripe starts with, so that it is rebuilt at least once while they are added
+    private static final int CLIENTS = 32;
+    private static final long SECOND = 1000000000L;
+
+    @Test()
+    public void testIdleClientsAreDroppedWhenTheStripeRunsOutOfRoom() {
+        ClientLimiter limiter = new ClientLimiter(0, 10);
+        List<Long> keys = keysOfOneStripe(CLIENTS + 2);
+        long connected = keys.get(0);
+        long throttled = keys.get(1);
+        long now = System.nanoTime();
+
+        Assert.assertTrue(limiter.tryConnect(connected, now));
+        for (int i = 0; i < 10; ++i)
+            Assert.assertTrue(limiter.tryRequest(throttled, now));
+        Assert.assertFalse(limiter.tryRequest(throttled, now));
+
+        // Clients that come and go, leaving a full bucket behind
+        for (long idle : keys.subList(2, keys.size())) {
+            Assert.assertTrue(limiter.tryConnect(idle, now));
+            limiter.disconnected(idle);
+        }
+
+        Assert.assertTrue(limiter.isTracked(connected));
+        Assert.assertTrue(limiter.isTracked(throttled));
+        Assert.assertFalse(limiter.isTracked(keys.get(2)));
+        Assert.assertTrue(limiter.isTracked(keys.get(keys.size() - 1)));
+        // The connected client kept its count and the throttled one its bucket through the rebuilds
+        Assert.assertFalse(limiter.tryRequest(throttled, now));
+        Assert.assertTrue(limiter.tryRequest(throttled, now + SECOND));
+        limiter.disconnected(connected);
+    }
+
+    @Test()
+    public void testThrottledClientIsDroppedOnceItsBucketIsFull() {
+        ClientLimiter limiter = new ClientLimiter(0, 10);
+        List<Long> keys = keysOfOneStripe(CLIENTS + 1);
+        long throttled = keys.get(0);
+        long now = System.nanoTime();
+        for (int i = 0; i < 10; ++i)
+            Assert.assertTrue(limiter.tryRequest(throttled, now));
+
+        // A second later its bucket has refilled, and it is as idle as a client that was never seen
+        for (long idle : keys.subList(1, keys.size()))
+            Assert.assertTrue(limiter.tryRequest(idle, now + SECOND));
+        Assert.assertFalse(limiter.isTracked(throttled));
+    }
+
+    /**
+     * IPv4 client keys that all fall into the same stripe.
+     */
+    private static List<Long> keysOfOneStripe(int count) {
+        List<Long> keys = new ArrayList<Long>();
+        int stripe = ClientLimiter.stripeOf(key(0));
+        for (int address = 0; keys.size() < count; ++address) {
+            if (ClientLimiter.stripeOf(key(address)) == stripe)
+                keys.add(key(address));
+        }
+        return keys;
+    }
+
+    private static long key(int address) {
+        return (0x0A000000L + address) | 1L << 32;
+    }
+}